@@ -0,0 +1,105 @@
+package ims.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Points the application at a private in-memory H2 database in MySQL mode
+ * and creates the README schema, so benchmarks run without a MySQL server.
+ */
+final class BenchmarkDatabase {
+    private final String url;
+    private final Path workDir;
+
+    private BenchmarkDatabase(String url, Path workDir) {
+        this.url = url;
+        this.workDir = workDir;
+    }
+
+    /**
+     * Must run before the first call into the application: ConfigManager
+     * reads these system properties once, when it is first used.
+     */
+    static BenchmarkDatabase start(String name) throws IOException, SQLException {
+        Path workDir = Files.createTempDirectory("ims-bench-");
+        String url = "jdbc:h2:mem:" + name + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1";
+        System.setProperty("db.url", url);
+        System.setProperty("db.username", "sa");
+        System.setProperty("db.password", "");
+        System.setProperty("log.console", "false");
+        System.setProperty("log.file", workDir.resolve("application.log").toString());
+        System.setProperty("export.watermarkFile", workDir.resolve("export.watermark").toString());
+        System.setProperty("events.dir", workDir.resolve("events").toString());
+        System.setProperty("reorder.notifier", "none");
+
+        BenchmarkDatabase database = new BenchmarkDatabase(url, workDir);
+        database.execute(
+            "CREATE TABLE IF NOT EXISTS users ("
+                + "id INT AUTO_INCREMENT PRIMARY KEY, "
+                + "username VARCHAR(50) NOT NULL UNIQUE, "
+                + "password VARCHAR(255) NOT NULL)",
+            "CREATE TABLE IF NOT EXISTS products ("
+                + "id INT AUTO_INCREMENT PRIMARY KEY, "
+                + "name VARCHAR(100) NOT NULL UNIQUE, "
+                + "description TEXT, "
+                + "price DECIMAL(10,2) NOT NULL, "
+                + "quantity INT NOT NULL, "
+                + "reorder_level INT NOT NULL DEFAULT 0, "
+                + "last_modified TIMESTAMP(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3) ON UPDATE CURRENT_TIMESTAMP(3))",
+            "CREATE TABLE IF NOT EXISTS product_tombstones ("
+                + "name VARCHAR(100) PRIMARY KEY, "
+                + "deleted_at TIMESTAMP(3) NOT NULL)");
+        return database;
+    }
+
+    Path workDir() {
+        return workDir;
+    }
+
+    Connection connect() throws SQLException {
+        return DriverManager.getConnection(url, "sa", "");
+    }
+
+    void execute(String... statements) throws SQLException {
+        try (Connection connection = connect(); Statement statement = connection.createStatement()) {
+            for (String sql : statements) {
+                statement.execute(sql);
+            }
+        }
+    }
+
+    /**
+     * Inserts products named product-0 .. product-(count-1).
+     */
+    void populateProducts(int count) throws SQLException {
+        try (Connection connection = connect();
+             PreparedStatement statement = connection.prepareStatement(
+                     "INSERT INTO products (name, description, price, quantity) VALUES (?, ?, ?, ?)")) {
+            connection.setAutoCommit(false);
+            for (int i = 0; i < count; i++) {
+                statement.setString(1, "product-" + i);
+                statement.setString(2, "Benchmark product number " + i + ", standard size");
+                statement.setDouble(3, 1 + (i % 1000) / 100.0);
+                statement.setInt(4, i % 500);
+                statement.addBatch();
+                if (i % 10_000 == 9_999) {
+                    statement.executeBatch();
+                    connection.commit();
+                }
+            }
+            statement.executeBatch();
+            connection.commit();
+        }
+    }
+
+    void stop() throws Throwable {
+        Ims.shutdownPool();
+        execute("SHUTDOWN");
+    }
+}
@@ -0,0 +1,77 @@
+package ims.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full-table reads: viewInventory (console output discarded), saveInventoryToFile
+ * and saveInventorySnapshot (uncompressed and compressed).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ExportBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int rows;
+
+    private BenchmarkDatabase database;
+    private Object ims;
+    private String exportFile;
+    private String snapshotFile;
+    private PrintStream originalOut;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        database = BenchmarkDatabase.start("export");
+        database.populateProducts(rows);
+        ims = Ims.newInventorySystem();
+        exportFile = database.workDir().resolve("export.csv").toString();
+        snapshotFile = database.workDir().resolve("export.imsb").toString();
+        originalOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Throwable {
+        System.setOut(originalOut);
+        database.stop();
+    }
+
+    @Benchmark
+    public void viewInventory() throws Throwable {
+        Ims.viewInventory(ims);
+    }
+
+    @Benchmark
+    public void saveInventoryToFile() throws Throwable {
+        Ims.saveInventoryToFile(ims, exportFile);
+    }
+
+    @Benchmark
+    public void saveInventorySnapshot() throws Throwable {
+        Ims.saveInventorySnapshot(ims, snapshotFile, false);
+    }
+
+    @Benchmark
+    public void saveInventorySnapshotCompressed() throws Throwable {
+        Ims.saveInventorySnapshot(ims, snapshotFile, true);
+    }
+}
@@ -0,0 +1,84 @@
+package ims.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * loadInventoryFromFile into an empty table, from CSV or from a compressed
+ * binary snapshot of the same rows. parallelism only applies to CSV; the
+ * binary runs with parallelism 4 repeat the single-threaded import. Divide rows by the reported
+ * time for throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ImportBenchmark {
+    @Param({"10000", "100000"})
+    public int rows;
+
+    @Param({"csv", "binary"})
+    public String format;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private BenchmarkDatabase database;
+    private Object ims;
+    private String importFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        database = BenchmarkDatabase.start("import");
+        ims = Ims.newInventorySystem();
+        Path file = database.workDir().resolve("import.csv");
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < rows; i++) {
+                writer.write("product-" + i + ",Imported product number " + i + "," + (1 + i % 1000 / 100.0)
+                        + "," + (i % 500));
+                writer.newLine();
+            }
+        }
+        importFile = file.toString();
+        if (format.equals("binary")) {
+            importFile = database.workDir().resolve("import.imsb").toString();
+            if (!Ims.convertInventoryFile(ims, file.toString(), importFile, true)) {
+                throw new IllegalStateException("Could not convert " + file + " to a snapshot");
+            }
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void emptyTable() throws Exception {
+        database.execute("TRUNCATE TABLE products");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Throwable {
+        database.stop();
+    }
+
+    @Benchmark
+    public void loadInventoryFromFile() throws Throwable {
+        Ims.loadInventoryFromFile(ims, importFile, false, parallelism);
+    }
+}
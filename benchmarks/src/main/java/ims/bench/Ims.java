@@ -0,0 +1,140 @@
+package ims.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * Calls into the application, whose classes live in the unnamed package.
+ * Java code in a named package (which JMH requires) cannot refer to those
+ * classes directly, so each entry point is bound once to a static final
+ * MethodHandle, which the JIT inlines like a direct call.
+ */
+final class Ims {
+    private static final MethodHandle NEW_SYSTEM = constructor("InventoryManagementSystem");
+    private static final MethodHandle ADD_PRODUCT = method("InventoryManagementSystem", "addProduct",
+            String.class, String.class, double.class, int.class);
+    private static final MethodHandle GET_PRODUCT = method("InventoryManagementSystem", "getProduct", String.class);
+    private static final MethodHandle VIEW_INVENTORY = method("InventoryManagementSystem", "viewInventory");
+    private static final MethodHandle SAVE_INVENTORY = method("InventoryManagementSystem", "saveInventoryToFile",
+            String.class);
+    private static final MethodHandle SAVE_SNAPSHOT = method("InventoryManagementSystem", "saveInventorySnapshot",
+            String.class, boolean.class);
+    private static final MethodHandle CONVERT_FILE = method("InventoryManagementSystem", "convertInventoryFile",
+            String.class, String.class, boolean.class);
+    private static final MethodHandle LOAD_INVENTORY = method("InventoryManagementSystem", "loadInventoryFromFile",
+            String.class, boolean.class, int.class);
+    private static final MethodHandle NEW_LOGIN = constructor("Login", String.class, String.class);
+    private static final MethodHandle VERIFY_CREDENTIALS = method("Login", "verifyCredentials");
+    private static final MethodHandle GET_SESSION_TOKEN = method("Login", "getSessionToken");
+    private static final MethodHandle VALIDATE_SESSION = method("Login", "validateSession", String.class);
+    private static final MethodHandle HASH_PASSWORD = method("PasswordHasher", "hash", String.class);
+    private static final MethodHandle LOG_INFO = method("Logger", "info", String.class);
+    private static final MethodHandle LOG_DEBUG = method("Logger", "debug", String.class);
+    private static final MethodHandle SHUTDOWN_POOL = method("DatabaseConnector", "shutdown");
+
+    private Ims() {
+    }
+
+    static Object newInventorySystem() throws Throwable {
+        return (Object) NEW_SYSTEM.invokeExact();
+    }
+
+    static boolean addProduct(Object ims, String name, String description, double price, int quantity)
+            throws Throwable {
+        return (boolean) ADD_PRODUCT.invokeExact(ims, name, description, price, quantity);
+    }
+
+    static Object getProduct(Object ims, String name) throws Throwable {
+        return (Object) GET_PRODUCT.invokeExact(ims, name);
+    }
+
+    static void viewInventory(Object ims) throws Throwable {
+        VIEW_INVENTORY.invokeExact(ims);
+    }
+
+    static void saveInventoryToFile(Object ims, String filename) throws Throwable {
+        SAVE_INVENTORY.invokeExact(ims, filename);
+    }
+
+    static void saveInventorySnapshot(Object ims, String filename, boolean compress) throws Throwable {
+        SAVE_SNAPSHOT.invokeExact(ims, filename, compress);
+    }
+
+    static boolean convertInventoryFile(Object ims, String input, String output, boolean compress) throws Throwable {
+        return (boolean) CONVERT_FILE.invokeExact(ims, input, output, compress);
+    }
+
+    static void loadInventoryFromFile(Object ims, String filename, boolean upsert, int parallelism) throws Throwable {
+        LOAD_INVENTORY.invokeExact(ims, filename, upsert, parallelism);
+    }
+
+    static Object newLogin(String username, String password) throws Throwable {
+        return (Object) NEW_LOGIN.invokeExact(username, password);
+    }
+
+    static boolean verifyCredentials(Object login) throws Throwable {
+        return (boolean) VERIFY_CREDENTIALS.invokeExact(login);
+    }
+
+    static String getSessionToken(Object login) throws Throwable {
+        return (String) (Object) GET_SESSION_TOKEN.invokeExact(login);
+    }
+
+    static String validateSession(String token) throws Throwable {
+        return (String) (Object) VALIDATE_SESSION.invokeExact(token);
+    }
+
+    static String hashPassword(String password) throws Throwable {
+        return (String) (Object) HASH_PASSWORD.invokeExact(password);
+    }
+
+    static void logInfo(String message) throws Throwable {
+        LOG_INFO.invokeExact(message);
+    }
+
+    static void logDebug(String message) throws Throwable {
+        LOG_DEBUG.invokeExact(message);
+    }
+
+    static void shutdownPool() throws Throwable {
+        SHUTDOWN_POOL.invokeExact();
+    }
+
+    private static Class<?> type(String className) throws ClassNotFoundException {
+        // Do not initialize: ConfigManager must not read its settings before the benchmark has set them
+        return Class.forName(className, false, Ims.class.getClassLoader());
+    }
+
+    private static MethodHandle constructor(String className, Class<?>... parameters) {
+        try {
+            Constructor<?> constructor = type(className).getDeclaredConstructor(parameters);
+            constructor.setAccessible(true);
+            MethodHandle handle = MethodHandles.lookup().unreflectConstructor(constructor);
+            return handle.asType(handle.type().changeReturnType(Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle method(String className, String name, Class<?>... parameters) {
+        try {
+            Method method = type(className).getDeclaredMethod(name, parameters);
+            method.setAccessible(true);
+            MethodHandle handle = MethodHandles.lookup().unreflect(method);
+            MethodType type = handle.type();
+            if (type.returnType() != void.class && !type.returnType().isPrimitive()) {
+                type = type.changeReturnType(Object.class);
+            }
+            if (!Modifier.isStatic(method.getModifiers())) {
+                type = type.changeParameterType(0, Object.class);
+            }
+            return handle.asType(type);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package ims.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a Logger call on the caller's thread, with console echo off.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoggerBenchmark {
+    @Param({"true", "false"})
+    public boolean async;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        System.setProperty("log.async", String.valueOf(async));
+        System.setProperty("log.console", "false");
+        System.setProperty("log.level", "INFO");
+        System.setProperty("log.file", Files.createTempDirectory("ims-bench-").resolve("application.log").toString());
+    }
+
+    @Benchmark
+    public void info() throws Throwable {
+        Ims.logInfo("Product added successfully: benchmark");
+    }
+
+    @Benchmark
+    public void debugDisabled() throws Throwable {
+        Ims.logDebug("Not written at INFO level");
+    }
+}
@@ -0,0 +1,68 @@
+package ims.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of Login.verifyCredentials for a valid and an invalid password
+ * (dominated by the PBKDF2 hash), and of validating an existing session token.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoginBenchmark {
+    private BenchmarkDatabase database;
+    private Object validLogin;
+    private Object invalidLogin;
+    private String sessionToken;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        // Keep the invalid-password benchmark measuring the hash rather than the lockout
+        System.setProperty("auth.maxFailedAttempts", "0");
+        database = BenchmarkDatabase.start("login");
+        database.execute("INSERT INTO users (username, password) VALUES ('clerk', '"
+                + Ims.hashPassword("secret") + "')");
+        validLogin = Ims.newLogin("clerk", "secret");
+        invalidLogin = Ims.newLogin("clerk", "wrong");
+        if (!Ims.verifyCredentials(validLogin)) {
+            throw new IllegalStateException("Benchmark user could not log in");
+        }
+        sessionToken = Ims.getSessionToken(validLogin);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Throwable {
+        database.stop();
+    }
+
+    @Benchmark
+    public boolean validCredentials() throws Throwable {
+        return Ims.verifyCredentials(validLogin);
+    }
+
+    @Benchmark
+    public boolean invalidCredentials() throws Throwable {
+        return Ims.verifyCredentials(invalidLogin);
+    }
+
+    @Benchmark
+    public String validateSession() throws Throwable {
+        return Ims.validateSession(sessionToken);
+    }
+}
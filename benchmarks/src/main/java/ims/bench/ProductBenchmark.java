@@ -0,0 +1,76 @@
+package ims.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * addProduct and name lookups. cacheSize=0 measures the storage path,
+ * the default size measures cache hits. storage selects the database or
+ * the embedded engine.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProductBenchmark {
+    private static final int CATALOG_SIZE = 10_000;
+
+    @Param({"0", "10000"})
+    public int cacheSize;
+
+    @Param({"jdbc", "embedded"})
+    public String storage;
+
+    private BenchmarkDatabase database;
+    private Object ims;
+    private long nextId;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        System.setProperty("cache.maxSize", String.valueOf(cacheSize));
+        System.setProperty("storage.engine", storage);
+        database = BenchmarkDatabase.start("products");
+        System.setProperty("storage.dir", database.workDir().resolve("store").toString());
+        if (storage.equals("jdbc")) {
+            database.populateProducts(CATALOG_SIZE);
+            ims = Ims.newInventorySystem();
+        } else {
+            ims = Ims.newInventorySystem();
+            for (int i = 0; i < CATALOG_SIZE; i++) {
+                Ims.addProduct(ims, "product-" + i, "Benchmark product number " + i + ", standard size",
+                        1 + (i % 1000) / 100.0, i % 500);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Throwable {
+        database.stop();
+    }
+
+    @Benchmark
+    public boolean addProduct() throws Throwable {
+        return Ims.addProduct(ims, "added-" + nextId++, "Added by benchmark", 9.99, 10);
+    }
+
+    @Benchmark
+    public Object getProduct() throws Throwable {
+        return Ims.getProduct(ims, "product-" + ThreadLocalRandom.current().nextInt(CATALOG_SIZE));
+    }
+}
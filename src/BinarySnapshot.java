@@ -0,0 +1,546 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact binary alternative to the CSV inventory file.
+ *
+ * <pre>
+ * header (48 bytes): magic "IMSB", version short, flags short (1 compressed, 2 delta),
+ *                    row count long, CRC32 of all row data int, 4 reserved bytes,
+ *                    from watermark long, watermark long, 8 reserved bytes
+ * blocks:            raw length int, stored length int, codec byte (0 raw, 1 deflate),
+ *                    CRC32 of the raw bytes int, stored bytes
+ * row:               name, description, price in cents long, quantity int
+ * delta row:         type byte (0 product, 1 deletion), then a row, or just the name
+ * string:            UTF-8 length int (-1 for null), UTF-8 bytes
+ * </pre>
+ *
+ * Rows never span blocks, so each block can be checked and decoded on its
+ * own. The header is written last, once the row count and checksum are known.
+ * <p>
+ * A full snapshot records the store watermark it was taken at; a delta
+ * holds the changes between its from watermark and its watermark, so a
+ * chain of deltas can be checked for gaps. Version 1 files have a 32-byte
+ * header without watermarks and are still read.
+ */
+public class BinarySnapshot {
+    static final int MAGIC = 0x494d5342;
+    static final short VERSION = 2;
+    static final short FLAG_COMPRESSED = 1;
+    static final short FLAG_DELTA = 2;
+    static final int HEADER_SIZE = 48;
+    private static final int V1_HEADER_SIZE = 32;
+    static final int BLOCK_HEADER_SIZE = 13;
+    static final int BLOCK_SIZE = 1 << 20;
+    private static final byte CODEC_RAW = 0;
+    private static final byte CODEC_DEFLATE = 1;
+    private static final byte ROW_PRODUCT = 0;
+    private static final byte ROW_DELETION = 1;
+
+    /**
+     * @return true if the file starts with the snapshot magic number
+     */
+    public static boolean isSnapshot(Path path) throws IOException {
+        if (!Files.isRegularFile(path)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            while (magic.hasRemaining()) {
+                if (channel.read(magic) < 0) {
+                    return false;
+                }
+            }
+            return magic.getInt(0) == MAGIC;
+        }
+    }
+
+    static long toCents(double price) {
+        return Math.round(price * 100.0);
+    }
+
+    /**
+     * Writes products to a new snapshot file. The file is only valid once
+     * {@link #close()} has written the header; {@link #abort()} deletes it instead.
+     */
+    public static class Writer implements AutoCloseable {
+        private final Path path;
+        private final FileChannel channel;
+        private final boolean compress;
+        private final boolean delta;
+        private final long fromWatermark;
+        private long watermark;
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final CRC32 checksum = new CRC32();
+        private final CRC32 blockChecksum = new CRC32();
+        private final ByteBuffer blockHeader = ByteBuffer.allocateDirect(BLOCK_HEADER_SIZE);
+        private ByteBuffer block = ByteBuffer.allocateDirect(BLOCK_SIZE);
+        private ByteBuffer compressed;
+        private Deflater deflater;
+        private long rows;
+        private long bytesWritten = HEADER_SIZE;
+        private boolean closed;
+
+        /**
+         * Starts a full snapshot.
+         */
+        public Writer(Path path, boolean compress) throws IOException {
+            this(path, compress, false, 0);
+        }
+
+        /**
+         * Starts a delta holding the changes after fromWatermark; it may
+         * contain deletions as well as products.
+         */
+        public static Writer delta(Path path, boolean compress, long fromWatermark) throws IOException {
+            return new Writer(path, compress, true, fromWatermark);
+        }
+
+        private Writer(Path path, boolean compress, boolean delta, long fromWatermark) throws IOException {
+            this.path = path;
+            this.channel = FileChannel.open(path,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            this.compress = compress;
+            this.delta = delta;
+            this.fromWatermark = fromWatermark;
+            // Placeholder until close() knows the row count and checksum
+            channel.position(HEADER_SIZE);
+        }
+
+        /**
+         * Sets the store watermark recorded in the header.
+         */
+        public void setWatermark(long watermark) {
+            this.watermark = watermark;
+        }
+
+        public void write(Product product) throws IOException {
+            append(product, null);
+        }
+
+        /**
+         * Records that the named product was deleted. Only valid in a delta.
+         */
+        public void writeDeletion(String name) throws IOException {
+            if (!delta) {
+                throw new IllegalStateException("Deletions can only be written to a delta");
+            }
+            append(null, name);
+        }
+
+        private void append(Product product, String deletedName) throws IOException {
+            int rowStart = block.position();
+            if (encodeRow(product, deletedName)) {
+                rows++;
+                return;
+            }
+            block.position(rowStart);
+            flushBlock();
+            // A row larger than a whole block gets a block of its own
+            while (!encodeRow(product, deletedName)) {
+                block = ByteBuffer.allocateDirect(block.capacity() * 2);
+            }
+            rows++;
+        }
+
+        private boolean encodeRow(Product product, String deletedName) {
+            if (delta) {
+                if (!block.hasRemaining()) {
+                    return false;
+                }
+                block.put(product == null ? ROW_DELETION : ROW_PRODUCT);
+                if (product == null) {
+                    return encodeString(deletedName);
+                }
+            }
+            if (!encodeString(product.getName()) || !encodeString(product.getDescription())
+                    || block.remaining() < 12) {
+                return false;
+            }
+            block.putLong(toCents(product.getPrice()));
+            block.putInt(product.getQuantity());
+            return true;
+        }
+
+        private boolean encodeString(String value) {
+            if (block.remaining() < 4) {
+                return false;
+            }
+            int lengthAt = block.position();
+            block.putInt(-1);
+            if (value == null) {
+                return true;
+            }
+            encoder.reset();
+            CoderResult result = encoder.encode(CharBuffer.wrap(value), block, true);
+            if (result.isOverflow() || encoder.flush(block).isOverflow()) {
+                return false;
+            }
+            block.putInt(lengthAt, block.position() - lengthAt - 4);
+            return true;
+        }
+
+        private void flushBlock() throws IOException {
+            if (block.position() == 0) {
+                return;
+            }
+            block.flip();
+            int rawLength = block.remaining();
+            blockChecksum.reset();
+            blockChecksum.update(block.duplicate());
+            checksum.update(block.duplicate());
+
+            ByteBuffer stored = block;
+            byte codec = CODEC_RAW;
+            if (compress) {
+                ByteBuffer deflated = deflate(block.duplicate());
+                // Incompressible blocks are kept as they are
+                if (deflated != null) {
+                    stored = deflated;
+                    codec = CODEC_DEFLATE;
+                }
+            }
+            blockHeader.clear();
+            blockHeader.putInt(rawLength).putInt(stored.remaining()).put(codec)
+                    .putInt((int) blockChecksum.getValue());
+            blockHeader.flip();
+            writeFully(blockHeader);
+            writeFully(stored);
+            block.clear();
+        }
+
+        /**
+         * @return the deflated bytes, or null if they would not be smaller than the input
+         */
+        private ByteBuffer deflate(ByteBuffer input) {
+            if (deflater == null) {
+                deflater = new Deflater(Deflater.BEST_SPEED);
+            }
+            int limit = input.remaining() - 1;
+            if (compressed == null || compressed.capacity() < limit) {
+                compressed = ByteBuffer.allocateDirect(block.capacity());
+            }
+            compressed.clear().limit(limit);
+            deflater.reset();
+            deflater.setInput(input);
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflater.deflate(compressed);
+                if (!compressed.hasRemaining() && !deflater.finished()) {
+                    return null;
+                }
+            }
+            compressed.flip();
+            return compressed;
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                bytesWritten += channel.write(buffer);
+            }
+        }
+
+        public long getRowCount() {
+            return rows;
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                flushBlock();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putShort(VERSION)
+                        .putShort((short) ((compress ? FLAG_COMPRESSED : 0) | (delta ? FLAG_DELTA : 0)))
+                        .putLong(rows).putInt((int) checksum.getValue()).putInt(0)
+                        .putLong(fromWatermark).putLong(watermark);
+                header.clear();
+                while (header.hasRemaining()) {
+                    channel.write(header, header.position());
+                }
+                channel.force(false);
+            } finally {
+                if (deflater != null) {
+                    deflater.end();
+                }
+                channel.close();
+            }
+        }
+
+        /**
+         * Closes the file without writing the header and deletes it, so a
+         * failed write never leaves a snapshot that looks complete. Closing
+         * afterwards does nothing.
+         */
+        public void abort() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (deflater != null) {
+                    deflater.end();
+                }
+                channel.close();
+            } finally {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    /**
+     * Reads the products back from a snapshot file. Each block is checked
+     * against its CRC before any of its rows are returned, and the row count
+     * and overall checksum are checked once the last block has been read.
+     */
+    public static class Reader implements AutoCloseable {
+        private final FileChannel channel;
+        private final long rowCount;
+        private final int expectedChecksum;
+        private final boolean delta;
+        private final long fromWatermark;
+        private final long watermark;
+        private final CRC32 checksum = new CRC32();
+        private final CRC32 blockChecksum = new CRC32();
+        private final ByteBuffer blockHeader = ByteBuffer.allocateDirect(BLOCK_HEADER_SIZE);
+        private ByteBuffer block = ByteBuffer.allocateDirect(BLOCK_SIZE);
+        private ByteBuffer stored;
+        private Inflater inflater;
+        private byte[] scratch = new byte[256];
+        private long rows;
+        private String deletedName;
+
+        public Reader(Path path) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.limit(V1_HEADER_SIZE);
+                if (!readFully(header)) {
+                    throw new IOException("Not an inventory snapshot: file is too short");
+                }
+                if (header.getInt(0) != MAGIC) {
+                    throw new IOException("Not an inventory snapshot: bad magic number");
+                }
+                short version = header.getShort(4);
+                if (version != 1 && version != VERSION) {
+                    throw new IOException("Unsupported snapshot version " + version);
+                }
+                if (version == VERSION) {
+                    header.limit(HEADER_SIZE);
+                    if (!readFully(header)) {
+                        throw new IOException("Snapshot header is truncated");
+                    }
+                }
+                header.flip().position(6);
+                short flags = header.getShort();
+                this.rowCount = header.getLong();
+                this.expectedChecksum = header.getInt();
+                this.delta = (flags & FLAG_DELTA) != 0;
+                if (version == VERSION) {
+                    header.getInt();
+                    this.fromWatermark = header.getLong();
+                    this.watermark = header.getLong();
+                } else {
+                    this.fromWatermark = 0;
+                    this.watermark = 0;
+                }
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            block.limit(0);
+        }
+
+        /**
+         * @return the number of rows recorded in the header
+         */
+        public long getRowCount() {
+            return rowCount;
+        }
+
+        public boolean isDelta() {
+            return delta;
+        }
+
+        /**
+         * @return for a delta, the watermark its changes start after; otherwise 0
+         */
+        public long getFromWatermark() {
+            return fromWatermark;
+        }
+
+        /**
+         * @return the store watermark the file was written at, or 0 if not recorded
+         */
+        public long getWatermark() {
+            return watermark;
+        }
+
+        /**
+         * @return the name of the product deleted by the row just read, or
+         *         null if {@link #next()} returned a product
+         */
+        public String getDeletedName() {
+            return deletedName;
+        }
+
+        /**
+         * @return the next product, or null after the last row. For a deletion
+         *         in a delta, returns a product holding only the name and sets
+         *         {@link #getDeletedName()}.
+         * @throws IOException if the file is truncated or fails its checksum
+         */
+        public Product next() throws IOException {
+            if (!block.hasRemaining() && !readBlock()) {
+                if (rows != rowCount) {
+                    throw new IOException("Snapshot is truncated: expected " + rowCount + " rows but found " + rows);
+                }
+                if ((int) checksum.getValue() != expectedChecksum) {
+                    throw new IOException("Snapshot checksum mismatch");
+                }
+                return null;
+            }
+            try {
+                deletedName = null;
+                byte type = delta ? block.get() : ROW_PRODUCT;
+                if (type != ROW_PRODUCT && type != ROW_DELETION) {
+                    throw new IllegalArgumentException("unknown row type " + type);
+                }
+                if (type == ROW_DELETION) {
+                    deletedName = decodeString();
+                    if (deletedName == null) {
+                        throw new IllegalArgumentException("deletion without a name");
+                    }
+                    rows++;
+                    return new Product(deletedName, null, 0, 0);
+                }
+                String name = decodeString();
+                String description = decodeString();
+                long cents = block.getLong();
+                int quantity = block.getInt();
+                rows++;
+                return new Product(name, description, cents / 100.0, quantity);
+            } catch (RuntimeException e) {
+                throw new IOException("Snapshot row " + (rows + 1) + " is malformed", e);
+            }
+        }
+
+        private String decodeString() {
+            int length = block.getInt();
+            if (length < 0) {
+                return null;
+            }
+            if (scratch.length < length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            block.get(scratch, 0, length);
+            return new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+
+        private boolean readBlock() throws IOException {
+            blockHeader.clear();
+            int first = channel.read(blockHeader);
+            if (first < 0) {
+                return false;
+            }
+            if (!readFully(blockHeader)) {
+                throw new EOFException("Snapshot is truncated inside a block header");
+            }
+            blockHeader.flip();
+            int rawLength = blockHeader.getInt();
+            int storedLength = blockHeader.getInt();
+            byte codec = blockHeader.get();
+            int expectedBlockChecksum = blockHeader.getInt();
+            if (rawLength <= 0 || storedLength <= 0 || (codec != CODEC_RAW && codec != CODEC_DEFLATE)) {
+                throw new IOException("Snapshot block header is corrupt");
+            }
+            if (block.capacity() < rawLength) {
+                block = ByteBuffer.allocateDirect(rawLength);
+            }
+            block.clear().limit(rawLength);
+            if (codec == CODEC_RAW) {
+                if (!readFully(block)) {
+                    throw new EOFException("Snapshot is truncated inside a block");
+                }
+            } else {
+                if (stored == null || stored.capacity() < storedLength) {
+                    stored = ByteBuffer.allocateDirect(Math.max(storedLength, BLOCK_SIZE));
+                }
+                stored.clear().limit(storedLength);
+                if (!readFully(stored)) {
+                    throw new EOFException("Snapshot is truncated inside a block");
+                }
+                stored.flip();
+                inflate(stored, block);
+            }
+            block.flip();
+            blockChecksum.reset();
+            blockChecksum.update(block.duplicate());
+            if ((int) blockChecksum.getValue() != expectedBlockChecksum) {
+                throw new IOException("Snapshot block checksum mismatch after row " + rows);
+            }
+            checksum.update(block.duplicate());
+            return true;
+        }
+
+        private void inflate(ByteBuffer input, ByteBuffer output) throws IOException {
+            if (inflater == null) {
+                inflater = new Inflater();
+            }
+            inflater.reset();
+            inflater.setInput(input);
+            try {
+                while (!inflater.finished() && output.hasRemaining()) {
+                    if (inflater.inflate(output) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Snapshot block is corrupt: " + e.getMessage(), e);
+            }
+            if (output.hasRemaining() || !inflater.finished()) {
+                throw new IOException("Snapshot block is corrupt: wrong uncompressed length");
+            }
+        }
+
+        private boolean readFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (inflater != null) {
+                inflater.end();
+            }
+            channel.close();
+        }
+    }
+}
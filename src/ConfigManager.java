@@ -1,36 +1,619 @@
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+import java.util.zip.CRC32;
 
+/**
+ * Application settings. Each value comes from the first of: a -Dkey=value
+ * system property, an IMS_ environment variable (db.pool.maxSize is read from
+ * IMS_DB_POOL_MAXSIZE), and the configuration file, which is
+ * src/config.properties unless -Dconfig.file or IMS_CONFIG_FILE names another.
+ * <p>
+ * The settings in effect are an immutable snapshot behind a volatile
+ * reference, and each value is parsed and checked once per snapshot, so the
+ * getters take no locks and are cheap enough for hot paths. A value that
+ * does not parse or is out of range is reported once and the default is used.
+ * {@link #startWatching()} reloads the file when it changes and tells the
+ * {@link ChangeListener}s which keys changed. Code that calls a getter for
+ * each operation sees the new value at once; components that read a setting
+ * when they are built keep the old value unless they listen for changes.
+ */
 public class ConfigManager {
-    private static final Properties properties = new Properties();
-    private static final String CONFIG_FILE = "src/config.properties";
+
+    /**
+     * Told, on the thread that reloaded the file, which keys have new values.
+     */
+    public interface ChangeListener {
+        void configChanged(Set<String> changedKeys);
+    }
+
+    private static final String DEFAULT_CONFIG_FILE = "src/config.properties";
+    private static final String ENV_PREFIX = "IMS_";
+    // Editors often save a file in several writes; let them finish before reading it
+    private static final long RELOAD_SETTLE_MILLIS = 200;
+
+    private static final Path configFile = Paths.get(System.getProperty("config.file",
+            System.getenv().getOrDefault(ENV_PREFIX + "CONFIG_FILE", DEFAULT_CONFIG_FILE)));
+    private static final CopyOnWriteArrayList<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+    private static volatile Snapshot current;
+    private static Thread watcher;
 
     static {
-        try (FileInputStream input = new FileInputStream(CONFIG_FILE)) {
-            properties.load(input);
+        Properties file = new Properties();
+        try {
+            file = readFile();
         } catch (IOException e) {
-            System.err.println("Error loading configuration file: " + e.getMessage());
+            System.err.println("Error loading configuration file " + configFile.toAbsolutePath() + ": " + e
+                    + "; using defaults and overrides only");
         }
+        current = new Snapshot(file);
     }
 
     public static String getDatabaseUrl() {
-        return properties.getProperty("db.url");
+        return getProperty("db.url", null);
     }
 
     public static String getDatabaseUsername() {
-        return properties.getProperty("db.username");
+        return getProperty("db.username", null);
     }
 
     public static String getDatabasePassword() {
-        return properties.getProperty("db.password");
+        return getProperty("db.password", null);
+    }
+
+    public static int getPoolMaxSize() {
+        return getIntProperty("db.pool.maxSize", 10, 1);
+    }
+
+    public static int getPoolMinIdle() {
+        return getIntProperty("db.pool.minIdle", 2, 0);
+    }
+
+    public static long getPoolAcquireTimeoutMillis() {
+        return getLongProperty("db.pool.acquireTimeoutMs", 5000, 0);
+    }
+
+    public static long getPoolIdleTimeoutMillis() {
+        return getLongProperty("db.pool.idleTimeoutMs", 300000, 0);
+    }
+
+    public static int getPoolValidationTimeoutSeconds() {
+        return getIntProperty("db.pool.validationTimeoutSec", 2, 0);
+    }
+
+    public static int getPoolPrepStmtCacheSize() {
+        return getIntProperty("db.pool.prepStmtCacheSize", 250, 0);
+    }
+
+    public static String getStorageEngine() {
+        return getProperty("storage.engine", "jdbc");
+    }
+
+    public static String getStorageDir() {
+        return getProperty("storage.dir", "data");
+    }
+
+    public static long getStorageCompactBytes() {
+        return getLongProperty("storage.compactBytes", 64L << 20, 1);
+    }
+
+    public static boolean isStorageForceOnWrite() {
+        return getBooleanProperty("storage.forceOnWrite", false);
+    }
+
+    /**
+     * @return the warehouse ids listed in warehouses; empty keeps every
+     *         product in the db.* database (or storage.dir) as before
+     */
+    public static List<String> getWarehouses() {
+        return getListProperty("warehouses");
+    }
+
+    /**
+     * @return the warehouse that operations without a warehouse use, or null for the first one listed
+     */
+    public static String getDefaultWarehouse() {
+        return getProperty("warehouse.default", null);
+    }
+
+    public static List<String> getShards() {
+        return getListProperty("shards");
+    }
+
+    /**
+     * @return the shard named by warehouse.&lt;id&gt;.shard, otherwise one of
+     *         the listed shards picked by hashing the id, or null if there are none
+     */
+    public static String getWarehouseShard(String warehouse) {
+        String mapped = getProperty("warehouse." + warehouse + ".shard", null);
+        if (mapped != null && !mapped.trim().isEmpty()) {
+            return mapped.trim();
+        }
+        return hashShard(warehouse, getShards());
+    }
+
+    /**
+     * Picks a shard by the CRC-32 of the id, which is the same in every
+     * process and, unlike String.hashCode, spreads similar ids such as
+     * "north" and "south" over a few shards. A warehouse stays on its shard
+     * for as long as the shard list is unchanged.
+     */
+    static String hashShard(String warehouse, List<String> shards) {
+        if (shards.isEmpty()) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(warehouse.getBytes(StandardCharsets.UTF_8));
+        return shards.get((int) (crc.getValue() % shards.size()));
+    }
+
+    public static String getShardDatabaseUrl(String shard) {
+        return getProperty("shard." + shard + ".db.url", null);
+    }
+
+    public static String getShardDatabaseUsername(String shard) {
+        return getProperty("shard." + shard + ".db.username", getDatabaseUsername());
+    }
+
+    public static String getShardDatabasePassword(String shard) {
+        return getProperty("shard." + shard + ".db.password", getDatabasePassword());
+    }
+
+    public static String getShardStorageDir(String shard) {
+        return getProperty("shard." + shard + ".storage.dir", Paths.get(getStorageDir(), shard).toString());
+    }
+
+    public static long getShardQueryTimeoutMillis() {
+        return getLongProperty("shards.queryTimeoutMs", 5000, 1);
+    }
+
+    public static int getImportBatchSize() {
+        return getIntProperty("import.batchSize", 1000, 1);
+    }
+
+    public static int getImportParallelism() {
+        return getIntProperty("import.parallelism", 1, 1);
+    }
+
+    public static long getImportChunkBytes() {
+        return getLongProperty("import.chunkBytes", 1 << 20, 1);
+    }
+
+    public static int getExportFetchSize() {
+        return getIntProperty("export.fetchSize", 1000, 1);
+    }
+
+    public static String getExportWatermarkFile() {
+        return getProperty("export.watermarkFile", "export.watermark");
+    }
+
+    public static long getExportDeltaOverlapMillis() {
+        return getLongProperty("export.deltaOverlapMs", 60000, 0);
+    }
+
+    public static long getExportTombstoneRetentionMillis() {
+        return getLongProperty("export.tombstoneRetentionDays", 30, 1) * 24 * 60 * 60_000L;
+    }
+
+    public static boolean isEventsEnabled() {
+        return getBooleanProperty("events.enabled", true);
+    }
+
+    public static String getEventsDir() {
+        return getProperty("events.dir", "events");
+    }
+
+    public static int getEventsQueueSize() {
+        return getIntProperty("events.queueSize", 10000, 1);
+    }
+
+    public static int getEventsBatchSize() {
+        return getIntProperty("events.batchSize", 256, 1);
+    }
+
+    public static int getEventsSubscriberBacklog() {
+        return getIntProperty("events.subscriberBacklog", 64, 1);
+    }
+
+    public static long getEventsSegmentBytes() {
+        return getLongProperty("events.segmentBytes", 64L << 20, 1);
+    }
+
+    public static boolean isEventsForceOnWrite() {
+        return getBooleanProperty("events.forceOnWrite", false);
+    }
+
+    public static boolean isReorderEnabled() {
+        return getBooleanProperty("reorder.enabled", true);
+    }
+
+    public static String getReorderNotifier() {
+        return getProperty("reorder.notifier", "console");
+    }
+
+    public static String getReorderAlertFile() {
+        return getProperty("reorder.alertFile", "reorder-alerts.log");
+    }
+
+    public static boolean isSearchEnabled() {
+        return getBooleanProperty("search.enabled", true);
+    }
+
+    public static int getCacheMaxSize() {
+        return getIntProperty("cache.maxSize", 10000, 0);
+    }
+
+    public static long getCacheTtlMillis() {
+        return getLongProperty("cache.ttlSeconds", 0, 0) * 1000L;
+    }
+
+    public static int getStockLockStripes() {
+        return getIntProperty("stock.lockStripes", 64, 1);
+    }
+
+    public static String getHttpHost() {
+        return getProperty("http.host", "127.0.0.1");
+    }
+
+    public static int getHttpPort() {
+        return getIntProperty("http.port", 8080, 0, 65535);
+    }
+
+    public static int getHttpMaxThreads() {
+        return getIntProperty("http.maxThreads", 200, 1);
+    }
+
+    public static int getQueryPageSize() {
+        return getIntProperty("query.pageSize", 50, 1);
+    }
+
+    public static int getQueryMaxPageSize() {
+        return getIntProperty("query.maxPageSize", 500, 1);
+    }
+
+    public static boolean isHttpSessionRequired() {
+        return getBooleanProperty("http.requireSession", false);
+    }
+
+    public static int getAuthPbkdf2Iterations() {
+        return getIntProperty("auth.pbkdf2Iterations", 310000, 1);
+    }
+
+    public static long getAuthSessionTtlMillis() {
+        return getLongProperty("auth.sessionTtlMinutes", 30, 1) * 60_000L;
+    }
+
+    public static int getAuthMaxFailedAttempts() {
+        return getIntProperty("auth.maxFailedAttempts", 5, 0);
+    }
+
+    public static long getAuthLockoutMillis() {
+        return getLongProperty("auth.lockoutMinutes", 15, 0) * 60_000L;
+    }
+
+    public static boolean isMetricsEnabled() {
+        return getBooleanProperty("metrics.enabled", true);
+    }
+
+    public static String getMetricsDumpFile() {
+        return getProperty("metrics.dumpFile", "metrics.txt");
+    }
+
+    public static long getMetricsDumpIntervalSeconds() {
+        return getLongProperty("metrics.dumpIntervalSeconds", 60, 0);
+    }
+
+    public static String getLogFile() {
+        return getProperty("log.file", "application.log");
+    }
+
+    public static String getLogLevel() {
+        return getProperty("log.level", "INFO");
+    }
+
+    public static boolean isLogAsync() {
+        return getBooleanProperty("log.async", true);
+    }
+
+    public static boolean isLogConsoleEnabled() {
+        return getBooleanProperty("log.console", true);
+    }
+
+    public static int getLogQueueCapacity() {
+        return getIntProperty("log.queueCapacity", 8192, 2, 1 << 30);
+    }
+
+    public static String getLogOverflowPolicy() {
+        return getProperty("log.overflowPolicy", "BLOCK");
+    }
+
+    public static int getLogSampleRate() {
+        return getIntProperty("log.sampleRate", 100, 1);
+    }
+
+    public static long getLogMaxFileBytes() {
+        return getLongProperty("log.maxFileBytes", 10L * 1024 * 1024, 0);
+    }
+
+    public static long getLogRotateMinutes() {
+        return getLongProperty("log.rotateMinutes", 0, 0);
     }
 
     public static String getAppName() {
-        return properties.getProperty("app.name");
+        return getProperty("app.name", null);
     }
 
     public static String getAppVersion() {
-        return properties.getProperty("app.version");
+        return getProperty("app.version", null);
+    }
+
+    /**
+     * Re-reads the configuration file and makes it the settings in effect,
+     * then tells the listeners what changed. If the file cannot be read the
+     * current settings stay in effect.
+     * @return the keys whose values changed
+     */
+    public static synchronized Set<String> reload() {
+        Snapshot next;
+        try {
+            next = new Snapshot(readFile());
+        } catch (IOException e) {
+            Logger.error("Could not reload " + configFile + ", keeping the current settings: " + e);
+            return Collections.emptySet();
+        }
+        Set<String> changed = current.changedKeys(next);
+        current = next;
+        if (!changed.isEmpty()) {
+            Logger.info("Configuration reloaded from " + configFile + ", changed: " + changed);
+            for (ChangeListener listener : listeners) {
+                try {
+                    listener.configChanged(changed);
+                } catch (RuntimeException e) {
+                    Logger.error("Configuration listener failed: " + e);
+                }
+            }
+        }
+        return changed;
+    }
+
+    public static void addListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public static void removeListener(ChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Starts a daemon thread that reloads the configuration file whenever it
+     * changes, unless config.watch is false. Later calls do nothing.
+     */
+    public static synchronized void startWatching() {
+        if (watcher != null || !getBooleanProperty("config.watch", true)) {
+            return;
+        }
+        Path dir = configFile.toAbsolutePath().getParent();
+        WatchService service;
+        try {
+            service = dir.getFileSystem().newWatchService();
+            dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            Logger.error("Cannot watch " + configFile + " for changes, settings will not be reloaded: " + e);
+            return;
+        }
+        watcher = new Thread(() -> watch(service), "config-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+        Logger.info("Watching " + configFile + " for configuration changes");
+    }
+
+    private static void watch(WatchService service) {
+        Path name = configFile.getFileName();
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    changed |= event.kind() == StandardWatchEventKinds.OVERFLOW || name.equals(event.context());
+                }
+                if (!key.reset()) {
+                    Logger.error("Stopped watching " + configFile + ": its directory is no longer accessible");
+                    return;
+                }
+                if (changed) {
+                    Thread.sleep(RELOAD_SETTLE_MILLIS);
+                    for (WatchKey more = service.poll(); more != null; more = service.poll()) {
+                        more.pollEvents();
+                        more.reset();
+                    }
+                    reload();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Properties readFile() throws IOException {
+        Properties file = new Properties();
+        try (InputStream input = Files.newInputStream(configFile)) {
+            file.load(input);
+        }
+        return file;
+    }
+
+    private static String getProperty(String key, String defaultValue) {
+        String value = current.get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    private static int getIntProperty(String key, int defaultValue, int min) {
+        return getIntProperty(key, defaultValue, min, Integer.MAX_VALUE);
+    }
+
+    private static int getIntProperty(String key, int defaultValue, int min, int max) {
+        Snapshot snapshot = current;
+        Object cached = snapshot.cached(key);
+        if (cached != null) {
+            return (Integer) cached;
+        }
+        return snapshot.typed(key, defaultValue, value -> {
+            int parsed = Integer.parseInt(value);
+            if (parsed < min || parsed > max) {
+                throw new IllegalArgumentException(max == Integer.MAX_VALUE ? "must be at least " + min
+                        : "must be between " + min + " and " + max);
+            }
+            return parsed;
+        });
+    }
+
+    private static long getLongProperty(String key, long defaultValue, long min) {
+        Snapshot snapshot = current;
+        Object cached = snapshot.cached(key);
+        if (cached != null) {
+            return (Long) cached;
+        }
+        return snapshot.typed(key, defaultValue, value -> {
+            long parsed = Long.parseLong(value);
+            if (parsed < min) {
+                throw new IllegalArgumentException("must be at least " + min);
+            }
+            return parsed;
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> getListProperty(String key) {
+        Snapshot snapshot = current;
+        Object cached = snapshot.cached(key);
+        if (cached != null) {
+            return (List<String>) cached;
+        }
+        return snapshot.typed(key, Collections.emptyList(), value -> {
+            List<String> items = new ArrayList<>();
+            for (String item : value.split(",")) {
+                if (!item.trim().isEmpty()) {
+                    items.add(item.trim());
+                }
+            }
+            return Collections.unmodifiableList(items);
+        });
+    }
+
+    private static boolean getBooleanProperty(String key, boolean defaultValue) {
+        Snapshot snapshot = current;
+        Object cached = snapshot.cached(key);
+        if (cached != null) {
+            return (Boolean) cached;
+        }
+        return snapshot.typed(key, defaultValue, value -> {
+            if (value.equalsIgnoreCase("true")) {
+                return true;
+            }
+            if (value.equalsIgnoreCase("false")) {
+                return false;
+            }
+            throw new IllegalArgumentException("must be true or false");
+        });
+    }
+
+    /**
+     * One immutable set of settings. Raw values are resolved, and typed values
+     * parsed, on first use and kept; a key is always read with the same type
+     * and default, so one cached value per key is enough.
+     */
+    private static final class Snapshot {
+        private static final Object MISSING = new Object();
+
+        private final Properties file;
+        private final Map<String, String> environment = new HashMap<>();
+        private final Properties system;
+        private final ConcurrentHashMap<String, Object> raw = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, Object> typed = new ConcurrentHashMap<>();
+
+        Snapshot(Properties file) {
+            this.file = file;
+            this.system = (Properties) System.getProperties().clone();
+            for (Map.Entry<String, String> variable : System.getenv().entrySet()) {
+                if (variable.getKey().startsWith(ENV_PREFIX)) {
+                    environment.put(variable.getKey(), variable.getValue());
+                }
+            }
+        }
+
+        String get(String key) {
+            Object value = raw.get(key);
+            if (value == null) {
+                value = resolve(key);
+                raw.put(key, value == null ? MISSING : value);
+            }
+            return value == MISSING ? null : (String) value;
+        }
+
+        /**
+         * @return the value already parsed for key, or null; lets getters skip building a parser
+         */
+        Object cached(String key) {
+            return typed.get(key);
+        }
+
+        <T> T typed(String key, T defaultValue, Function<String, T> parser) {
+            T value = parse(key, defaultValue, parser);
+            typed.put(key, value);
+            return value;
+        }
+
+        private <T> T parse(String key, T defaultValue, Function<String, T> parser) {
+            String value = get(key);
+            if (value == null || value.trim().isEmpty()) {
+                return defaultValue;
+            }
+            try {
+                return parser.apply(value.trim());
+            } catch (IllegalArgumentException e) {
+                String reason = e instanceof NumberFormatException ? "not a number" : e.getMessage();
+                System.err.println("Invalid value for " + key + ": " + value + " (" + reason + "), using default "
+                        + defaultValue);
+                return defaultValue;
+            }
+        }
+
+        private String resolve(String key) {
+            String value = system.getProperty(key);
+            if (value == null) {
+                value = environment.get(ENV_PREFIX + key.toUpperCase().replace('.', '_'));
+            }
+            return value != null ? value : file.getProperty(key);
+        }
+
+        /**
+         * @return the keys in either file, or read from this snapshot, whose value differs in next
+         */
+        Set<String> changedKeys(Snapshot next) {
+            Set<String> keys = new TreeSet<>(file.stringPropertyNames());
+            keys.addAll(next.file.stringPropertyNames());
+            keys.addAll(raw.keySet());
+            keys.removeIf(key -> Objects.equals(resolve(key), next.resolve(key)));
+            return keys;
+        }
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,395 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded JDBC connection pool used by {@link DatabaseConnector}.
+ * Connections handed out are proxies whose close() returns the physical
+ * connection to the pool, so existing try-with-resources blocks keep working.
+ * A background thread opens connections up to minIdle at start and tops the
+ * pool back up after closing connections that sat idle too long.
+ */
+public class ConnectionPool {
+    // Connections returned more recently than this are handed out without a validation round trip
+    private static final long VALIDATION_SKIP_MILLIS = 500;
+    private static final OperationTimer ACQUIRE_TIMER = Metrics.timer("db.acquire");
+    private static final OperationTimer CONNECT_TIMER = Metrics.timer("db.connect");
+
+    private final String url;
+    private final Properties connectionProperties;
+    private volatile int maxSize;
+    private final int minIdle;
+    private volatile long acquireTimeoutMillis;
+    private final long idleTimeoutMillis;
+    private final int validationTimeoutSeconds;
+
+    // LIFO so the most recently used (warmest) connection is handed out first
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final Permits permits;
+    private final ScheduledExecutorService evictor;
+    private volatile boolean closed;
+
+    // Metrics
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger total = new AtomicInteger();
+    private final LongAdder acquireCount = new LongAdder();
+    private final LongAdder acquireWaitNanos = new LongAdder();
+    private final LongAdder acquireTimeouts = new LongAdder();
+    private final LongAdder connectionsCreated = new LongAdder();
+    private final LongAdder connectionsClosed = new LongAdder();
+
+    public ConnectionPool(String url, String username, String password, int maxSize, int minIdle,
+                          long acquireTimeoutMillis, long idleTimeoutMillis, int validationTimeoutSeconds,
+                          int prepStmtCacheSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Pool size must be positive: " + maxSize);
+        }
+        this.url = url;
+        this.maxSize = maxSize;
+        this.minIdle = Math.min(Math.max(minIdle, 0), maxSize);
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.validationTimeoutSeconds = validationTimeoutSeconds;
+        this.permits = new Permits(maxSize);
+
+        connectionProperties = new Properties();
+        if (username != null) {
+            connectionProperties.setProperty("user", username);
+        }
+        if (password != null) {
+            connectionProperties.setProperty("password", password);
+        }
+        boolean mysql = url != null && url.startsWith("jdbc:mysql:");
+        if (mysql) {
+            // Lets the driver collapse addBatch()/executeBatch() into multi-row INSERTs
+            connectionProperties.setProperty("rewriteBatchedStatements", "true");
+            // Statements with a positive fetch size stream through a server-side cursor
+            connectionProperties.setProperty("useCursorFetch", "true");
+        }
+        if (mysql && prepStmtCacheSize > 0) {
+            // Server-side prepared statements, cached per physical connection
+            connectionProperties.setProperty("useServerPrepStmts", "true");
+            connectionProperties.setProperty("cachePrepStmts", "true");
+            connectionProperties.setProperty("prepStmtCacheSize", String.valueOf(prepStmtCacheSize));
+            connectionProperties.setProperty("prepStmtCacheSqlLimit", "2048");
+        }
+
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "connection-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, idleTimeoutMillis / 2);
+        evictor.execute(this::fillIdle);
+        evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Borrows a connection, waiting up to the configured acquire timeout.
+     * @return a pooled connection; closing it returns it to the pool
+     * @throws SQLException if the pool is exhausted or a connection cannot be opened
+     */
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        long start = System.nanoTime();
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+        acquireWaitNanos.add(System.nanoTime() - start);
+        acquireCount.increment();
+        if (!acquired) {
+            acquireTimeouts.increment();
+            ACQUIRE_TIMER.error();
+            throw new SQLException("Timed out after " + acquireTimeoutMillis
+                    + " ms waiting for a database connection (pool size " + maxSize + ")");
+        }
+
+        try {
+            PooledConnection pooled = takeIdle();
+            if (pooled == null) {
+                pooled = new PooledConnection(openPhysical());
+            }
+            active.incrementAndGet();
+            Connection lease = pooled.lease();
+            ACQUIRE_TIMER.stop(start);
+            return lease;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            ACQUIRE_TIMER.error();
+            throw e;
+        }
+    }
+
+    private PooledConnection takeIdle() {
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            long idleFor = System.currentTimeMillis() - pooled.lastReturned;
+            if (idleFor > idleTimeoutMillis
+                    || (idleFor > VALIDATION_SKIP_MILLIS && !isHealthy(pooled.physical))) {
+                closePhysical(pooled.physical);
+                continue;
+            }
+            return pooled;
+        }
+        return null;
+    }
+
+    private boolean isHealthy(Connection connection) {
+        try {
+            return connection.isValid(validationTimeoutSeconds);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private Connection openPhysical() throws SQLException {
+        long start = Metrics.start();
+        Connection connection;
+        try {
+            connection = DriverManager.getConnection(url, connectionProperties);
+        } catch (SQLException e) {
+            CONNECT_TIMER.error();
+            throw e;
+        }
+        CONNECT_TIMER.stop(start);
+        total.incrementAndGet();
+        connectionsCreated.increment();
+        return connection;
+    }
+
+    private void closePhysical(Connection connection) {
+        total.decrementAndGet();
+        connectionsClosed.increment();
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            System.err.println("Error closing pooled connection: " + e.getMessage());
+        }
+    }
+
+    private void release(PooledConnection pooled) {
+        active.decrementAndGet();
+        try {
+            // A pool that has been shrunk closes connections as they come back until it fits
+            if (closed || pooled.physical.isClosed() || total.get() > maxSize) {
+                closePhysical(pooled.physical);
+                return;
+            }
+            // Leave the connection in the state the next borrower expects
+            if (!pooled.physical.getAutoCommit()) {
+                pooled.physical.rollback();
+                pooled.physical.setAutoCommit(true);
+            }
+            pooled.physical.clearWarnings();
+            pooled.lastReturned = System.currentTimeMillis();
+            idle.offerFirst(pooled);
+        } catch (SQLException e) {
+            closePhysical(pooled.physical);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        Iterator<PooledConnection> it = idle.descendingIterator();
+        while (it.hasNext() && idle.size() > Math.min(minIdle, maxSize)) {
+            PooledConnection pooled = it.next();
+            if (now - pooled.lastReturned > idleTimeoutMillis && idle.removeFirstOccurrence(pooled)) {
+                closePhysical(pooled.physical);
+            }
+        }
+        fillIdle();
+    }
+
+    /**
+     * Opens connections until minIdle are idle, without going over the pool
+     * size. If the database cannot be reached it tries again on the next run.
+     */
+    private void fillIdle() {
+        while (!closed && idle.size() < Math.min(minIdle, maxSize) && total.get() < maxSize) {
+            PooledConnection pooled;
+            try {
+                pooled = new PooledConnection(openPhysical());
+            } catch (SQLException e) {
+                System.err.println("Could not open an idle pooled connection: " + e.getMessage());
+                return;
+            }
+            idle.offerLast(pooled);
+            // close() may have drained the idle queue while this connection was opening
+            if (closed && idle.remove(pooled)) {
+                closePhysical(pooled.physical);
+            }
+        }
+    }
+
+    /**
+     * Changes how many connections may be in use at once. When shrinking,
+     * callers wait until enough connections in use have been returned, and
+     * idle connections beyond the new size are closed.
+     */
+    public synchronized void setMaxSize(int newMaxSize) {
+        if (newMaxSize <= 0) {
+            throw new IllegalArgumentException("Pool size must be positive: " + newMaxSize);
+        }
+        int change = newMaxSize - maxSize;
+        if (change > 0) {
+            permits.release(change);
+        } else if (change < 0) {
+            permits.reduce(-change);
+            PooledConnection pooled;
+            while (idle.size() > newMaxSize && (pooled = idle.pollLast()) != null) {
+                closePhysical(pooled.physical);
+            }
+        }
+        maxSize = newMaxSize;
+    }
+
+    public void setAcquireTimeoutMillis(long acquireTimeoutMillis) {
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Closes all idle connections and stops handing out new ones.
+     * Connections still in use are closed when they are returned.
+     */
+    public void close() {
+        closed = true;
+        evictor.shutdownNow();
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            closePhysical(pooled.physical);
+        }
+    }
+
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public int getTotalCount() {
+        return total.get();
+    }
+
+    public long getAcquireCount() {
+        return acquireCount.sum();
+    }
+
+    public long getAcquireTimeoutCount() {
+        return acquireTimeouts.sum();
+    }
+
+    public double getAverageWaitMillis() {
+        long count = acquireCount.sum();
+        return count == 0 ? 0.0 : acquireWaitNanos.sum() / (count * 1_000_000.0);
+    }
+
+    public String getStats() {
+        return String.format("active=%d idle=%d total=%d max=%d acquired=%d timeouts=%d avgWait=%.3fms created=%d closed=%d",
+                getActiveCount(), getIdleCount(), getTotalCount(), maxSize, getAcquireCount(),
+                getAcquireTimeoutCount(), getAverageWaitMillis(), connectionsCreated.sum(), connectionsClosed.sum());
+    }
+
+    // Exposes reducePermits so the pool can shrink without waiting for connections to come back
+    private static final class Permits extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        Permits(int permits) {
+            super(permits, true);
+        }
+
+        void reduce(int reduction) {
+            reducePermits(reduction);
+        }
+    }
+
+    /**
+     * A physical connection owned by the pool. Each lease hands out a fresh proxy
+     * so a stale reference from a previous borrower cannot touch the connection.
+     */
+    private class PooledConnection {
+        final Connection physical;
+        volatile long lastReturned = System.currentTimeMillis();
+
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+        }
+
+        Connection lease() {
+            return (Connection) Proxy.newProxyInstance(
+                    ConnectionPool.class.getClassLoader(),
+                    new Class<?>[] { Connection.class },
+                    new LeaseHandler(this));
+        }
+    }
+
+    private class LeaseHandler implements InvocationHandler {
+        private final PooledConnection pooled;
+        private volatile boolean returned;
+
+        LeaseHandler(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    synchronized (this) {
+                        if (!returned) {
+                            returned = true;
+                            release(pooled);
+                        }
+                    }
+                    return null;
+                case "isClosed":
+                    return returned || pooled.physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled[" + pooled.physical + "]";
+                default:
+                    if (returned) {
+                        throw new SQLException("Connection has already been returned to the pool");
+                    }
+                    try {
+                        return method.invoke(pooled.physical, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cuts a CSV file into byte ranges that each hold whole records, so the
+ * ranges can be parsed independently. A range always ends just after a line
+ * break that is outside any quoted field; the quote rules are the same as
+ * {@link CsvCodec#parseLine(String)}, where a quote only opens a quoted field
+ * at the start of the field. Line breaks and quotes are single bytes that
+ * never occur inside a multi-byte UTF-8 character, so the scan works on raw bytes.
+ */
+public class CsvChunkSplitter {
+    private static final int SCAN_BUFFER_SIZE = 1 << 20;
+
+    /**
+     * A byte range of the file and the line number of its first line.
+     */
+    public static class Chunk {
+        private final int index;
+        private final long start;
+        private final long end;
+        private final long firstLine;
+
+        Chunk(int index, long start, long end, long firstLine) {
+            this.index = index;
+            this.start = start;
+            this.end = end;
+            this.firstLine = firstLine;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+
+        public long getFirstLine() {
+            return firstLine;
+        }
+
+        /**
+         * Streams the bytes of this chunk with positional reads, so several
+         * chunks can be read from the same channel at once.
+         */
+        public InputStream open(FileChannel channel) {
+            return new RangeInputStream(channel, start, end);
+        }
+    }
+
+    /**
+     * Splits the file into chunks of roughly targetBytes each, in file order.
+     * A record longer than targetBytes makes its chunk longer; an unterminated
+     * quote makes the rest of the file one chunk.
+     */
+    public static List<Chunk> split(FileChannel channel, long targetBytes) throws IOException {
+        if (targetBytes <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + targetBytes);
+        }
+        long size = channel.size();
+        List<Chunk> chunks = new ArrayList<>((int) Math.min(size / targetBytes + 1, Integer.MAX_VALUE));
+        ByteBuffer buffer = ByteBuffer.allocateDirect(SCAN_BUFFER_SIZE);
+        long chunkStart = 0;
+        long chunkFirstLine = 1;
+        long lines = 0;
+        boolean quoted = false;
+        boolean quotePending = false;
+        boolean fieldStarted = false;
+        long position = 0;
+
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            buffer.flip();
+            for (int i = 0; i < read; i++) {
+                byte b = buffer.get(i);
+                if (b == '\n') {
+                    lines++;
+                }
+                if (quotePending) {
+                    quotePending = false;
+                    if (b == '"') {
+                        // Doubled quote inside a quoted field
+                        fieldStarted = true;
+                        continue;
+                    }
+                    quoted = false;
+                }
+                if (quoted) {
+                    if (b == '"') {
+                        quotePending = true;
+                    } else {
+                        fieldStarted = true;
+                    }
+                } else if (b == '"' && !fieldStarted) {
+                    quoted = true;
+                } else if (b == ',') {
+                    fieldStarted = false;
+                } else if (b == '\n') {
+                    fieldStarted = false;
+                    long end = position + i + 1;
+                    if (end - chunkStart >= targetBytes) {
+                        chunks.add(new Chunk(chunks.size(), chunkStart, end, chunkFirstLine));
+                        chunkStart = end;
+                        chunkFirstLine = lines + 1;
+                    }
+                } else {
+                    fieldStarted = true;
+                }
+            }
+            position += read;
+        }
+        if (chunkStart < size) {
+            chunks.add(new Chunk(chunks.size(), chunkStart, size, chunkFirstLine));
+        }
+        return chunks;
+    }
+
+    private static class RangeInputStream extends InputStream {
+        private final FileChannel channel;
+        private final long end;
+        private long position;
+
+        RangeInputStream(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int wanted = (int) Math.min(length, end - position);
+            int read = channel.read(ByteBuffer.wrap(bytes, offset, wanted), position);
+            if (read < 0) {
+                return -1;
+            }
+            position += read;
+            return read;
+        }
+    }
+}
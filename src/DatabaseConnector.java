@@ -1,18 +1,45 @@
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 public class DatabaseConnector {
+    private static volatile ConnectionPool pool;
+    // Every pool from newPool, the shared one and the warehouse shards', until it is closed
+    private static final Set<ConnectionPool> pools = new CopyOnWriteArraySet<>();
+
+    static {
+        // The pools' size and wait can change while they run; the other settings need a restart
+        ConfigManager.addListener(changed -> {
+            pools.removeIf(ConnectionPool::isClosed);
+            if (pools.isEmpty()) {
+                return;
+            }
+            if (changed.contains("db.pool.maxSize")) {
+                int maxSize = ConfigManager.getPoolMaxSize();
+                for (ConnectionPool current : pools) {
+                    current.setMaxSize(maxSize);
+                }
+                Logger.info("Connection pool size set to " + maxSize);
+            }
+            if (changed.contains("db.pool.acquireTimeoutMs")) {
+                long acquireTimeoutMillis = ConfigManager.getPoolAcquireTimeoutMillis();
+                for (ConnectionPool current : pools) {
+                    current.setAcquireTimeoutMillis(acquireTimeoutMillis);
+                }
+            }
+        });
+    }
+
+    /**
+     * Borrows a connection from the shared pool. Closing the returned
+     * connection hands it back to the pool instead of closing the socket.
+     * @return a pooled connection, or null if none could be obtained
+     */
     public static Connection connect() {
         Connection connection = null;
         try {
-            Class.forName("com.mysql.cj.jdbc.Driver");
-            connection = DriverManager.getConnection(
-                ConfigManager.getDatabaseUrl(),
-                ConfigManager.getDatabaseUsername(),
-                ConfigManager.getDatabasePassword()
-            );
-            System.out.println("Connected to the database successfully.");
+            connection = getPool().getConnection();
         } catch (SQLException e) {
             System.err.println("Database connection failed: " + e.getMessage());
             e.printStackTrace();
@@ -22,6 +49,63 @@ public class DatabaseConnector {
         return connection;
     }
 
+    public static ConnectionPool getPool() throws ClassNotFoundException {
+        ConnectionPool current = pool;
+        if (current == null) {
+            synchronized (DatabaseConnector.class) {
+                current = pool;
+                if (current == null) {
+                    current = newPool(ConfigManager.getDatabaseUrl(), ConfigManager.getDatabaseUsername(),
+                            ConfigManager.getDatabasePassword());
+                    Runtime.getRuntime().addShutdownHook(new Thread(current::close, "connection-pool-shutdown"));
+                    ConnectionPool registered = current;
+                    Metrics.gauge("pool.active", registered::getActiveCount);
+                    Metrics.gauge("pool.idle", registered::getIdleCount);
+                    Metrics.gauge("pool.total", registered::getTotalCount);
+                    Metrics.gauge("pool.acquireTimeouts", registered::getAcquireTimeoutCount);
+                    pool = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Creates a pool for another database with the db.pool.* settings, as
+     * used for warehouse shards. The caller closes it. Reloaded pool size and
+     * acquire timeout settings apply to it as they do to the shared pool.
+     * @throws ClassNotFoundException if the URL is for MySQL and its driver is missing
+     */
+    public static ConnectionPool newPool(String url, String username, String password) throws ClassNotFoundException {
+        // Other drivers register themselves through JDBC 4 service loading
+        if (url != null && url.startsWith("jdbc:mysql:")) {
+            Class.forName("com.mysql.cj.jdbc.Driver");
+        }
+        ConnectionPool created = new ConnectionPool(
+            url,
+            username,
+            password,
+            ConfigManager.getPoolMaxSize(),
+            ConfigManager.getPoolMinIdle(),
+            ConfigManager.getPoolAcquireTimeoutMillis(),
+            ConfigManager.getPoolIdleTimeoutMillis(),
+            ConfigManager.getPoolValidationTimeoutSeconds(),
+            ConfigManager.getPoolPrepStmtCacheSize()
+        );
+        pools.add(created);
+        return created;
+    }
+
+    /**
+     * Closes the shared pool. The next call to {@link #connect()} creates a new one.
+     */
+    public static synchronized void shutdown() {
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
+    }
+
     public static void main(String[] args) {
         Connection connection = null;
         try {
@@ -35,11 +119,15 @@ public class DatabaseConnector {
             if (connection != null) {
                 try {
                     connection.close();
-                    System.out.println("Database connection closed after test.");
+                    System.out.println("Database connection returned to the pool after test.");
                 } catch (SQLException e) {
                     System.out.println("Error closing the connection: " + e.getMessage());
                 }
             }
+            if (pool != null) {
+                System.out.println("Pool stats: " + pool.getStats());
+            }
+            shutdown();
         }
     }
 }
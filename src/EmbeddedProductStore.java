@@ -0,0 +1,845 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Keeps products in local files, for sites without a database server.
+ * <p>
+ * Every change is first appended to products.log, a memory-mapped file of
+ * checksummed records, and then applied to in-memory indexes by name and by
+ * id. Reads only touch the indexes. A record holds the complete new state of
+ * each product it changes, so replaying the log at startup rebuilds the
+ * indexes, and a record torn by a crash fails its checksum and ends the replay.
+ * <p>
+ * Once the log grows past compactBytes, all products are written to
+ * products.snapshot and the log starts again from the beginning under the
+ * next generation number. Replay stops at the first record from another
+ * generation, so leftover records from before the snapshot are never applied.
+ * <p>
+ * Each applied change takes the next change sequence number, which doubles
+ * as the watermark for {@link #scanChanges}. Replay applies the changes in
+ * their original order and so gives them the same numbers again, so only
+ * the snapshot needs to store them, together with the tombstones of deleted
+ * and renamed-away names.
+ */
+public class EmbeddedProductStore implements ProductStore {
+    private static final String SNAPSHOT_FILE = "products.snapshot";
+    private static final String LOG_FILE = "products.log";
+    private static final int SNAPSHOT_MAGIC = 0x494d5353; // "IMSS"
+    private static final int SNAPSHOT_VERSION = 3;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    // A PUT followed by the reorder level; plain PUT records mean a level of 0
+    private static final byte PUT_WITH_REORDER_LEVEL = 3;
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final long INITIAL_LOG_BYTES = 1 << 20;
+    private static final long MAX_COMPACT_BYTES = 1 << 30;
+
+    private final Path directory;
+    private final long compactBytes;
+    private final boolean forceOnWrite;
+    private final ConcurrentHashMap<String, Entry> byName = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Long, Entry> byId = new ConcurrentSkipListMap<>();
+    private final ConcurrentHashMap<String, Long> tombstones = new ConcurrentHashMap<>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final RecordBuffer record = new RecordBuffer();
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private final CRC32 crc = new CRC32();
+
+    private FileChannel logChannel;
+    private FileLock fileLock;
+    private MappedByteBuffer log;
+    private int logPosition;
+    private long generation;
+    private long nextId = 1;
+    // Written after the change is visible in the indexes, so a reader that sees it also sees the change
+    private volatile long lastChangeSeq;
+    private boolean closed;
+
+    /**
+     * The stored state of one product. Never modified; a change replaces the entry.
+     */
+    private static final class Entry {
+        final long id;
+        final String name;
+        final String description;
+        final double price;
+        final int quantity;
+        final int reorderLevel;
+        final long changeSeq;
+
+        Entry(long id, String name, String description, double price, int quantity, int reorderLevel) {
+            this(id, name, description, price, quantity, reorderLevel, 0);
+        }
+
+        Entry(long id, String name, String description, double price, int quantity, int reorderLevel,
+              long changeSeq) {
+            this.id = id;
+            this.name = name;
+            this.description = description;
+            this.price = price;
+            this.quantity = quantity;
+            this.reorderLevel = reorderLevel;
+            this.changeSeq = changeSeq;
+        }
+
+        Entry withQuantity(int newQuantity) {
+            return new Entry(id, name, description, price, newQuantity, reorderLevel);
+        }
+
+        Entry withReorderLevel(int newReorderLevel) {
+            return new Entry(id, name, description, price, quantity, newReorderLevel);
+        }
+
+        Entry withChangeSeq(long seq) {
+            return new Entry(id, name, description, price, quantity, reorderLevel, seq);
+        }
+
+        Product toProduct(boolean withDescription) {
+            return new Product(name, withDescription ? description : null, price, quantity);
+        }
+    }
+
+    /**
+     * A decoded log entry: a product's new state (and the name it had before,
+     * if it was renamed), or the name of a deleted product.
+     */
+    private static final class Change {
+        final Entry entry;
+        final String previousName;
+        final String deletedName;
+
+        Change(Entry entry, String previousName, String deletedName) {
+            this.entry = entry;
+            this.previousName = previousName;
+            this.deletedName = deletedName;
+        }
+    }
+
+    // Exposes the bytes written so far without copying them
+    private static final class RecordBuffer extends ByteArrayOutputStream {
+        RecordBuffer() {
+            super(4096);
+        }
+
+        ByteBuffer view() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    /**
+     * Opens (or creates) the store in the given directory, loading the
+     * snapshot and replaying the log. Only one process may open a directory at a time.
+     * @param compactBytes log size that triggers a new snapshot
+     * @param forceOnWrite flush every change to disk before returning; without
+     *                     it a process crash loses nothing, but an OS crash or
+     *                     power loss can lose the most recent changes
+     */
+    public EmbeddedProductStore(Path directory, long compactBytes, boolean forceOnWrite) throws SQLException {
+        if (compactBytes <= 0 || compactBytes > MAX_COMPACT_BYTES) {
+            throw new IllegalArgumentException("Compaction size must be between 1 and " + MAX_COMPACT_BYTES
+                    + ": " + compactBytes);
+        }
+        this.directory = directory;
+        this.compactBytes = compactBytes;
+        this.forceOnWrite = forceOnWrite;
+
+        long start = System.nanoTime();
+        try {
+            Files.createDirectories(directory);
+            logChannel = FileChannel.open(directory.resolve(LOG_FILE),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                fileLock = logChannel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                fileLock = null;
+            }
+            if (fileLock == null) {
+                logChannel.close();
+                throw new SQLException("Storage directory is already in use: " + directory);
+            }
+            loadSnapshot();
+            log = logChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(logChannel.size(), INITIAL_LOG_BYTES));
+            int replayed = replayLog();
+            Logger.info(String.format("Embedded storage opened in %.1f ms: %d products, %d log records replayed",
+                    (System.nanoTime() - start) / 1_000_000.0, byName.size(), replayed));
+        } catch (IOException e) {
+            closeQuietly();
+            throw new SQLException("Could not open storage in " + directory + ": " + e.getMessage(), e);
+        } catch (SQLException | RuntimeException e) {
+            closeQuietly();
+            throw e;
+        }
+    }
+
+    @Override
+    public Product find(String name) {
+        Entry entry = byName.get(name);
+        return entry == null ? null : entry.toProduct(true);
+    }
+
+    @Override
+    public boolean insert(Product product) throws SQLException {
+        writeLock.lock();
+        try {
+            checkOpen();
+            if (byName.containsKey(product.getName())) {
+                return false;
+            }
+            Entry entry = new Entry(nextId, product.getName(), product.getDescription(),
+                    product.getPrice(), product.getQuantity(), 0);
+            beginRecord();
+            writePut(entry, null);
+            commitRecord();
+            applyPut(entry, null);
+            compactIfNeeded();
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public Product delete(String name) throws SQLException {
+        writeLock.lock();
+        try {
+            checkOpen();
+            Entry current = byName.get(name);
+            if (current == null) {
+                return null;
+            }
+            beginRecord();
+            writeDelete(name);
+            commitRecord();
+            applyDelete(name);
+            compactIfNeeded();
+            return current.toProduct(true);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean update(String currentName, Product updated, int expectedQuantity) throws SQLException {
+        writeLock.lock();
+        try {
+            checkOpen();
+            Entry current = byName.get(currentName);
+            if (current == null || current.quantity != expectedQuantity) {
+                return false;
+            }
+            if (!updated.getName().equals(currentName) && byName.containsKey(updated.getName())) {
+                throw new SQLIntegrityConstraintViolationException("Product already exists: " + updated.getName());
+            }
+            Entry entry = new Entry(current.id, updated.getName(), updated.getDescription(),
+                    updated.getPrice(), updated.getQuantity(), current.reorderLevel);
+            beginRecord();
+            writePut(entry, currentName);
+            commitRecord();
+            applyPut(entry, currentName);
+            compactIfNeeded();
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public Product adjustQuantity(String name, int delta) throws SQLException {
+        writeLock.lock();
+        try {
+            checkOpen();
+            Entry current = byName.get(name);
+            if (current == null) {
+                return null;
+            }
+            long quantity = (long) current.quantity + delta;
+            if (quantity < 0 || quantity > Integer.MAX_VALUE) {
+                return null;
+            }
+            Entry entry = current.withQuantity((int) quantity);
+            beginRecord();
+            writePut(entry, null);
+            commitRecord();
+            applyPut(entry, null);
+            compactIfNeeded();
+            return entry.toProduct(true);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public List<Product> reserve(Map<String, Integer> quantities) throws SQLException {
+        writeLock.lock();
+        try {
+            checkOpen();
+            List<Entry> changed = new ArrayList<>(quantities.size());
+            for (Map.Entry<String, Integer> item : quantities.entrySet()) {
+                Entry current = byName.get(item.getKey());
+                if (item.getValue() == null || item.getValue() <= 0 || current == null
+                        || current.quantity < item.getValue()) {
+                    return null;
+                }
+                changed.add(current.withQuantity(current.quantity - item.getValue()));
+            }
+            // One record for the whole reservation, so replay applies all of it or none
+            beginRecord();
+            for (Entry entry : changed) {
+                writePut(entry, null);
+            }
+            commitRecord();
+            List<Product> reserved = new ArrayList<>(changed.size());
+            for (Entry entry : changed) {
+                applyPut(entry, null);
+                reserved.add(entry.toProduct(true));
+            }
+            compactIfNeeded();
+            return reserved;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public int setReorderLevel(String name, int reorderLevel) throws SQLException {
+        writeLock.lock();
+        try {
+            checkOpen();
+            Entry current = byName.get(name);
+            if (current == null) {
+                return -1;
+            }
+            Entry entry = current.withReorderLevel(reorderLevel);
+            beginRecord();
+            writePut(entry, null);
+            commitRecord();
+            applyPut(entry, null);
+            compactIfNeeded();
+            return entry.quantity;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public long scanReorderLevels(StockLevelVisitor visitor) {
+        long rows = 0;
+        for (Entry entry : byId.values()) {
+            if (entry.reorderLevel > 0) {
+                visitor.visit(entry.name, entry.quantity, entry.reorderLevel);
+                rows++;
+            }
+        }
+        return rows;
+    }
+
+    @Override
+    public ProductQuery.Page query(ProductQuery query) {
+        int limit = query.getLimit();
+        boolean withDescription = query.isDescriptionIncluded();
+        List<Product> products = new ArrayList<>(Math.min(limit, 1024));
+        long lastId = 0;
+        boolean more = false;
+        for (Entry entry : byId.tailMap(query.getAfter(), false).values()) {
+            if (!query.matches(entry.name, entry.price, entry.quantity)) {
+                continue;
+            }
+            if (products.size() == limit) {
+                more = true;
+                break;
+            }
+            products.add(entry.toProduct(withDescription));
+            lastId = entry.id;
+        }
+        return new ProductQuery.Page(Collections.unmodifiableList(products), more ? lastId : 0);
+    }
+
+    @Override
+    public long scan(Visitor visitor) throws IOException {
+        long rows = 0;
+        for (Entry entry : byId.values()) {
+            visitor.visit(entry.toProduct(true));
+            rows++;
+        }
+        return rows;
+    }
+
+    @Override
+    public long currentWatermark() {
+        return lastChangeSeq;
+    }
+
+    /**
+     * Exact: the watermark is the last change sequence number, so nothing
+     * is visited twice across consecutive calls unless it changed again.
+     */
+    @Override
+    public long scanChanges(long since, ChangeVisitor visitor) throws IOException {
+        long watermark = lastChangeSeq;
+        for (Map.Entry<String, Long> tombstone : tombstones.entrySet()) {
+            if (tombstone.getValue() > since) {
+                visitor.deleted(tombstone.getKey());
+            }
+        }
+        for (Entry entry : byId.values()) {
+            if (entry.changeSeq > since) {
+                visitor.visit(entry.toProduct(true));
+            }
+        }
+        return watermark;
+    }
+
+    @Override
+    public String[] importBatch(List<Product> products, boolean upsert) throws SQLException {
+        String[] rejected = new String[products.size()];
+        writeLock.lock();
+        try {
+            checkOpen();
+            Map<String, Entry> staged = new LinkedHashMap<>();
+            long id = nextId;
+            for (int i = 0; i < products.size(); i++) {
+                Product product = products.get(i);
+                Entry existing = staged.get(product.getName());
+                if (existing == null) {
+                    existing = byName.get(product.getName());
+                }
+                if (existing != null && !upsert) {
+                    rejected[i] = "Product already exists: " + product.getName();
+                    continue;
+                }
+                staged.put(product.getName(), new Entry(existing != null ? existing.id : id++,
+                        product.getName(), product.getDescription(), product.getPrice(), product.getQuantity(),
+                        existing != null ? existing.reorderLevel : 0));
+            }
+            if (!staged.isEmpty()) {
+                beginRecord();
+                for (Entry entry : staged.values()) {
+                    writePut(entry, null);
+                }
+                commitRecord();
+                for (Entry entry : staged.values()) {
+                    applyPut(entry, null);
+                }
+                compactIfNeeded();
+            }
+            return rejected;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public int size() {
+        return byName.size();
+    }
+
+    @Override
+    public void close() {
+        writeLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (log != null) {
+                log.force();
+            }
+            closeQuietly();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void checkOpen() throws SQLException {
+        if (closed) {
+            throw new SQLException("Storage is closed");
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            if (fileLock != null && fileLock.isValid()) {
+                fileLock.release();
+            }
+            if (logChannel != null) {
+                logChannel.close();
+            }
+        } catch (IOException e) {
+            Logger.error("Error closing embedded storage: " + e.getMessage());
+        }
+    }
+
+    private void applyPut(Entry entry, String previousName) {
+        long seq = lastChangeSeq + 1;
+        index(entry.withChangeSeq(seq), previousName);
+        lastChangeSeq = seq;
+    }
+
+    private void index(Entry entry, String previousName) {
+        // Add the new state before removing an old name, so a concurrent reader never sees neither
+        Entry replaced = byName.put(entry.name, entry);
+        tombstones.remove(entry.name);
+        if (replaced != null && replaced.id != entry.id) {
+            byId.remove(replaced.id, replaced);
+        }
+        byId.put(entry.id, entry);
+        if (previousName != null && !previousName.equals(entry.name)) {
+            Entry old = byName.get(previousName);
+            if (old != null && byName.remove(previousName, old) && old.id != entry.id) {
+                byId.remove(old.id, old);
+            }
+            tombstones.put(previousName, entry.changeSeq);
+        }
+        if (entry.id >= nextId) {
+            nextId = entry.id + 1;
+        }
+    }
+
+    private void applyDelete(String name) {
+        long seq = lastChangeSeq + 1;
+        Entry old = byName.remove(name);
+        if (old != null) {
+            byId.remove(old.id, old);
+        }
+        tombstones.put(name, seq);
+        lastChangeSeq = seq;
+    }
+
+    private void beginRecord() throws SQLException {
+        record.reset();
+        try {
+            recordOut.writeLong(generation);
+        } catch (IOException e) {
+            throw new SQLException("Could not encode change", e);
+        }
+    }
+
+    private void writePut(Entry entry, String previousName) throws SQLException {
+        try {
+            writeEntry(recordOut, entry, previousName);
+        } catch (IOException e) {
+            throw new SQLException("Could not encode change", e);
+        }
+    }
+
+    private void writeDelete(String name) throws SQLException {
+        try {
+            recordOut.writeByte(DELETE);
+            writeString(recordOut, name);
+        } catch (IOException e) {
+            throw new SQLException("Could not encode change", e);
+        }
+    }
+
+    private static void writeEntry(DataOutputStream out, Entry entry, String previousName) throws IOException {
+        out.writeByte(entry.reorderLevel == 0 ? PUT : PUT_WITH_REORDER_LEVEL);
+        out.writeLong(entry.id);
+        writeString(out, previousName);
+        writeString(out, entry.name);
+        writeString(out, entry.description);
+        out.writeDouble(entry.price);
+        out.writeInt(entry.quantity);
+        if (entry.reorderLevel != 0) {
+            out.writeInt(entry.reorderLevel);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Appends the current record to the log as [length][CRC32][payload].
+     * The length is written last, so a record cut short never looks complete.
+     */
+    private void commitRecord() throws SQLException {
+        ByteBuffer payload = record.view();
+        int length = payload.remaining();
+        crc.reset();
+        crc.update(payload.duplicate());
+        ensureLogCapacity(RECORD_HEADER_BYTES + length);
+
+        ByteBuffer target = log.duplicate();
+        target.position(logPosition + RECORD_HEADER_BYTES);
+        target.put(payload);
+        log.putInt(logPosition + 4, (int) crc.getValue());
+        log.putInt(logPosition, length);
+        logPosition += RECORD_HEADER_BYTES + length;
+        if (forceOnWrite) {
+            log.force();
+        }
+    }
+
+    // Called once a logged change has also been applied, so the snapshot includes it
+    private void compactIfNeeded() throws SQLException {
+        if (logPosition > compactBytes) {
+            compact();
+        }
+    }
+
+    private void ensureLogCapacity(int bytes) throws SQLException {
+        long required = (long) logPosition + bytes;
+        if (required <= log.capacity()) {
+            return;
+        }
+        long size = Math.max(required, (long) log.capacity() * 2);
+        if (size > Integer.MAX_VALUE) {
+            throw new SQLException("Storage log is full");
+        }
+        try {
+            log = logChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            throw new SQLException("Could not grow storage log: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Writes every product to a new snapshot under the next generation and
+     * restarts the log. The snapshot is written to a temporary file, synced
+     * and renamed over the old one, so a crash leaves either the old snapshot
+     * with its log or the new one.
+     */
+    private void compact() throws SQLException {
+        long start = System.nanoTime();
+        long newGeneration = generation + 1;
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        Path temp = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temp.toFile())) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file, 1 << 16), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(newGeneration);
+            out.writeLong(nextId);
+            out.writeLong(lastChangeSeq);
+            out.writeInt(byId.size());
+            for (Entry entry : byId.values()) {
+                writeEntry(out, entry, null);
+                out.writeLong(entry.changeSeq);
+            }
+            out.writeInt(tombstones.size());
+            for (Map.Entry<String, Long> tombstone : tombstones.entrySet()) {
+                writeString(out, tombstone.getKey());
+                out.writeLong(tombstone.getValue());
+            }
+            out.flush();
+            file.write(ByteBuffer.allocate(4).putInt((int) checked.getChecksum().getValue()).array());
+            file.getFD().sync();
+        } catch (IOException e) {
+            throw new SQLException("Could not write storage snapshot: " + e.getMessage(), e);
+        }
+        try {
+            Files.move(temp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new SQLException("Could not replace storage snapshot: " + e.getMessage(), e);
+        }
+        generation = newGeneration;
+        logPosition = 0;
+        Logger.info(String.format("Embedded storage compacted %d products in %.1f ms",
+                byId.size(), (System.nanoTime() - start) / 1_000_000.0));
+    }
+
+    private void loadSnapshot() throws IOException, SQLException {
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(snapshot)) {
+            return;
+        }
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.capacity() < 32) {
+            throw new SQLException("Storage snapshot is truncated: " + snapshot);
+        }
+        int bodyLength = buffer.capacity() - 4;
+        CRC32 checksum = new CRC32();
+        ByteBuffer body = buffer.duplicate();
+        body.limit(bodyLength);
+        checksum.update(body);
+        if ((int) checksum.getValue() != buffer.getInt(bodyLength)) {
+            throw new SQLException("Storage snapshot is corrupt: " + snapshot);
+        }
+        buffer.limit(bodyLength);
+        if (buffer.getInt() != SNAPSHOT_MAGIC) {
+            throw new SQLException("Not a storage snapshot: " + snapshot);
+        }
+        int version = buffer.getInt();
+        if (version < 1 || version > SNAPSHOT_VERSION) {
+            throw new SQLException("Unsupported storage snapshot version " + version + ": " + snapshot);
+        }
+        generation = buffer.getLong();
+        nextId = buffer.getLong();
+        if (version == 1) {
+            // Written before change tracking: number the products as if they had just been added
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                applyPut(readChange(buffer).entry, null);
+            }
+            return;
+        }
+        long lastSeq = buffer.getLong();
+        int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            Entry entry = readChange(buffer).entry;
+            index(entry.withChangeSeq(buffer.getLong()), null);
+        }
+        int tombstoneCount = buffer.getInt();
+        for (int i = 0; i < tombstoneCount; i++) {
+            String name = readString(buffer);
+            tombstones.put(name, buffer.getLong());
+        }
+        lastChangeSeq = lastSeq;
+    }
+
+    private int replayLog() {
+        int position = 0;
+        int records = 0;
+        while (position + RECORD_HEADER_BYTES + 8 <= log.capacity()) {
+            int length = log.getInt(position);
+            if (length < 8 || length > log.capacity() - position - RECORD_HEADER_BYTES) {
+                break;
+            }
+            ByteBuffer payload = log.duplicate();
+            payload.position(position + RECORD_HEADER_BYTES).limit(position + RECORD_HEADER_BYTES + length);
+            payload = payload.slice();
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != log.getInt(position + 4) || payload.getLong() != generation) {
+                break;
+            }
+            List<Change> changes = new ArrayList<>();
+            try {
+                while (payload.hasRemaining()) {
+                    changes.add(readChange(payload));
+                }
+            } catch (RuntimeException e) {
+                break;
+            }
+            for (Change change : changes) {
+                if (change.deletedName != null) {
+                    applyDelete(change.deletedName);
+                } else {
+                    applyPut(change.entry, change.previousName);
+                }
+            }
+            position += RECORD_HEADER_BYTES + length;
+            records++;
+        }
+        logPosition = position;
+        return records;
+    }
+
+    private static Change readChange(ByteBuffer buffer) {
+        byte type = buffer.get();
+        if (type == DELETE) {
+            return new Change(null, null, readString(buffer));
+        }
+        if (type != PUT && type != PUT_WITH_REORDER_LEVEL) {
+            throw new IllegalArgumentException("Unknown storage record type: " + type);
+        }
+        long id = buffer.getLong();
+        String previousName = readString(buffer);
+        String name = readString(buffer);
+        String description = readString(buffer);
+        double price = buffer.getDouble();
+        int quantity = buffer.getInt();
+        int reorderLevel = type == PUT_WITH_REORDER_LEVEL ? buffer.getInt() : 0;
+        if (name == null) {
+            throw new IllegalArgumentException("Storage record without a product name");
+        }
+        return new Change(new Entry(id, name, description, price, quantity, reorderLevel), previousName, null);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Bad string length in storage record: " + length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Self-check: fills a store in the given directory, changes part of it,
+     * reopens it and compares the result, printing open and lookup times.
+     * Usage: java EmbeddedProductStore [directory] [products]
+     */
+    public static void main(String[] args) throws Exception {
+        Path dir = Paths.get(args.length > 0 ? args[0] : "embedded-check");
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+        long compactBytes = 8L << 20;
+
+        try (EmbeddedProductStore store = new EmbeddedProductStore(dir, compactBytes, false)) {
+            List<Product> batch = new ArrayList<>(1000);
+            for (int i = 0; i < count; i++) {
+                batch.add(new Product("check-" + i, "Self-check product " + i, 1 + (i % 100), 10));
+                if (batch.size() == 1000) {
+                    store.importBatch(batch, true);
+                    batch.clear();
+                }
+            }
+            store.importBatch(batch, true);
+            for (int i = 0; i < count; i += 10) {
+                store.adjustQuantity("check-" + i, -3);
+            }
+            for (int i = 5; i < count; i += 100) {
+                store.delete("check-" + i);
+            }
+        }
+
+        long start = System.nanoTime();
+        try (EmbeddedProductStore store = new EmbeddedProductStore(dir, compactBytes, false)) {
+            double openMillis = (System.nanoTime() - start) / 1_000_000.0;
+            int expected = count - (count + 94) / 100;
+            boolean passed = store.size() == expected;
+            long lookupStart = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                Product product = store.find("check-" + i);
+                boolean deleted = i % 100 == 5;
+                if (deleted != (product == null)
+                        || (product != null && product.getQuantity() != (i % 10 == 0 ? 7 : 10))) {
+                    passed = false;
+                }
+            }
+            double lookupMicros = (System.nanoTime() - lookupStart) / 1000.0 / count;
+            System.out.printf("Reopened %d products in %.1f ms, %.2f us per lookup%n", store.size(), openMillis,
+                    lookupMicros);
+            System.out.println(passed ? "Embedded storage check passed." : "Embedded storage check FAILED.");
+        }
+    }
+}
@@ -0,0 +1,314 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-process publish/subscribe for {@link InventoryEvent}s, backed by an
+ * {@link EventJournal}.
+ * <p>
+ * Publishers put events on a bounded queue and return; they only wait if the
+ * queue is full. One dispatcher thread takes events off in batches of up to
+ * batchSize, appends each batch to the journal with a single write, and then
+ * hands the batch to every subscriber. Each subscriber has its own thread and
+ * its own queue of subscriberBacklog batches, so a slow subscriber never holds
+ * up publishers or other subscribers. If its queue is full the batch is not
+ * queued; the subscriber reads the events it missed from the journal when it
+ * catches up. The same path replays history for a subscriber that starts from
+ * an earlier offset. Each subscriber therefore sees every event once, in offset
+ * order, unless it throws, in which case the error is logged and that batch is skipped.
+ * <p>
+ * Events are published after the change has been made, so a crash between
+ * the two loses the event.
+ */
+public class EventBus implements AutoCloseable {
+    private static final long POLL_MILLIS = 100;
+    private static final long CLOSE_WAIT_MILLIS = 5000;
+    private static EventBus shared;
+    private static boolean sharedOpened;
+
+    /**
+     * Receives batches of events in offset order.
+     */
+    public interface Subscriber {
+        void onEvents(List<InventoryEvent> events) throws Exception;
+    }
+
+    private final EventJournal journal;
+    private final ArrayBlockingQueue<InventoryEvent> queue;
+    private final int batchSize;
+    private final int subscriberBacklog;
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final AtomicLong lost = new AtomicLong();
+    private final Thread dispatcher;
+    // Publishers hold the read lock from the running check until the event is queued, so once
+    // close() has taken the write lock every accepted event is in the queue it drains last
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private volatile boolean running = true;
+
+    public EventBus(EventJournal journal, int queueCapacity, int batchSize, int subscriberBacklog) {
+        if (queueCapacity <= 0 || batchSize <= 0 || subscriberBacklog <= 0) {
+            throw new IllegalArgumentException("Event queue, batch and backlog sizes must be positive");
+        }
+        this.journal = journal;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.batchSize = batchSize;
+        this.subscriberBacklog = subscriberBacklog;
+        dispatcher = new Thread(this::dispatchLoop, "event-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * The bus for this process, configured by events.*, opened on first use
+     * and closed at shutdown.
+     * @return the bus, or null if events are disabled or the journal could not be opened
+     */
+    public static synchronized EventBus shared() {
+        if (!sharedOpened) {
+            sharedOpened = true;
+            if (!ConfigManager.isEventsEnabled()) {
+                return null;
+            }
+            try {
+                EventJournal journal = new EventJournal(Paths.get(ConfigManager.getEventsDir()),
+                        ConfigManager.getEventsSegmentBytes(), ConfigManager.isEventsForceOnWrite());
+                shared = new EventBus(journal, ConfigManager.getEventsQueueSize(), ConfigManager.getEventsBatchSize(),
+                        ConfigManager.getEventsSubscriberBacklog());
+                Metrics.gauge("events.queued", shared.queue::size);
+                Metrics.gauge("events.nextOffset", journal::getNextOffset);
+                Metrics.gauge("events.lost", shared.lost::get);
+                Runtime.getRuntime().addShutdownHook(new Thread(shared::close, "event-bus-shutdown"));
+            } catch (IOException e) {
+                Logger.error("Could not open the event journal, inventory events are disabled: " + e.getMessage());
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Queues an event for the journal and the subscribers, waiting for space
+     * if the queue is full.
+     */
+    public void publish(InventoryEvent event) {
+        closeLock.readLock().lock();
+        try {
+            if (!running) {
+                lost.incrementAndGet();
+                Logger.error("Event bus is closed, event dropped: " + event);
+                return;
+            }
+            queue.put(event);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            lost.incrementAndGet();
+            Logger.error("Interrupted while publishing, event dropped: " + event);
+        } finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Delivers events published from now on.
+     */
+    public Subscription subscribe(String name, Subscriber subscriber) {
+        return subscribe(name, journal.getNextOffset(), subscriber);
+    }
+
+    /**
+     * Delivers the journal's events from fromOffset on, then new events as
+     * they are published.
+     */
+    public Subscription subscribe(String name, long fromOffset, Subscriber subscriber) {
+        Subscription subscription = new Subscription(name, fromOffset, subscriber);
+        subscriptions.add(subscription);
+        subscription.thread.start();
+        return subscription;
+    }
+
+    public EventJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * @return the number of events that were dropped because the bus was closed or the journal failed
+     */
+    public long getLostCount() {
+        return lost.get();
+    }
+
+    private void dispatchLoop() {
+        List<InventoryEvent> batch = new ArrayList<>(batchSize);
+        while (true) {
+            InventoryEvent first;
+            try {
+                first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                first = null;
+            }
+            if (first == null) {
+                if (!running) {
+                    break;
+                }
+                continue;
+            }
+            batch.add(first);
+            queue.drainTo(batch, batchSize - 1);
+            dispatch(batch);
+            batch = new ArrayList<>(batchSize);
+        }
+    }
+
+    private void dispatch(List<InventoryEvent> batch) {
+        List<InventoryEvent> appended;
+        try {
+            appended = journal.append(batch);
+        } catch (IOException e) {
+            lost.addAndGet(batch.size());
+            Logger.error("Could not journal " + batch.size() + " inventory events, they are lost: " + e.getMessage());
+            return;
+        }
+        for (Subscription subscription : subscriptions) {
+            // A full backlog drops the batch; the subscriber reads it from the journal instead
+            subscription.backlog.offer(appended);
+        }
+    }
+
+    /**
+     * Stops taking events, journals and delivers what is queued, and waits
+     * briefly for subscribers to catch up before closing the journal.
+     */
+    @Override
+    public void close() {
+        closeLock.writeLock().lock();
+        try {
+            if (!running) {
+                return;
+            }
+            running = false;
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+        try {
+            dispatcher.join();
+            List<InventoryEvent> rest = new ArrayList<>();
+            queue.drainTo(rest);
+            if (!rest.isEmpty()) {
+                dispatch(rest);
+            }
+            long deadline = System.currentTimeMillis() + CLOSE_WAIT_MILLIS;
+            for (Subscription subscription : subscriptions) {
+                subscription.finish();
+                subscription.thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        journal.close();
+    }
+
+    public class Subscription implements AutoCloseable {
+        private final String name;
+        private final Subscriber subscriber;
+        private final ArrayBlockingQueue<List<InventoryEvent>> backlog;
+        private final Thread thread;
+        private volatile long position;
+        private volatile boolean active = true;
+        private volatile boolean finishing;
+
+        private Subscription(String name, long fromOffset, Subscriber subscriber) {
+            this.name = name;
+            this.subscriber = subscriber;
+            this.position = Math.max(0, fromOffset);
+            this.backlog = new ArrayBlockingQueue<>(subscriberBacklog);
+            this.thread = new Thread(this::deliverLoop, "event-subscriber-" + name);
+            thread.setDaemon(true);
+        }
+
+        /**
+         * @return the offset of the next event this subscriber will receive
+         */
+        public long getPosition() {
+            return position;
+        }
+
+        private void deliverLoop() {
+            while (active) {
+                List<InventoryEvent> batch;
+                try {
+                    batch = backlog.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                try {
+                    long end = batch != null ? batch.get(0).getOffset() : journal.getNextOffset();
+                    if (position < end) {
+                        catchUp(end);
+                    }
+                } catch (IOException e) {
+                    Logger.error("Event subscriber " + name + " could not read the journal at offset " + position
+                            + ": " + e.getMessage());
+                }
+                if (batch != null) {
+                    int skip = (int) Math.max(0, Math.min(batch.size(), position - batch.get(0).getOffset()));
+                    if (skip < batch.size()) {
+                        deliver(skip == 0 ? batch : batch.subList(skip, batch.size()));
+                    }
+                } else if (finishing && position >= journal.getNextOffset()) {
+                    break;
+                }
+            }
+        }
+
+        private void catchUp(long end) throws IOException {
+            try (EventJournal.Cursor cursor = journal.openCursor(position)) {
+                if (cursor.getOffset() > position) {
+                    Logger.error("Event subscriber " + name + " skipped offsets " + position + " to "
+                            + (cursor.getOffset() - 1) + ", which are no longer in the journal");
+                    position = cursor.getOffset();
+                }
+                List<InventoryEvent> chunk = new ArrayList<>(batchSize);
+                InventoryEvent event;
+                while (cursor.getOffset() < end && (event = cursor.next()) != null) {
+                    chunk.add(event);
+                    if (chunk.size() == batchSize) {
+                        deliver(chunk);
+                        chunk = new ArrayList<>(batchSize);
+                    }
+                }
+                if (!chunk.isEmpty()) {
+                    deliver(chunk);
+                }
+            }
+        }
+
+        private void deliver(List<InventoryEvent> events) {
+            try {
+                subscriber.onEvents(events);
+            } catch (Exception e) {
+                Logger.error("Event subscriber " + name + " failed on offsets " + events.get(0).getOffset() + " to "
+                        + events.get(events.size() - 1).getOffset() + ": " + e);
+            }
+            position = events.get(events.size() - 1).getOffset() + 1;
+        }
+
+        private void finish() {
+            finishing = true;
+        }
+
+        /**
+         * Stops delivery; events already handed to the subscriber are not affected.
+         */
+        @Override
+        public void close() {
+            active = false;
+            subscriptions.remove(this);
+        }
+    }
+}
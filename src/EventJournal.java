@@ -0,0 +1,642 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of {@link InventoryEvent}s in a local directory. Events are
+ * numbered from 0 in the order they are appended, and that number is their
+ * offset. The log is split into segment files named after the offset of
+ * their first event, e.g. events-00000000000000004096.log, and a new segment
+ * is started once the current one passes segmentBytes. Old segments may be
+ * deleted by hand; reading from an offset before the first remaining segment
+ * starts at that segment.
+ * <p>
+ * Each record is [length][CRC32][event], so a record torn by a crash fails
+ * its checksum and is cut off when the journal is next opened. Readers use
+ * their own file handles and never see an event before its append has
+ * finished, so they can run alongside the writer. A write that fails part
+ * way is cut off again before the next append, so later events are never
+ * stranded behind a torn record.
+ */
+public class EventJournal implements AutoCloseable {
+    private static final OperationTimer APPEND_TIMER = Metrics.timer("events.append");
+    private static final String SEGMENT_PREFIX = "events-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String LOCK_FILE = "events.lock";
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final int MAX_RECORD_BYTES = 1 << 20;
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final boolean forceOnWrite;
+    private final boolean readOnly;
+    private final ConcurrentSkipListMap<Long, Path> segments = new ConcurrentSkipListMap<>();
+    private final CRC32 crc = new CRC32();
+    private FileChannel lockChannel;
+    private FileLock fileLock;
+    private FileChannel active;
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(64 * 1024);
+    private volatile long nextOffset;
+    // Bumped whenever a failed write is cut off, so cursors drop bytes they may have read ahead
+    private volatile long rollbacks;
+    private boolean failed;
+    private boolean closed;
+
+    /**
+     * @param forceOnWrite flush every append to disk before returning
+     * @throws IOException if the directory cannot be used or another process has it open
+     */
+    public EventJournal(Path directory, long segmentBytes, boolean forceOnWrite) throws IOException {
+        this(directory, segmentBytes, forceOnWrite, false);
+    }
+
+    /**
+     * Opens a journal that another process may be appending to, for reading
+     * the events it holds at this moment. Takes no lock and changes nothing.
+     */
+    public static EventJournal openReadOnly(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            throw new NoSuchFileException(directory.toString());
+        }
+        return new EventJournal(directory, Long.MAX_VALUE, false, true);
+    }
+
+    private EventJournal(Path directory, long segmentBytes, boolean forceOnWrite, boolean readOnly)
+            throws IOException {
+        if (segmentBytes <= 0) {
+            throw new IllegalArgumentException("Segment size must be positive: " + segmentBytes);
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.forceOnWrite = forceOnWrite;
+        this.readOnly = readOnly;
+        if (!readOnly) {
+            Files.createDirectories(directory);
+            lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE);
+            try {
+                fileLock = lockChannel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                fileLock = null;
+            }
+            if (fileLock == null) {
+                lockChannel.close();
+                throw new IOException("Event journal is already in use: " + directory);
+            }
+        }
+        try {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                    SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+                for (Path file : files) {
+                    Long base = parseBase(file);
+                    if (base != null) {
+                        segments.put(base, file);
+                    }
+                }
+            }
+            if (readOnly) {
+                if (!segments.isEmpty()) {
+                    Map.Entry<Long, Path> last = segments.lastEntry();
+                    try (FileChannel channel = FileChannel.open(last.getValue(), StandardOpenOption.READ)) {
+                        // A record still being written is simply not counted
+                        nextOffset = last.getKey() + recover(channel, last.getValue(), false);
+                    }
+                }
+            } else if (segments.isEmpty()) {
+                openSegment(0);
+            } else {
+                Map.Entry<Long, Path> last = segments.lastEntry();
+                active = FileChannel.open(last.getValue(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                nextOffset = last.getKey() + recover(active, last.getValue(), true);
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the offset the next appended event will get
+     */
+    public long getNextOffset() {
+        return nextOffset;
+    }
+
+    /**
+     * @return the offset of the oldest event still in the journal
+     */
+    public long getFirstOffset() {
+        Map.Entry<Long, Path> first = segments.firstEntry();
+        return first == null ? nextOffset : first.getKey();
+    }
+
+    /**
+     * Appends events in order with a single write. If the write fails, the
+     * part that was written is cut off so the journal stays as it was.
+     * @return the events with their offsets
+     */
+    public synchronized List<InventoryEvent> append(List<InventoryEvent> events) throws IOException {
+        if (closed || readOnly) {
+            throw new IOException(readOnly ? "Event journal is open read-only" : "Event journal is closed");
+        }
+        if (failed) {
+            throw new IOException("Event journal stopped after a failed write could not be undone: " + directory);
+        }
+        long start = Metrics.start();
+        try {
+            if (active.position() >= segmentBytes) {
+                active.close();
+                openSegment(nextOffset);
+            }
+            List<InventoryEvent> appended = new ArrayList<>(events.size());
+            writeBuffer.clear();
+            long offset = nextOffset;
+            for (InventoryEvent event : events) {
+                int needed = RECORD_HEADER_BYTES + event.maxEncodedSize();
+                if (needed > MAX_RECORD_BYTES) {
+                    throw new IOException("Event too large to journal: " + event.getProductName());
+                }
+                if (writeBuffer.remaining() < needed) {
+                    ByteBuffer larger = ByteBuffer.allocate(Math.max(writeBuffer.capacity() * 2,
+                            writeBuffer.position() + needed));
+                    writeBuffer.flip();
+                    larger.put(writeBuffer);
+                    writeBuffer = larger;
+                }
+                int recordStart = writeBuffer.position();
+                writeBuffer.position(recordStart + RECORD_HEADER_BYTES);
+                event.encode(writeBuffer);
+                int length = writeBuffer.position() - recordStart - RECORD_HEADER_BYTES;
+                crc.reset();
+                crc.update(writeBuffer.array(), recordStart + RECORD_HEADER_BYTES, length);
+                writeBuffer.putInt(recordStart, length);
+                writeBuffer.putInt(recordStart + 4, (int) crc.getValue());
+                appended.add(event.withOffset(offset++));
+            }
+            writeBuffer.flip();
+            long writeStart = active.position();
+            try {
+                while (writeBuffer.hasRemaining()) {
+                    active.write(writeBuffer);
+                }
+                if (forceOnWrite) {
+                    active.force(false);
+                }
+            } catch (IOException e) {
+                rollBack(writeStart, e);
+                throw e;
+            }
+            nextOffset = offset;
+            APPEND_TIMER.rows(appended.size());
+            return appended;
+        } catch (IOException | RuntimeException e) {
+            APPEND_TIMER.error();
+            throw e;
+        } finally {
+            APPEND_TIMER.stop(start);
+        }
+    }
+
+    /**
+     * Cuts the active segment back to where a failed write started. If even
+     * that fails, the journal takes no more appends, since anything written
+     * after the torn bytes would be lost when the journal is next opened.
+     */
+    private void rollBack(long writeStart, IOException cause) {
+        try {
+            active.truncate(writeStart);
+            active.position(writeStart);
+            rollbacks++;
+        } catch (IOException e) {
+            failed = true;
+            cause.addSuppressed(e);
+            Logger.error("Event journal " + directory + " could not remove a failed write and is stopped: "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Opens a reader positioned at the given offset. The reader returns events
+     * up to the end of the journal as it stands at each call, so it can be
+     * polled again after more events are appended.
+     */
+    public Cursor openCursor(long fromOffset) throws IOException {
+        return new Cursor(Math.max(fromOffset, getFirstOffset()));
+    }
+
+    public class Cursor implements AutoCloseable {
+        private long segmentBase;
+        private FileChannel channel;
+        private DataInputStream in;
+        private long offset;
+        private long position;
+        private long rollbacksSeen;
+        private byte[] record = new byte[256];
+
+        private Cursor(long fromOffset) throws IOException {
+            Map.Entry<Long, Path> segment = segments.floorEntry(fromOffset);
+            if (segment == null) {
+                segment = segments.firstEntry();
+            }
+            if (segment == null) {
+                // Read-only view of an empty journal
+                offset = nextOffset;
+                return;
+            }
+            open(segment.getKey(), segment.getValue());
+            while (offset < fromOffset && next() != null) {
+                // Skip to the requested offset
+            }
+        }
+
+        private void open(long base, Path file) throws IOException {
+            if (channel != null) {
+                channel.close();
+            }
+            segmentBase = base;
+            offset = base;
+            position = 0;
+            rollbacksSeen = rollbacks;
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024));
+        }
+
+        // Reads may have run ahead into a write that was since cut off, so read again from the last record
+        private void reread() throws IOException {
+            rollbacksSeen = rollbacks;
+            channel.position(position);
+            in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024));
+        }
+
+        /**
+         * @return the offset of the event the next call to {@link #next()} returns
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return the next event, or null if the reader has reached the end of the journal
+         */
+        public InventoryEvent next() throws IOException {
+            if (offset >= nextOffset) {
+                return null;
+            }
+            if (rollbacksSeen != rollbacks) {
+                reread();
+            }
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                // The event is committed but past this segment, so it starts the next one
+                Map.Entry<Long, Path> following = segments.higherEntry(segmentBase);
+                if (following == null || following.getKey() != offset) {
+                    throw new IOException("Event journal segment ends early at offset " + offset);
+                }
+                open(following.getKey(), following.getValue());
+                return next();
+            }
+            int checksum = in.readInt();
+            if (length < 0 || length > MAX_RECORD_BYTES) {
+                throw new IOException("Corrupt event journal record at offset " + offset);
+            }
+            if (record.length < length) {
+                record = new byte[Math.max(length, record.length * 2)];
+            }
+            in.readFully(record, 0, length);
+            CRC32 check = new CRC32();
+            check.update(record, 0, length);
+            if ((int) check.getValue() != checksum) {
+                throw new IOException("Event journal checksum mismatch at offset " + offset);
+            }
+            position += RECORD_HEADER_BYTES + length;
+            try {
+                return InventoryEvent.decode(offset++, ByteBuffer.wrap(record, 0, length));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Corrupt event journal record at offset " + (offset - 1) + ": "
+                        + e.getMessage());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    private void openSegment(long base) throws IOException {
+        Path file = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, base, SEGMENT_SUFFIX));
+        active = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        segments.put(base, file);
+        nextOffset = base;
+    }
+
+    /**
+     * Counts the intact records in the last segment and, with truncate, cuts
+     * off anything after them, leaving the channel positioned for appends.
+     */
+    private static long recover(FileChannel channel, Path file, boolean truncate) throws IOException {
+        long size = channel.size();
+        long position = 0;
+        long count = 0;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+        CRC32 check = new CRC32();
+        while (position + RECORD_HEADER_BYTES <= size) {
+            header.clear();
+            channel.read(header, position);
+            int length = header.getInt(0);
+            if (length < 0 || length > MAX_RECORD_BYTES || position + RECORD_HEADER_BYTES + length > size) {
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            channel.read(payload, position + RECORD_HEADER_BYTES);
+            check.reset();
+            check.update(payload.array(), 0, length);
+            if ((int) check.getValue() != header.getInt(4)) {
+                break;
+            }
+            position += RECORD_HEADER_BYTES + length;
+            count++;
+        }
+        if (position < size && truncate) {
+            Logger.error("Event journal " + file + " had a torn record at byte " + position + "; "
+                    + (size - position) + " bytes removed");
+            channel.truncate(position);
+        }
+        if (truncate) {
+            channel.position(position);
+        }
+        return count;
+    }
+
+    private static Long parseBase(Path file) {
+        String name = file.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (active != null) {
+                active.force(false);
+                active.close();
+            }
+            if (fileLock != null) {
+                fileLock.release();
+            }
+            if (lockChannel != null) {
+                lockChannel.close();
+            }
+        } catch (IOException e) {
+            Logger.error("Error closing event journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Prints the events from an offset as JSON lines, for reporting jobs and
+     * for looking at what happened.
+     * Usage: java EventJournal [directory] [fromOffset]
+     * With --self-check, instead checks on a temporary journal that a write
+     * failing part way loses no later events, and exits with 1 if it does.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("--self-check")) {
+            boolean passed = selfCheck();
+            System.out.println(passed ? "Event journal self-check passed." : "Event journal self-check FAILED.");
+            if (!passed) {
+                System.exit(1);
+            }
+            return;
+        }
+        Path dir = Paths.get(args.length > 0 ? args[0] : ConfigManager.getEventsDir());
+        long from = args.length > 1 ? Long.parseLong(args[1]) : 0;
+        try (EventJournal journal = openReadOnly(dir);
+             Cursor cursor = journal.openCursor(from)) {
+            InventoryEvent event;
+            while ((event = cursor.next()) != null) {
+                System.out.println(event.toJson());
+            }
+        }
+    }
+
+    /**
+     * Appends a batch whose write stops part way, then another batch, and
+     * reads the journal back through a cursor opened before the failure and
+     * again after reopening it.
+     */
+    private static boolean selfCheck() throws IOException {
+        Path dir = Files.createTempDirectory("event-journal-check");
+        List<String> expected = new ArrayList<>();
+        boolean passed = true;
+        try {
+            try (EventJournal journal = new EventJournal(dir, 1 << 20, false);
+                 Cursor cursor = journal.openCursor(0)) {
+                expected.addAll(names(journal.append(checkEvents("before", 3))));
+                List<String> read = readAll(cursor);
+                FileChannel channel = journal.active;
+                journal.active = new ShortWriteChannel(channel, 10);
+                try {
+                    journal.append(checkEvents("torn", 3));
+                    System.out.println("FAIL the short write was not reported");
+                    passed = false;
+                } catch (IOException expectedFailure) {
+                    // The batch is lost, and only that batch
+                }
+                journal.active = channel;
+                expected.addAll(names(journal.append(checkEvents("after", 2))));
+                read.addAll(readAll(cursor));
+                passed &= check("open cursor", expected, read);
+            }
+            try (EventJournal journal = new EventJournal(dir, 1 << 20, false)) {
+                expected.addAll(names(journal.append(checkEvents("reopened", 1))));
+                try (Cursor cursor = journal.openCursor(0)) {
+                    passed &= check("after reopen", expected, readAll(cursor));
+                }
+            }
+        } finally {
+            try (java.util.stream.Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+        }
+        return passed;
+    }
+
+    private static List<InventoryEvent> checkEvents(String prefix, int count) {
+        List<InventoryEvent> events = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            events.add(new InventoryEvent(InventoryEvent.Type.ADDED, prefix + "-" + i, null, 0, i + 1, 1.0, null,
+                    System.currentTimeMillis()));
+        }
+        return events;
+    }
+
+    private static List<String> names(List<InventoryEvent> events) {
+        List<String> names = new ArrayList<>(events.size());
+        for (InventoryEvent event : events) {
+            names.add(event.getOffset() + ":" + event.getProductName());
+        }
+        return names;
+    }
+
+    private static List<String> readAll(Cursor cursor) throws IOException {
+        List<InventoryEvent> events = new ArrayList<>();
+        InventoryEvent event;
+        while ((event = cursor.next()) != null) {
+            events.add(event);
+        }
+        return names(events);
+    }
+
+    private static boolean check(String what, List<String> expected, List<String> actual) {
+        boolean ok = expected.equals(actual);
+        System.out.println((ok ? "OK   " : "FAIL ") + what + ": " + actual);
+        return ok;
+    }
+
+    /**
+     * Passes everything to the real channel, except that the first write
+     * stops after a few bytes and the next one fails, as on a full disk.
+     */
+    private static final class ShortWriteChannel extends FileChannel {
+        private final FileChannel channel;
+        private int allowedBytes;
+        private boolean failed;
+
+        ShortWriteChannel(FileChannel channel, int allowedBytes) {
+            this.channel = channel;
+            this.allowedBytes = allowedBytes;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (failed) {
+                return channel.write(src);
+            }
+            if (allowedBytes == 0) {
+                failed = true;
+                throw new IOException("No space left on device (simulated)");
+            }
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + Math.min(allowedBytes, part.remaining()));
+            int written = channel.write(part);
+            src.position(part.position());
+            allowedBytes -= written;
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            throw new IOException("Not used by the journal");
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return channel.write(src, position);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return channel.read(dsts, offset, length);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return channel.read(dst, position);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            channel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            channel.force(metaData);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return channel.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return channel.transferFrom(src, position, count);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return channel.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return channel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return channel.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            channel.close();
+        }
+    }
+}
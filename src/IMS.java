@@ -1,14 +1,16 @@
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.PrintWriter;
-import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Scanner;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
 
 /**
  * Represents a product in the inventory management system.
@@ -65,73 +67,279 @@ class Product { // Changed from class to static class to prevent unnecessary ins
  * Main inventory management system class that handles all inventory operations.
  * Provides functionality for adding, removing, updating, and viewing products.
  */
-class InventoryManagementSystem { // Changed from class to static class
-    private ArrayList<Product> products;
+class InventoryManagementSystem implements InventoryService { // Changed from class to static class
+    private static final OperationTimer LOAD_TIMER = Metrics.timer("product.load");
+    private static final OperationTimer GET_TIMER = Metrics.timer("product.get");
+    private static final OperationTimer DUPLICATE_CHECK_TIMER = Metrics.timer("product.add.duplicateCheck");
+    private static final OperationTimer INSERT_TIMER = Metrics.timer("product.add.insert");
+    private static final OperationTimer REMOVE_TIMER = Metrics.timer("product.remove");
+    private static final OperationTimer UPDATE_TIMER = Metrics.timer("product.update");
+    private static final OperationTimer ADJUST_TIMER = Metrics.timer("stock.adjust");
+    private static final OperationTimer RESERVE_TIMER = Metrics.timer("stock.reserve");
+    private static final OperationTimer VIEW_TIMER = Metrics.timer("inventory.view");
+    private static final OperationTimer QUERY_TIMER = Metrics.timer("inventory.query");
+    private static final OperationTimer EXPORT_TIMER = Metrics.timer("inventory.export");
+    private static final OperationTimer IMPORT_TIMER = Metrics.timer("inventory.import");
+    private static final OperationTimer REORDER_TIMER = Metrics.timer("reorder.setLevel");
+    private static final OperationTimer SEARCH_TIMER = Metrics.timer("product.search");
 
+    private final ProductStore store;
+    private final ProductCache productCache;
+    private final EventBus events;
+    private final WarehouseShards warehouses;
+    private final ReorderNotifier reorderNotifier;
+    private final boolean searchEnabled;
+    // The indexes are replaced whole by a rebuild, and read once into a local by each caller so a reload
+    // cannot pull one away
+    private volatile ReorderIndex reorderIndex;
+    private volatile ProductSearchIndex searchIndex;
+
+    /**
+     * Uses the storage engine selected by storage.engine, and the warehouse
+     * shards if warehouses are configured.
+     */
     public InventoryManagementSystem() {
-        products = new ArrayList<>();
+        this(ProductStore.fromConfig(), EventBus.shared(), WarehouseShards.shared());
+    }
+
+    public InventoryManagementSystem(ProductStore store) {
+        this(store, EventBus.shared());
+    }
+
+    /**
+     * @param events where every change is published, or null to publish nothing
+     */
+    public InventoryManagementSystem(ProductStore store, EventBus events) {
+        this(store, events, null);
+    }
+
+    /**
+     * @param store the default warehouse's store when warehouses is not null
+     * @param warehouses the warehouses whose stock can be read and changed one at a time, or null
+     */
+    public InventoryManagementSystem(ProductStore store, EventBus events, WarehouseShards warehouses) {
+        this.store = store;
+        this.events = events;
+        this.warehouses = warehouses;
+        productCache = new ProductCache(ConfigManager.getCacheMaxSize(), ConfigManager.getCacheTtlMillis());
+        Metrics.gauge("cache.hitRate", productCache::getHitRate);
+        Metrics.gauge("cache.size", productCache::size);
+        Metrics.gauge("cache.evictions", productCache::getEvictionCount);
+        reorderNotifier = ConfigManager.isReorderEnabled() ? ReorderNotifier.fromConfig() : null;
+        if (ConfigManager.isReorderEnabled()) {
+            rebuildReorderIndex();
+            Metrics.gauge("reorder.due", () -> {
+                ReorderIndex index = reorderIndex;
+                return index != null ? index.getDueCount() : 0;
+            });
+        }
+        searchEnabled = ConfigManager.isSearchEnabled();
+        if (searchEnabled) {
+            rebuildSearchIndex();
+            Metrics.gauge("search.products", () -> {
+                ProductSearchIndex index = searchIndex;
+                return index != null ? index.size() : 0;
+            });
+        }
         Logger.info("Inventory Management System initialized");
     }
 
+    public ProductCache getProductCache() {
+        return productCache;
+    }
+
+    public ProductStore getStore() {
+        return store;
+    }
+
     /**
-     * Adds a new product to the inventory.
-     * @param name Product name
-     * @param description Product description
-     * @param price Product price
-     * @param quantity Product quantity
+     * @return the bus changes are published on, or null if events are disabled
      */
-    public void addProduct(String name, String description, double price, int quantity) {
-        if (name == null || name.isEmpty()) {
-            Logger.error("Attempted to add product with empty name");
+    public EventBus getEventBus() {
+        return events;
+    }
+
+    /**
+     * @return the low-stock index, or null if reorder tracking is disabled or unavailable
+     */
+    public ReorderIndex getReorderIndex() {
+        return reorderIndex;
+    }
+
+    /**
+     * Builds a new index from the store and swaps it in. If the store cannot
+     * be read, an index built earlier stays in use, or reorder tracking stays
+     * off if there is none.
+     */
+    private void rebuildReorderIndex() {
+        if (reorderNotifier == null) {
             return;
         }
-        if (price <= 0) {
-            Logger.error("Attempted to add product with invalid price: " + price);
+        ReorderIndex rebuilt = new ReorderIndex(reorderNotifier);
+        try {
+            long rows = rebuilt.rebuild(store);
+            Logger.info("Reorder index built: " + rows + " products tracked, " + rebuilt.getDueCount() + " due");
+        } catch (SQLException e) {
+            Logger.error("Could not read reorder levels, " + (reorderIndex != null ? "keeping the previous ones"
+                    : "reorder alerts are disabled (does the products table have the reorder_level column?)")
+                    + ": " + e.getMessage());
             return;
         }
-        if (quantity < 0) {
-            Logger.error("Attempted to add product with negative quantity: " + quantity);
+        reorderIndex = rebuilt;
+    }
+
+    /**
+     * @return the full-text index, or null if search is disabled or unavailable
+     */
+    public ProductSearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    /**
+     * Builds a new index from the store and swaps it in, like
+     * {@link #rebuildReorderIndex()}.
+     */
+    private void rebuildSearchIndex() {
+        if (!searchEnabled) {
+            return;
+        }
+        ProductSearchIndex rebuilt = new ProductSearchIndex();
+        long start = System.currentTimeMillis();
+        try {
+            long rows = rebuilt.rebuild(store);
+            Logger.info("Search index built: " + rows + " products in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (SQLException | IOException e) {
+            Logger.error("Could not read products, " + (searchIndex != null ? "keeping the previous search index"
+                    : "search is disabled") + ": " + e.getMessage());
             return;
         }
+        searchIndex = rebuilt;
+    }
+
+    private void quantityChanged(String name, int oldQuantity, int newQuantity) {
+        ReorderIndex index = reorderIndex;
+        if (index != null && oldQuantity != newQuantity) {
+            index.quantityChanged(name, oldQuantity, newQuantity);
+        }
+    }
+
+    private void publish(InventoryEvent.Type type, String name, String previousName, int oldQuantity,
+                         int newQuantity, double price) {
+        publish(type, name, previousName, oldQuantity, newQuantity, price,
+                warehouses != null ? warehouses.getDefaultWarehouse() : null);
+    }
+
+    private void publish(InventoryEvent.Type type, String name, String previousName, int oldQuantity,
+                         int newQuantity, double price, String warehouse) {
+        if (events != null) {
+            events.publish(new InventoryEvent(type, name, previousName, oldQuantity, newQuantity, price,
+                    Login.getCurrentUser(), System.currentTimeMillis(), warehouse));
+        }
+    }
+
+    /**
+     * Loads a single product from the store; used by the product cache on a miss.
+     * @return the product, or null if no product has this name
+     */
+    private Product loadProduct(String name) throws SQLException {
+        long start = Metrics.start();
+        try {
+            return store.find(name);
+        } catch (SQLException e) {
+            LOAD_TIMER.error();
+            throw e;
+        } finally {
+            LOAD_TIMER.stop(start);
+        }
+    }
 
-        try (Connection connection = DatabaseConnector.connect();
-                PreparedStatement statement = connection.prepareStatement("SELECT * FROM products WHERE name = ?")) {
-            statement.setString(1, name);
-            ResultSet resultSet = statement.executeQuery();
-            if (resultSet.next()) {
+    /**
+     * Adds a new product to the inventory.
+     * @param name Product name
+     * @param description Product description
+     * @param price Product price
+     * @param quantity Product quantity
+     */
+    public boolean addProduct(String name, String description, double price, int quantity) {
+        if (!isValidNewProduct(name, price, quantity)) {
+            return false;
+        }
+
+        long start = Metrics.start();
+        try {
+            if (productCache.get(name, this::loadProduct) != null) {
                 Logger.error("Product already exists: " + name);
-                return;
+                return false;
             }
         } catch (SQLException e) {
+            DUPLICATE_CHECK_TIMER.error();
             Logger.error("Database error while checking for duplicate product: " + e.getMessage());
-            return;
+            return false;
+        } finally {
+            DUPLICATE_CHECK_TIMER.stop(start);
         }
 
-        try (Connection connection = DatabaseConnector.connect();
-                PreparedStatement statement = connection.prepareStatement(
-                        "INSERT INTO products (name, description, price, quantity) VALUES (?, ?, ?, ?)")) {
-            statement.setString(1, name);
-            statement.setString(2, description);
-            statement.setDouble(3, price);
-            statement.setInt(4, quantity);
-            statement.executeUpdate();
+        start = Metrics.start();
+        try {
+            if (!store.insert(new Product(name, description, price, quantity))) {
+                Logger.error("Product already exists: " + name);
+                return false;
+            }
+            INSERT_TIMER.rows(1);
+            ProductSearchIndex index = searchIndex;
+            if (index != null) {
+                index.add(name, description);
+            }
+            publish(InventoryEvent.Type.ADDED, name, null, 0, quantity, price);
             Logger.info("Product added successfully: " + name);
+            return true;
         } catch (SQLException e) {
+            INSERT_TIMER.error();
             Logger.error("Database error while adding product: " + e.getMessage());
+            return false;
+        } finally {
+            productCache.invalidate(name);
+            INSERT_TIMER.stop(start);
         }
     }
 
+    private static boolean isValidNewProduct(String name, double price, int quantity) {
+        if (name == null || name.isEmpty()) {
+            Logger.error("Attempted to add product with empty name");
+            return false;
+        }
+        if (price <= 0) {
+            Logger.error("Attempted to add product with invalid price: " + price);
+            return false;
+        }
+        if (quantity < 0) {
+            Logger.error("Attempted to add product with negative quantity: " + quantity);
+            return false;
+        }
+        return true;
+    }
+
     public boolean removeProduct(String productName) {
         if (productName == null || productName.isEmpty()) {
             Logger.error("Product name cannot be empty");
             return false;
         }
 
-        try (Connection connection = DatabaseConnector.connect();
-                PreparedStatement statement = connection.prepareStatement("DELETE FROM products WHERE name = ?")) {
-            statement.setString(1, productName);
-            int rowsAffected = statement.executeUpdate();
-            if (rowsAffected > 0) {
+        long start = Metrics.start();
+        try {
+            Product removed = store.delete(productName);
+            productCache.invalidate(productName);
+            if (removed != null) {
+                REMOVE_TIMER.rows(1);
+                ReorderIndex index = reorderIndex;
+                if (index != null) {
+                    index.removed(productName);
+                }
+                ProductSearchIndex search = searchIndex;
+                if (search != null) {
+                    search.remove(productName);
+                }
+                publish(InventoryEvent.Type.REMOVED, productName, null, removed.getQuantity(), 0, removed.getPrice());
                 Logger.info("Product removed successfully: " + productName);
                 return true;
             } else {
@@ -139,186 +347,870 @@ class InventoryManagementSystem { // Changed from class to static class
                 return false;
             }
         } catch (SQLException e) {
+            REMOVE_TIMER.error();
             Logger.error("Database error while removing product: " + e.getMessage());
             return false;
+        } finally {
+            REMOVE_TIMER.stop(start);
+        }
+    }
+
+    /**
+     * Adds stock to a product.
+     * @return true if the product exists and was updated
+     */
+    public boolean incrementStock(String productName, int amount) {
+        if (amount <= 0) {
+            Logger.error("Stock increment must be positive: " + amount);
+            return false;
+        }
+        return adjustStock(productName, amount);
+    }
+
+    /**
+     * Removes stock from a product, refusing to take more than is available.
+     * @return true if the product had enough stock and was updated
+     */
+    public boolean decrementStock(String productName, int amount) {
+        if (amount <= 0) {
+            Logger.error("Stock decrement must be positive: " + amount);
+            return false;
+        }
+        return adjustStock(productName, -amount);
+    }
+
+    private boolean adjustStock(String productName, int delta) {
+        if (productName == null || productName.isEmpty()) {
+            Logger.error("Product name cannot be empty");
+            return false;
+        }
+        long start = Metrics.start();
+        try {
+            Product adjusted = store.adjustQuantity(productName, delta);
+            if (adjusted == null) {
+                Logger.error("Stock not adjusted (product not found or insufficient stock): " + productName);
+                return false;
+            }
+            quantityChanged(productName, adjusted.getQuantity() - delta, adjusted.getQuantity());
+            publish(InventoryEvent.Type.STOCK_ADJUSTED, productName, null, adjusted.getQuantity() - delta,
+                    adjusted.getQuantity(), adjusted.getPrice());
+            Logger.info("Stock adjusted by " + delta + ": " + productName);
+            return true;
+        } catch (SQLException e) {
+            ADJUST_TIMER.error();
+            Logger.error("Database error while adjusting stock: " + e.getMessage());
+            return false;
+        } finally {
+            productCache.invalidate(productName);
+            ADJUST_TIMER.stop(start);
         }
     }
 
-    public void updateProductDetails(String currentName) {
+    /**
+     * Takes stock for several products at once; either all succeed or none change.
+     * @param quantities Amount to take per product name
+     * @return true if every product had enough stock
+     */
+    public boolean reserveStock(Map<String, Integer> quantities) {
+        if (quantities == null || quantities.isEmpty()) {
+            Logger.error("Nothing to reserve");
+            return false;
+        }
+        for (Map.Entry<String, Integer> item : quantities.entrySet()) {
+            if (item.getKey() == null || item.getKey().isEmpty()) {
+                Logger.error("Product name cannot be empty");
+                return false;
+            }
+            if (item.getValue() == null || item.getValue() <= 0) {
+                Logger.error("Reserved quantity must be positive: " + item.getKey() + "=" + item.getValue());
+                return false;
+            }
+        }
+        long start = Metrics.start();
+        try {
+            List<Product> reserved = store.reserve(quantities);
+            if (reserved == null) {
+                Logger.error("Stock reservation rejected (product not found or insufficient stock)");
+                return false;
+            }
+            // The store returns the products in the map's order; their stored names may differ in case from the keys
+            Iterator<Integer> taken = quantities.values().iterator();
+            for (Product product : reserved) {
+                int oldQuantity = product.getQuantity() + taken.next();
+                quantityChanged(product.getName(), oldQuantity, product.getQuantity());
+                productCache.invalidate(product.getName());
+                publish(InventoryEvent.Type.RESERVED, product.getName(), null, oldQuantity, product.getQuantity(),
+                        product.getPrice());
+            }
+            Logger.info("Stock reserved for " + quantities.size() + " products");
+            return true;
+        } catch (SQLException e) {
+            RESERVE_TIMER.error();
+            Logger.error("Database error while reserving stock: " + e.getMessage());
+            return false;
+        } finally {
+            RESERVE_TIMER.stop(start);
+            for (String name : quantities.keySet()) {
+                productCache.invalidate(name);
+            }
+        }
+    }
+
+    /**
+     * Looks up a product by name.
+     * @return a copy of the product, or null if it does not exist or the lookup failed
+     */
+    public Product getProduct(String name) {
+        if (name == null || name.isEmpty()) {
+            return null;
+        }
+        long start = Metrics.start();
+        try {
+            return productCache.get(name, this::loadProduct);
+        } catch (SQLException e) {
+            GET_TIMER.error();
+            Logger.error("Database error while fetching product: " + e.getMessage());
+            return null;
+        } finally {
+            GET_TIMER.stop(start);
+        }
+    }
+
+    /**
+     * Updates the given fields of a product; null arguments leave a field unchanged.
+     * The write only succeeds if the quantity is still the one read at the start,
+     * so a concurrent stock adjustment is never overwritten.
+     * @return true if the product was updated
+     */
+    public boolean updateProduct(String currentName, String newName, String newDescription,
+                                 Double newPrice, Integer newQuantity) {
         if (currentName == null || currentName.isEmpty()) {
             Logger.error("Current product name cannot be empty");
-            return;
+            return false;
         }
-    
-        Product foundProduct = null;
-        try (Connection connection = DatabaseConnector.connect();
-             PreparedStatement statement = connection.prepareStatement("SELECT * FROM products WHERE name = ?")) {
-            statement.setString(1, currentName);
-            ResultSet resultSet = statement.executeQuery();
-            if (resultSet.next()) {
-                foundProduct = new Product(
-                        resultSet.getString("name"),
-                        resultSet.getString("description"),
-                        resultSet.getDouble("price"),
-                        resultSet.getInt("quantity")
-                );
-            }
+        if (newName != null && newName.isEmpty()) {
+            Logger.error("New product name cannot be empty");
+            return false;
+        }
+        if (newPrice != null && newPrice <= 0) {
+            Logger.error("Invalid price: " + newPrice);
+            return false;
+        }
+        if (newQuantity != null && newQuantity < 0) {
+            Logger.error("Invalid quantity: " + newQuantity);
+            return false;
+        }
+
+        long start = Metrics.start();
+        Product foundProduct;
+        try {
+            foundProduct = productCache.get(currentName, this::loadProduct);
         } catch (SQLException e) {
+            UPDATE_TIMER.error();
+            UPDATE_TIMER.stop(start);
             Logger.error("Database error while fetching product: " + e.getMessage());
-            return;
+            return false;
         }
-    
-        if (foundProduct != null) {
-            Scanner sc = new Scanner(System.in);
-            System.out.print("Do you want to change the product name? (yes/no): ");
-            if (sc.nextLine().equalsIgnoreCase("yes")) {
-                System.out.print("Enter new product name: ");
-                foundProduct.setName(sc.nextLine());
+        if (foundProduct == null) {
+            UPDATE_TIMER.stop(start);
+            Logger.error("Product not found: " + currentName);
+            return false;
+        }
+
+        int originalQuantity = foundProduct.getQuantity();
+        String originalDescription = foundProduct.getDescription();
+        if (newName != null) {
+            foundProduct.setName(newName);
+        }
+        if (newDescription != null) {
+            foundProduct.setDescription(newDescription);
+        }
+        if (newPrice != null) {
+            foundProduct.setPrice(newPrice);
+        }
+        if (newQuantity != null) {
+            foundProduct.setQuantity(newQuantity);
+        }
+
+        try {
+            if (store.update(currentName, foundProduct, originalQuantity)) {
+                UPDATE_TIMER.rows(1);
+                ReorderIndex index = reorderIndex;
+                if (index != null && !foundProduct.getName().equals(currentName)) {
+                    index.renamed(currentName, foundProduct.getName());
+                }
+                ProductSearchIndex search = searchIndex;
+                if (search != null && (!foundProduct.getName().equals(currentName)
+                        || !Objects.equals(foundProduct.getDescription(), originalDescription))) {
+                    search.update(currentName, foundProduct.getName(), foundProduct.getDescription());
+                }
+                quantityChanged(foundProduct.getName(), originalQuantity, foundProduct.getQuantity());
+                publish(InventoryEvent.Type.UPDATED, foundProduct.getName(),
+                        foundProduct.getName().equals(currentName) ? null : currentName, originalQuantity,
+                        foundProduct.getQuantity(), foundProduct.getPrice());
+                Logger.info("Product updated successfully: " + foundProduct.getName());
+                return true;
             }
-    
-            System.out.print("Do you want to change the product description? (yes/no): ");
-            if (sc.nextLine().equalsIgnoreCase("yes")) {
-                System.out.print("Enter new product description: ");
-                foundProduct.setDescription(sc.nextLine());
+            Logger.error("Product was changed or removed by another user, please retry: " + currentName);
+            return false;
+        } catch (SQLException e) {
+            UPDATE_TIMER.error();
+            Logger.error("Database error while updating product: " + e.getMessage());
+            return false;
+        } finally {
+            productCache.invalidate(currentName);
+            productCache.invalidate(foundProduct.getName());
+            UPDATE_TIMER.stop(start);
+        }
+    }
+
+    /**
+     * Sets the stock level at or below which a product should be reordered.
+     * @param reorderLevel the level, or 0 to stop tracking the product
+     * @return true if the product exists and the level was stored
+     */
+    public boolean setReorderLevel(String name, int reorderLevel) {
+        if (name == null || name.isEmpty()) {
+            Logger.error("Product name cannot be empty");
+            return false;
+        }
+        if (reorderLevel < 0) {
+            Logger.error("Invalid reorder level: " + reorderLevel);
+            return false;
+        }
+        long start = Metrics.start();
+        try {
+            int quantity = store.setReorderLevel(name, reorderLevel);
+            if (quantity < 0) {
+                Logger.error("Product not found: " + name);
+                return false;
             }
-    
-            System.out.print("Do you want to change the product price? (yes/no): ");
-            if (sc.nextLine().equalsIgnoreCase("yes")) {
-                System.out.print("Enter new product price: ");
-                try {
-                    foundProduct.setPrice(Double.parseDouble(sc.nextLine()));
-                } catch (NumberFormatException e) {
-                    Logger.error("Invalid price input");
-                    return;
-                }
+            REORDER_TIMER.rows(1);
+            ReorderIndex index = reorderIndex;
+            if (index != null) {
+                index.setReorderLevel(name, quantity, reorderLevel);
             }
-    
-            System.out.print("Do you want to change the product quantity? (yes/no): ");
-            if (sc.nextLine().equalsIgnoreCase("yes")) {
-                System.out.print("Enter new quantity: ");
-                try {
-                    foundProduct.setQuantity(Integer.parseInt(sc.nextLine()));
-                } catch (NumberFormatException e) {
-                    Logger.error("Invalid quantity input");
-                    return;
-                }
+            Logger.info("Reorder level of " + name + " set to " + reorderLevel);
+            return true;
+        } catch (SQLException e) {
+            REORDER_TIMER.error();
+            Logger.error("Database error while setting reorder level: " + e.getMessage());
+            return false;
+        } finally {
+            REORDER_TIMER.stop(start);
+        }
+    }
+
+    @Override
+    public List<ReorderIndex.Item> getProductsToReorder(int limit) {
+        ReorderIndex index = reorderIndex;
+        if (index == null) {
+            Logger.error("Reorder tracking is disabled");
+            return null;
+        }
+        return index.due(Math.max(0, limit));
+    }
+
+    @Override
+    public List<ProductSearchIndex.Hit> searchProducts(String query, int limit) {
+        ProductSearchIndex index = searchIndex;
+        if (index == null) {
+            Logger.error("Product search is disabled");
+            return null;
+        }
+        long start = Metrics.start();
+        try {
+            List<ProductSearchIndex.Hit> hits = index.search(query == null ? "" : query, Math.max(0, limit));
+            SEARCH_TIMER.rows(hits.size());
+            return hits;
+        } finally {
+            SEARCH_TIMER.stop(start);
+        }
+    }
+
+    @Override
+    public List<String> getWarehouses() {
+        return warehouses != null ? warehouses.getWarehouses() : Collections.emptyList();
+    }
+
+    @Override
+    public Map<String, Integer> getStockByWarehouse(String name) {
+        if (warehouses == null) {
+            Logger.error("Warehouses are not configured");
+            return null;
+        }
+        try {
+            return warehouses.stockByWarehouse(name);
+        } catch (SQLException e) {
+            Logger.error("Could not read stock from every warehouse: " + e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public Product getWarehouseProduct(String warehouse, String name) {
+        if (isDefaultWarehouse(warehouse)) {
+            return getProduct(name);
+        }
+        ProductStore warehouseStore = warehouseStore(warehouse);
+        if (warehouseStore == null) {
+            return null;
+        }
+        long start = Metrics.start();
+        try {
+            return warehouseStore.find(name);
+        } catch (SQLException e) {
+            GET_TIMER.error();
+            Logger.error("Database error while reading product from warehouse " + warehouse + ": " + e.getMessage());
+            return null;
+        } finally {
+            GET_TIMER.stop(start);
+        }
+    }
+
+    @Override
+    public boolean addWarehouseProduct(String warehouse, String name, String description, double price, int quantity) {
+        if (isDefaultWarehouse(warehouse)) {
+            return addProduct(name, description, price, quantity);
+        }
+        ProductStore warehouseStore = warehouseStore(warehouse);
+        if (warehouseStore == null || !isValidNewProduct(name, price, quantity)) {
+            return false;
+        }
+        long start = Metrics.start();
+        try {
+            if (!warehouseStore.insert(new Product(name, description, price, quantity))) {
+                Logger.error("Product already exists in warehouse " + warehouse + ": " + name);
+                return false;
             }
-    
-            try (Connection connection = DatabaseConnector.connect();
-                 PreparedStatement statement = connection.prepareStatement(
-                     "UPDATE products SET name = ?, description = ?, price = ?, quantity = ? WHERE name = ?")) {
-                statement.setString(1, foundProduct.getName());
-                statement.setString(2, foundProduct.getDescription());
-                statement.setDouble(3, foundProduct.getPrice());
-                statement.setInt(4, foundProduct.getQuantity());
-                statement.setString(5, currentName);
-                statement.executeUpdate();
-                Logger.info("Product updated successfully: " + foundProduct.getName());
-            } catch (SQLException e) {
-                Logger.error("Database error while updating product: " + e.getMessage());
+            INSERT_TIMER.rows(1);
+            publish(InventoryEvent.Type.ADDED, name, null, 0, quantity, price, warehouse);
+            Logger.info("Product added to warehouse " + warehouse + ": " + name);
+            return true;
+        } catch (SQLException e) {
+            INSERT_TIMER.error();
+            Logger.error("Database error while adding product to warehouse " + warehouse + ": " + e.getMessage());
+            return false;
+        } finally {
+            INSERT_TIMER.stop(start);
+        }
+    }
+
+    @Override
+    public boolean adjustWarehouseStock(String warehouse, String name, int delta) {
+        if (delta == 0) {
+            Logger.error("Stock change must not be zero");
+            return false;
+        }
+        if (isDefaultWarehouse(warehouse)) {
+            return adjustStock(name, delta);
+        }
+        ProductStore warehouseStore = warehouseStore(warehouse);
+        if (warehouseStore == null) {
+            return false;
+        }
+        long start = Metrics.start();
+        try {
+            Product adjusted = warehouseStore.adjustQuantity(name, delta);
+            if (adjusted == null) {
+                Logger.error("Stock not adjusted in warehouse " + warehouse
+                        + " (product not found or insufficient stock): " + name);
+                return false;
             }
-        } else {
-            Logger.error("Product not found: " + currentName);
+            publish(InventoryEvent.Type.STOCK_ADJUSTED, name, null, adjusted.getQuantity() - delta,
+                    adjusted.getQuantity(), adjusted.getPrice(), warehouse);
+            Logger.info("Stock adjusted by " + delta + " in warehouse " + warehouse + ": " + name);
+            return true;
+        } catch (SQLException e) {
+            ADJUST_TIMER.error();
+            Logger.error("Database error while adjusting stock in warehouse " + warehouse + ": " + e.getMessage());
+            return false;
+        } finally {
+            ADJUST_TIMER.stop(start);
+        }
+    }
+
+    // The default warehouse goes through the usual paths so the cache and the reorder and search indexes,
+    // which only cover it, stay in step
+    private boolean isDefaultWarehouse(String warehouse) {
+        return warehouses != null && warehouses.getDefaultWarehouse().equals(warehouse);
+    }
+
+    private ProductStore warehouseStore(String warehouse) {
+        ProductStore warehouseStore = warehouses != null ? warehouses.store(warehouse) : null;
+        if (warehouseStore == null) {
+            Logger.error("No such warehouse: " + warehouse);
+        }
+        return warehouseStore;
+    }
+
+    @Override
+    public ProductQuery.Page queryProducts(ProductQuery query) {
+        long start = Metrics.start();
+        try {
+            ProductQuery.Page page = store.query(query);
+            QUERY_TIMER.rows(page.getProducts().size());
+            return page;
+        } catch (SQLException e) {
+            QUERY_TIMER.error();
+            Logger.error("Database error while querying products: " + e.getMessage());
+            return null;
+        } finally {
+            QUERY_TIMER.stop(start);
         }
     }
-    
-    
 
+    /**
+     * Prints one page of products in the same layout as {@link #viewInventory()}.
+     */
+    public void printProducts(ProductQuery.Page page) {
+        System.out.printf("%-20s %-30s %-10s %-10s%n", "Product Name", "Description", "Price", "Quantity");
+        System.out.println("---------------------------------------------------------------------");
+        for (Product product : page.getProducts()) {
+            System.out.printf("%-20s %-30s $%-9.2f %-10d%n",
+                    product.getName(),
+                    product.getDescription() != null ? product.getDescription() : "",
+                    product.getPrice(),
+                    product.getQuantity());
+        }
+    }
+
+    /**
+     * Prints every product in one pass. The menu pages through
+     * {@link #queryProducts(ProductQuery)} instead; this is kept for scripts
+     * that want the whole table.
+     */
     public void viewInventory() {
-        try (Connection connection = DatabaseConnector.connect();
-             PreparedStatement statement = connection.prepareStatement("SELECT * FROM products");
-             ResultSet resultSet = statement.executeQuery()) {
-            if (!resultSet.isBeforeFirst()) {
-                Logger.info("The inventory is currently empty");
-                return;
-            }
-    
-            System.out.printf("%-20s %-30s %-10s %-10s%n", "Product Name", "Description", "Price", "Quantity");
-            System.out.println("---------------------------------------------------------------------");
-            while (resultSet.next()) {
+        long start = Metrics.start();
+        long[] rows = new long[1];
+        try {
+            store.scan(product -> {
+                if (rows[0]++ == 0) {
+                    System.out.printf("%-20s %-30s %-10s %-10s%n", "Product Name", "Description", "Price", "Quantity");
+                    System.out.println("---------------------------------------------------------------------");
+                }
                 System.out.printf("%-20s %-30s $%-9.2f %-10d%n",
-                        resultSet.getString("name"),
-                        resultSet.getString("description"),
-                        resultSet.getDouble("price"),
-                        resultSet.getInt("quantity"));
+                        product.getName(),
+                        product.getDescription(),
+                        product.getPrice(),
+                        product.getQuantity());
+            });
+            if (rows[0] == 0) {
+                Logger.info("The inventory is currently empty");
             }
-        } catch (SQLException e) {
-            Logger.error("Database error while viewing inventory: " + e.getMessage());
+        } catch (SQLException | IOException e) {
+            VIEW_TIMER.error();
+            Logger.error("Error while viewing inventory: " + e.getMessage());
+        } finally {
+            VIEW_TIMER.rows(rows[0]);
+            VIEW_TIMER.stop(start);
         }
     }
     
 
     public void saveInventoryToFile(String filename) {
-        try (Connection connection = DatabaseConnector.connect();
-             PreparedStatement statement = connection.prepareStatement("SELECT * FROM products");
-             ResultSet resultSet = statement.executeQuery();
-             PrintWriter writer = new PrintWriter(filename)) {
-            
-            while (resultSet.next()) {
-                writer.printf("%s,%s,%.2f,%d%n",
-                    resultSet.getString("name"),
-                    resultSet.getString("description"),
-                    resultSet.getDouble("price"),
-                    resultSet.getInt("quantity"));
-            }
-            Logger.info("Inventory data saved to file: " + filename);
+        long start = Metrics.start();
+        try {
+            InventoryExporter exporter = new InventoryExporter(store, Paths.get(ConfigManager.getExportWatermarkFile()));
+            InventoryExporter.Result result = exporter.exportFile(filename);
+            EXPORT_TIMER.rows(result.getRows());
+            Logger.info(String.format("Inventory data saved to file: %s (%d rows, %d bytes, %.0f rows/sec)",
+                    filename, result.getRows(), result.getBytes(), result.getRowsPerSecond()));
         } catch (SQLException | IOException e) {
+            EXPORT_TIMER.error();
             Logger.error("Error saving inventory to file: " + e.getMessage());
+        } finally {
+            EXPORT_TIMER.stop(start);
         }
     }
 
+    /**
+     * Saves the inventory as a {@link BinarySnapshot} instead of CSV.
+     * @param compress Deflate each block of the snapshot
+     */
+    public void saveInventorySnapshot(String filename, boolean compress) {
+        long start = Metrics.start();
+        try {
+            InventoryExporter exporter = new InventoryExporter(store, Paths.get(ConfigManager.getExportWatermarkFile()));
+            InventoryExporter.Result result = exporter.exportSnapshot(filename, compress);
+            EXPORT_TIMER.rows(result.getRows());
+            Logger.info(String.format("Inventory snapshot saved to file: %s (%d rows, %d bytes, %.0f rows/sec)",
+                    filename, result.getRows(), result.getBytes(), result.getRowsPerSecond()));
+        } catch (SQLException | IOException e) {
+            EXPORT_TIMER.error();
+            Logger.error("Error saving inventory snapshot to file: " + e.getMessage());
+        } finally {
+            EXPORT_TIMER.stop(start);
+        }
+    }
+
+    /**
+     * Saves only the products changed and deleted since the last export, as a
+     * delta snapshot. Loading it, or passing it to {@link InventoryRestore}
+     * after the export it follows, applies the changes.
+     * @param compress Deflate each block of the delta
+     */
+    public void saveInventoryDelta(String filename, boolean compress) {
+        long start = Metrics.start();
+        try {
+            InventoryExporter exporter = new InventoryExporter(store, Paths.get(ConfigManager.getExportWatermarkFile()));
+            InventoryExporter.Result result = exporter.exportDelta(filename, compress);
+            EXPORT_TIMER.rows(result.getRows());
+            Logger.info(String.format("Inventory delta saved to file: %s (%d changes, %d bytes, %.0f rows/sec)",
+                    filename, result.getRows(), result.getBytes(), result.getRowsPerSecond()));
+        } catch (SQLException | IOException e) {
+            EXPORT_TIMER.error();
+            Logger.error("Error saving inventory delta to file: " + e.getMessage());
+        } finally {
+            EXPORT_TIMER.stop(start);
+        }
+    }
+
+    /**
+     * Converts a CSV inventory file to a binary snapshot, or a snapshot back to CSV.
+     * @param compress Deflate the snapshot when converting from CSV
+     * @return true if the file was converted
+     */
+    public boolean convertInventoryFile(String input, String output, boolean compress) {
+        try {
+            long rows = SnapshotConverter.convert(Paths.get(input), Paths.get(output), compress);
+            Logger.info("Converted " + input + " to " + output + " (" + rows + " rows)");
+            return true;
+        } catch (NoSuchFileException e) {
+            Logger.error("File not found: " + input);
+        } catch (IOException e) {
+            Logger.error("Error converting inventory file: " + e.getMessage());
+        }
+        return false;
+    }
+
     public void loadInventoryFromFile(String filename) {
-        try (Scanner fileScanner = new Scanner(new File(filename))) {
-            while (fileScanner.hasNextLine()) {
-                String line = fileScanner.nextLine();
-                String[] parts = line.split(",");
-                if (parts.length == 4) {
-                    try (Connection connection = DatabaseConnector.connect();
-                         PreparedStatement statement = connection.prepareStatement(
-                             "INSERT INTO products (name, description, price, quantity) VALUES (?, ?, ?, ?)")) {
-                        statement.setString(1, parts[0]);
-                        statement.setString(2, parts[1]);
-                        statement.setDouble(3, Double.parseDouble(parts[2]));
-                        statement.setInt(4, Integer.parseInt(parts[3]));
-                        statement.executeUpdate();
-                    } catch (SQLException e) {
-                        Logger.error("Error loading product from file: " + e.getMessage());
-                    }
-                }
+        loadInventoryFromFile(filename, false);
+    }
+
+    /**
+     * Imports products from a name,description,price,quantity file, or from a
+     * binary snapshot (recognised by its header), in batched transactions.
+     * Rows that fail are written to filename.rejects instead of aborting the import.
+     * CSV files are imported with import.parallelism threads.
+     * @param filename File to import
+     * @param upsert Update existing products with the same name instead of rejecting them
+     */
+    public void loadInventoryFromFile(String filename, boolean upsert) {
+        loadInventoryFromFile(filename, upsert, ConfigManager.getImportParallelism());
+    }
+
+    /**
+     * As {@link #loadInventoryFromFile(String, boolean)}, parsing and writing a
+     * CSV file on the given number of threads each.
+     */
+    public void loadInventoryFromFile(String filename, boolean upsert, int parallelism) {
+        long start = Metrics.start();
+        try {
+            InventoryImporter importer = new InventoryImporter(store, ConfigManager.getImportBatchSize(), upsert);
+            InventoryImporter.Result result;
+            try {
+                result = BinarySnapshot.isSnapshot(Paths.get(filename)) ? importer.importSnapshot(filename)
+                        : importer.importFile(filename, parallelism, ConfigManager.getImportChunkBytes());
+            } finally {
+                // An import can insert or overwrite any row, even one that fails part way
+                productCache.clear();
+                rebuildReorderIndex();
+                rebuildSearchIndex();
+                publish(InventoryEvent.Type.LOADED, filename, null, 0, 0, 0);
+            }
+            IMPORT_TIMER.rows(result.getImported());
+            Logger.info(String.format("Inventory data loaded from file: %s (%d imported, %d deleted, %d rejected,"
+                    + " %d batches, %.0f rows/sec; parse %.0f rows/sec/thread, write %.0f rows/sec/writer, %d ms waiting on writers)",
+                    filename, result.getImported(), result.getDeleted(), result.getRejected(), result.getBatches(),
+                    result.getRowsPerSecond(), result.getParseRowsPerSecond(), result.getWriteRowsPerSecond(),
+                    result.getStallMillis()));
+            if (result.getRejected() > 0) {
+                Logger.error("Rejected rows written to: " + filename + ".rejects");
             }
-            Logger.info("Inventory data loaded from file: " + filename);
-        } catch (FileNotFoundException e) {
+        } catch (NoSuchFileException e) {
+            IMPORT_TIMER.error();
             Logger.error("File not found: " + filename);
-        } catch (NumberFormatException e) {
-            Logger.error("Error in number format in the file");
+        } catch (IOException e) {
+            IMPORT_TIMER.error();
+            Logger.error("Error reading inventory file: " + e.getMessage());
+        } catch (SQLException e) {
+            IMPORT_TIMER.error();
+            Logger.error("Database error while loading inventory: " + e.getMessage());
+        } finally {
+            IMPORT_TIMER.stop(start);
         }
     }
 }
 
 class Login {
+    private static final OperationTimer VERIFY_TIMER = Metrics.timer("login.verify");
+    private static final SessionStore sessions = new SessionStore(ConfigManager.getAuthSessionTtlMillis(),
+            ConfigManager.getAuthMaxFailedAttempts(), ConfigManager.getAuthLockoutMillis());
+    private static final ThreadLocal<String> currentUser = new ThreadLocal<>();
+
     private String username;
     private String password;
+    private String sessionToken;
 
     public Login(String username, String password) {
         this.username = username;
         this.password = password;
     }
 
+    /**
+     * Checks the password against the stored hash and, if it matches, opens
+     * a session (see {@link #getSessionToken()}). Plain-text passwords left
+     * from before hashing, and hashes with too few iterations, are re-hashed
+     * on the first successful login.
+     */
     public boolean verifyCredentials() {
-        try (Connection connection = DatabaseConnector.connect();
-             PreparedStatement statement = connection.prepareStatement("SELECT * FROM users WHERE username = ? AND password = ?")) {
-            statement.setString(1, username);
-            statement.setString(2, password);
-            ResultSet resultSet = statement.executeQuery();
-            return resultSet.next();
+        if (sessions.isLockedOut(username)) {
+            Logger.error("Too many failed login attempts for user: " + username);
+            return false;
+        }
+        long start = Metrics.start();
+        try (Connection connection = DatabaseConnector.connect()) {
+            String stored = null;
+            try (PreparedStatement statement = connection.prepareStatement("SELECT password FROM users WHERE username = ?")) {
+                statement.setString(1, username);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    if (resultSet.next()) {
+                        stored = resultSet.getString(1);
+                    }
+                }
+            }
+            if (!PasswordHasher.verify(password, stored)) {
+                sessions.recordFailure(username);
+                return false;
+            }
+            if (PasswordHasher.needsRehash(stored)) {
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "UPDATE users SET password = ? WHERE username = ? AND password = ?")) {
+                    statement.setString(1, PasswordHasher.hash(password));
+                    statement.setString(2, username);
+                    statement.setString(3, stored);
+                    statement.executeUpdate();
+                }
+                Logger.info("Upgraded stored password hash for user: " + username);
+            }
+            sessions.recordSuccess(username);
+            sessionToken = sessions.createSession(username);
+            return true;
         } catch (SQLException e) {
+            VERIFY_TIMER.error();
             Logger.error("Database error during login: " + e.getMessage());
             return false;
+        } finally {
+            VERIFY_TIMER.stop(start);
+        }
+    }
+
+    /**
+     * @return the session token issued by the last successful {@link #verifyCredentials()}, or null
+     */
+    public String getSessionToken() {
+        return sessionToken;
+    }
+
+    /**
+     * @return the user the session belongs to, or null if the token is unknown or expired
+     */
+    public static String validateSession(String token) {
+        return sessions.validate(token);
+    }
+
+    public static void endSession(String token) {
+        sessions.invalidate(token);
+    }
+
+    public static boolean isLockedOut(String username) {
+        return sessions.isLockedOut(username);
+    }
+
+    /**
+     * Sets the user that changes made on this thread are attributed to; null clears it.
+     */
+    public static void setCurrentUser(String username) {
+        if (username == null) {
+            currentUser.remove();
+        } else {
+            currentUser.set(username);
         }
     }
+
+    /**
+     * @return the user set for this thread, or null
+     */
+    public static String getCurrentUser() {
+        return currentUser.get();
+    }
 }
 
 public class IMS {
+    /**
+     * Asks which fields of a product to change and passes the answers to
+     * {@link InventoryManagementSystem#updateProduct}.
+     */
+    private static void promptProductUpdate(Scanner sc, InventoryManagementSystem ims, String currentName) {
+        if (ims.getProduct(currentName) == null) {
+            Logger.error("Product not found: " + currentName);
+            return;
+        }
+
+        String newName = null;
+        String newDescription = null;
+        Double newPrice = null;
+        Integer newQuantity = null;
+
+        System.out.print("Do you want to change the product name? (yes/no): ");
+        if (sc.nextLine().equalsIgnoreCase("yes")) {
+            System.out.print("Enter new product name: ");
+            newName = sc.nextLine();
+        }
+
+        System.out.print("Do you want to change the product description? (yes/no): ");
+        if (sc.nextLine().equalsIgnoreCase("yes")) {
+            System.out.print("Enter new product description: ");
+            newDescription = sc.nextLine();
+        }
+
+        System.out.print("Do you want to change the product price? (yes/no): ");
+        if (sc.nextLine().equalsIgnoreCase("yes")) {
+            System.out.print("Enter new product price: ");
+            try {
+                newPrice = Double.parseDouble(sc.nextLine());
+            } catch (NumberFormatException e) {
+                Logger.error("Invalid price input");
+                return;
+            }
+        }
+
+        System.out.print("Do you want to change the product quantity? (yes/no): ");
+        if (sc.nextLine().equalsIgnoreCase("yes")) {
+            System.out.print("Enter new quantity: ");
+            try {
+                newQuantity = Integer.parseInt(sc.nextLine());
+            } catch (NumberFormatException e) {
+                Logger.error("Invalid quantity input");
+                return;
+            }
+        }
+
+        ims.updateProduct(currentName, newName, newDescription, newPrice, newQuantity);
+    }
+
+    /**
+     * Asks for optional filters, then shows matching products one page at a
+     * time until the last page or until the user stops.
+     */
+    private static void browseInventory(Scanner sc, InventoryManagementSystem ims) {
+        ProductQuery query = new ProductQuery().limit(ConfigManager.getQueryPageSize());
+        try {
+            System.out.print("Name starts with (blank for any): ");
+            query.namePrefix(sc.nextLine().trim());
+            System.out.print("Minimum price (blank for any): ");
+            query.minPrice(parseOptionalDouble(sc.nextLine()));
+            System.out.print("Maximum price (blank for any): ");
+            query.maxPrice(parseOptionalDouble(sc.nextLine()));
+            System.out.print("Only stock at or below (blank for any): ");
+            String threshold = sc.nextLine().trim();
+            query.lowStock(threshold.isEmpty() ? null : Integer.valueOf(threshold));
+        } catch (NumberFormatException e) {
+            Logger.error("Invalid number input");
+            return;
+        }
+
+        while (true) {
+            ProductQuery.Page page = ims.queryProducts(query);
+            if (page == null) {
+                return;
+            }
+            if (page.getProducts().isEmpty()) {
+                Logger.info("No products match the filters");
+                return;
+            }
+            ims.printProducts(page);
+            if (!page.hasMore()) {
+                return;
+            }
+            System.out.print("Press Enter for the next page, or q to stop: ");
+            if (sc.nextLine().trim().equalsIgnoreCase("q")) {
+                return;
+            }
+            query.after(page.getNextCursor());
+        }
+    }
+
+    private static void printReorderReport(InventoryManagementSystem ims) {
+        List<ReorderIndex.Item> items = ims.getProductsToReorder(ConfigManager.getQueryPageSize());
+        if (items == null) {
+            return;
+        }
+        if (items.isEmpty()) {
+            Logger.info("No products are at or below their reorder level");
+            return;
+        }
+        System.out.printf("%-20s %-10s %-14s%n", "Product Name", "Quantity", "Reorder Level");
+        System.out.println("---------------------------------------------");
+        for (ReorderIndex.Item item : items) {
+            System.out.printf("%-20s %-10d %-14d%n", item.getName(), item.getQuantity(), item.getReorderLevel());
+        }
+        ReorderIndex index = ims.getReorderIndex();
+        int more = index != null ? index.getDueCount() - items.size() : 0;
+        if (more > 0) {
+            System.out.println("... and " + more + " more");
+        }
+    }
+
+    private static void printSearchResults(InventoryManagementSystem ims, String query) {
+        List<ProductSearchIndex.Hit> hits = ims.searchProducts(query, ConfigManager.getQueryPageSize());
+        if (hits == null) {
+            return;
+        }
+        if (hits.isEmpty()) {
+            Logger.info("No products match: " + query);
+            return;
+        }
+        System.out.printf("%-20s %-30s %-10s %-10s%n", "Product Name", "Description", "Price", "Quantity");
+        System.out.println("---------------------------------------------------------------------");
+        for (ProductSearchIndex.Hit hit : hits) {
+            // Found in the index but removed by another process since the last rebuild
+            Product product = ims.getProduct(hit.getName());
+            if (product != null) {
+                System.out.printf("%-20s %-30s $%-9.2f %-10d%n",
+                        product.getName(),
+                        product.getDescription() != null ? product.getDescription() : "",
+                        product.getPrice(),
+                        product.getQuantity());
+            }
+        }
+    }
+
+    private static void printStockByWarehouse(InventoryManagementSystem ims, String name) {
+        Map<String, Integer> stock = ims.getStockByWarehouse(name);
+        if (stock == null) {
+            return;
+        }
+        if (stock.isEmpty()) {
+            Logger.info("No warehouse stocks: " + name);
+            return;
+        }
+        System.out.printf("%-20s %-10s%n", "Warehouse", "Quantity");
+        System.out.println("-------------------------------");
+        long total = 0;
+        for (Map.Entry<String, Integer> entry : stock.entrySet()) {
+            System.out.printf("%-20s %-10d%n", entry.getKey(), entry.getValue());
+            total += entry.getValue();
+        }
+        System.out.printf("%-20s %-10d%n", "Total", total);
+    }
+
+    private static Double parseOptionalDouble(String input) {
+        String trimmed = input.trim();
+        return trimmed.isEmpty() ? null : Double.valueOf(trimmed);
+    }
+
     public static void main(String[] args) {
         InventoryManagementSystem ims = new InventoryManagementSystem();
         Scanner sc = new Scanner(System.in);
@@ -332,6 +1224,8 @@ public class IMS {
         boolean isAuthenticated = login.verifyCredentials();
 
         if (isAuthenticated) {
+            Login.setCurrentUser(username);
+            ConfigManager.startWatching();
             boolean exit = false;
             while (!exit) {
                 System.out.println("\n--- Inventory Management System ---");
@@ -341,7 +1235,13 @@ public class IMS {
                 System.out.println("4. View Inventory");
                 System.out.println("5. Save Inventory to File");
                 System.out.println("6. Load Inventory from File");
-                System.out.println("7. Exit");
+                System.out.println("7. Adjust Stock");
+                System.out.println("8. Convert Inventory File");
+                System.out.println("9. Set Reorder Level");
+                System.out.println("10. Low Stock Report");
+                System.out.println("11. Search Products");
+                System.out.println("12. Stock by Warehouse");
+                System.out.println("13. Exit");
                 System.out.print("Choose an option: ");
                 int choice = sc.nextInt();
                 sc.nextLine(); // Consume the newline character
@@ -366,22 +1266,78 @@ public class IMS {
                     case 3:
                         System.out.print("Enter product name to update: ");
                         String productNameToUpdate = sc.nextLine();
-                        ims.updateProductDetails(productNameToUpdate);
+                        promptProductUpdate(sc, ims, productNameToUpdate);
                         break;
                     case 4:
-                        ims.viewInventory();
+                        browseInventory(sc, ims);
                         break;
                     case 5:
                         System.out.print("Enter filename to save inventory: ");
                         String saveFilename = sc.nextLine();
-                        ims.saveInventoryToFile(saveFilename);
+                        System.out.print("Format (csv/binary/delta): ");
+                        String format = sc.nextLine();
+                        if (format.equalsIgnoreCase("binary")) {
+                            System.out.print("Compress the snapshot? (yes/no): ");
+                            ims.saveInventorySnapshot(saveFilename, sc.nextLine().equalsIgnoreCase("yes"));
+                        } else if (format.equalsIgnoreCase("delta")) {
+                            System.out.print("Compress the delta? (yes/no): ");
+                            ims.saveInventoryDelta(saveFilename, sc.nextLine().equalsIgnoreCase("yes"));
+                        } else {
+                            ims.saveInventoryToFile(saveFilename);
+                        }
                         break;
                     case 6:
                         System.out.print("Enter filename to load inventory: ");
                         String loadFilename = sc.nextLine();
-                        ims.loadInventoryFromFile(loadFilename);
+                        System.out.print("Update products that already exist? (yes/no): ");
+                        boolean upsert = sc.nextLine().equalsIgnoreCase("yes");
+                        ims.loadInventoryFromFile(loadFilename, upsert);
                         break;
                     case 7:
+                        System.out.print("Enter product name to adjust: ");
+                        String productNameToAdjust = sc.nextLine();
+                        System.out.print("Enter quantity change (e.g. 5 or -3): ");
+                        int change = sc.nextInt();
+                        if (change >= 0) {
+                            ims.incrementStock(productNameToAdjust, change);
+                        } else {
+                            ims.decrementStock(productNameToAdjust, -change);
+                        }
+                        break;
+                    case 8:
+                        System.out.print("Enter file to convert (CSV becomes binary, binary becomes CSV): ");
+                        String convertInput = sc.nextLine();
+                        System.out.print("Enter output filename: ");
+                        String convertOutput = sc.nextLine();
+                        boolean compress = false;
+                        try {
+                            if (!BinarySnapshot.isSnapshot(Paths.get(convertInput))) {
+                                System.out.print("Compress the snapshot? (yes/no): ");
+                                compress = sc.nextLine().equalsIgnoreCase("yes");
+                            }
+                        } catch (IOException e) {
+                            // convertInventoryFile reports the problem
+                        }
+                        ims.convertInventoryFile(convertInput, convertOutput, compress);
+                        break;
+                    case 9:
+                        System.out.print("Enter product name: ");
+                        String reorderName = sc.nextLine();
+                        System.out.print("Enter reorder level (0 to stop tracking): ");
+                        ims.setReorderLevel(reorderName, sc.nextInt());
+                        break;
+                    case 10:
+                        printReorderReport(ims);
+                        break;
+                    case 11:
+                        System.out.print("Enter search words: ");
+                        printSearchResults(ims, sc.nextLine());
+                        break;
+                    case 12:
+                        System.out.print("Enter product name: ");
+                        printStockByWarehouse(ims, sc.nextLine());
+                        break;
+                    case 13:
                         exit = true;
                         System.out.println("Exiting the system. Goodbye!");
                         break;
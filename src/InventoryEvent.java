@@ -0,0 +1,207 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One change to the inventory, as published on the {@link EventBus} and kept
+ * in the {@link EventJournal}. Quantities are the product's stock before and
+ * after the change, so a consumer never has to read the store to know where
+ * stock stands. The offset is the event's position in the journal, assigned
+ * when it is appended. The warehouse is null unless warehouses are configured.
+ */
+public class InventoryEvent {
+    public enum Type {
+        /** A product was created; the old quantity is 0. */
+        ADDED,
+        /** A product was deleted; the new quantity is 0. */
+        REMOVED,
+        /** Product details were edited; previousName is set if it was renamed. */
+        UPDATED,
+        /** Stock was added or taken by a single adjustment. */
+        STOCK_ADJUSTED,
+        /** Stock was taken by a multi-product reservation; one event per product. */
+        RESERVED,
+        /** A file was loaded in bulk; productName is the file and consumers should re-read the store. */
+        LOADED
+    }
+
+    private static final Type[] TYPES = Type.values();
+
+    private final long offset;
+    private final Type type;
+    private final String productName;
+    private final String previousName;
+    private final int oldQuantity;
+    private final int newQuantity;
+    private final double price;
+    private final String user;
+    private final long timestamp;
+    private final String warehouse;
+
+    public InventoryEvent(Type type, String productName, String previousName, int oldQuantity, int newQuantity,
+                          double price, String user, long timestamp) {
+        this(type, productName, previousName, oldQuantity, newQuantity, price, user, timestamp, null);
+    }
+
+    public InventoryEvent(Type type, String productName, String previousName, int oldQuantity, int newQuantity,
+                          double price, String user, long timestamp, String warehouse) {
+        this(-1, type, productName, previousName, oldQuantity, newQuantity, price, user, timestamp, warehouse);
+    }
+
+    private InventoryEvent(long offset, Type type, String productName, String previousName, int oldQuantity,
+                           int newQuantity, double price, String user, long timestamp, String warehouse) {
+        this.offset = offset;
+        this.type = type;
+        this.productName = productName;
+        this.previousName = previousName;
+        this.oldQuantity = oldQuantity;
+        this.newQuantity = newQuantity;
+        this.price = price;
+        this.user = user;
+        this.timestamp = timestamp;
+        this.warehouse = warehouse;
+    }
+
+    InventoryEvent withOffset(long offset) {
+        return new InventoryEvent(offset, type, productName, previousName, oldQuantity, newQuantity, price, user,
+                timestamp, warehouse);
+    }
+
+    /**
+     * @return the position in the journal, or -1 if the event has not been appended
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getProductName() {
+        return productName;
+    }
+
+    /**
+     * @return the name before a rename, or null
+     */
+    public String getPreviousName() {
+        return previousName;
+    }
+
+    public int getOldQuantity() {
+        return oldQuantity;
+    }
+
+    public int getNewQuantity() {
+        return newQuantity;
+    }
+
+    public double getPrice() {
+        return price;
+    }
+
+    /**
+     * @return the logged-in user who made the change, or null if it was not made on behalf of a user
+     */
+    public String getUser() {
+        return user;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the warehouse whose stock changed, or null if warehouses are not configured
+     */
+    public String getWarehouse() {
+        return warehouse;
+    }
+
+    /**
+     * Appends the event without its offset, which the journal knows from the
+     * record's position. Strings are length-prefixed UTF-8, -1 for null.
+     * The warehouse comes last, so records written before it existed still decode.
+     */
+    void encode(ByteBuffer out) {
+        out.put((byte) type.ordinal());
+        putString(out, productName);
+        putString(out, previousName);
+        out.putInt(oldQuantity);
+        out.putInt(newQuantity);
+        out.putDouble(price);
+        putString(out, user);
+        out.putLong(timestamp);
+        putString(out, warehouse);
+    }
+
+    /**
+     * @return an upper bound on the bytes {@link #encode} writes
+     */
+    int maxEncodedSize() {
+        return 1 + 4 * 4 + 4 + 4 + 8 + 8 + 3 * maxLength(productName) + 3 * maxLength(previousName)
+                + 3 * maxLength(user) + 3 * maxLength(warehouse);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the record is malformed
+     */
+    static InventoryEvent decode(long offset, ByteBuffer in) {
+        try {
+            int ordinal = in.get();
+            if (ordinal < 0 || ordinal >= TYPES.length) {
+                throw new IllegalArgumentException("Unknown event type: " + ordinal);
+            }
+            return new InventoryEvent(offset, TYPES[ordinal], getString(in), getString(in), in.getInt(), in.getInt(),
+                    in.getDouble(), getString(in), in.getLong(), in.hasRemaining() ? getString(in) : null);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Event record is truncated");
+        }
+    }
+
+    private static int maxLength(String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    private static void putString(ByteBuffer out, String value) {
+        if (value == null) {
+            out.putInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.putInt(bytes.length);
+        out.put(bytes);
+    }
+
+    private static String getString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Bad string length in event record: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public String toJson() {
+        return "{\"offset\":" + offset
+                + ",\"type\":\"" + type + "\""
+                + ",\"product\":" + Json.quote(productName)
+                + ",\"previousName\":" + Json.quote(previousName)
+                + ",\"oldQuantity\":" + oldQuantity
+                + ",\"newQuantity\":" + newQuantity
+                + ",\"price\":" + price
+                + ",\"user\":" + Json.quote(user)
+                + ",\"timestamp\":" + timestamp
+                + ",\"warehouse\":" + Json.quote(warehouse) + "}";
+    }
+
+    @Override
+    public String toString() {
+        return toJson();
+    }
+}
@@ -0,0 +1,253 @@
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Streams every product in a {@link ProductStore} to a
+ * name,description,price,quantity CSV file. Products are read as the store
+ * scans them (through a server-side cursor for the database) and encoded
+ * straight into a large NIO buffer, so memory use does not grow with the
+ * size of the inventory. {@link #exportSnapshot} writes the same rows in the
+ * {@link BinarySnapshot} format.
+ * <p>
+ * With a watermark file, every successful export records the store
+ * watermark it covers, and {@link #exportDelta} writes only what changed
+ * since the last recorded export, whether full or delta.
+ */
+public class InventoryExporter {
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    private final ProductStore store;
+    private final Path watermarkFile;
+
+    public InventoryExporter(ProductStore store) {
+        this(store, null);
+    }
+
+    /**
+     * @param watermarkFile where the watermark of the last export is kept, or null to not keep it
+     */
+    public InventoryExporter(ProductStore store, Path watermarkFile) {
+        this.store = store;
+        this.watermarkFile = watermarkFile;
+    }
+
+    /**
+     * Result counters for a single export run.
+     */
+    public static class Result {
+        private final long rows;
+        private final long bytes;
+        private final long elapsedNanos;
+
+        Result(long rows, long bytes, long elapsedNanos) {
+            this.rows = rows;
+            this.bytes = bytes;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public double getRowsPerSecond() {
+            return elapsedNanos == 0 ? 0.0 : rows * 1_000_000_000.0 / elapsedNanos;
+        }
+    }
+
+    public Result exportFile(String filename) throws IOException, SQLException {
+        long start = System.nanoTime();
+        // Read before the scan: changes made during the scan may be exported twice, never missed
+        long watermark = store.currentWatermark();
+        Result result;
+        try (CsvChannelWriter writer = CsvChannelWriter.create(Paths.get(filename))) {
+            StringBuilder row = new StringBuilder(256);
+            long rows = store.scan(product -> {
+                row.setLength(0);
+                appendCsvRow(row, product);
+                writer.write(row);
+            });
+            writer.flush();
+            result = new Result(rows, writer.getBytesWritten(), System.nanoTime() - start);
+        }
+        recordWatermark(watermark);
+        return result;
+    }
+
+    /**
+     * Writes every product to a {@link BinarySnapshot} file instead of CSV.
+     * A failed export deletes the file, since its header would otherwise make
+     * the partial snapshot look complete.
+     */
+    public Result exportSnapshot(String filename, boolean compress) throws IOException, SQLException {
+        long start = System.nanoTime();
+        Path path = Paths.get(filename);
+        long watermark = store.currentWatermark();
+        BinarySnapshot.Writer writer = new BinarySnapshot.Writer(path, compress);
+        writer.setWatermark(watermark);
+        long rows;
+        try {
+            rows = store.scan(writer::write);
+        } catch (IOException | SQLException | RuntimeException e) {
+            writer.abort();
+            throw e;
+        }
+        writer.close();
+        recordWatermark(watermark);
+        return new Result(rows, writer.getBytesWritten(), System.nanoTime() - start);
+    }
+
+    /**
+     * Writes the products changed and deleted since the last recorded export
+     * to a delta {@link BinarySnapshot}. With no recorded export (or one from
+     * another kind of store) the delta holds every product.
+     * @return the result; rows counts deletions as well as products
+     */
+    public Result exportDelta(String filename, boolean compress) throws IOException, SQLException {
+        long start = System.nanoTime();
+        Path path = Paths.get(filename);
+        long since = readWatermark();
+        BinarySnapshot.Writer writer = BinarySnapshot.Writer.delta(path, compress, since);
+        long watermark;
+        try {
+            watermark = store.scanChanges(since, new ProductStore.ChangeVisitor() {
+                @Override
+                public void visit(Product product) throws IOException {
+                    writer.write(product);
+                }
+
+                @Override
+                public void deleted(String name) throws IOException {
+                    writer.writeDeletion(name);
+                }
+            });
+        } catch (IOException | SQLException | RuntimeException e) {
+            writer.abort();
+            throw e;
+        }
+        writer.setWatermark(watermark);
+        writer.close();
+        recordWatermark(watermark);
+        return new Result(writer.getRowCount(), writer.getBytesWritten(), System.nanoTime() - start);
+    }
+
+    /**
+     * @return the watermark of the last recorded export, or 0 if there is none for this store
+     */
+    long readWatermark() throws IOException {
+        if (watermarkFile == null || !Files.exists(watermarkFile)) {
+            return 0;
+        }
+        List<String> lines = Files.readAllLines(watermarkFile, StandardCharsets.UTF_8);
+        if (lines.size() < 2 || !lines.get(0).equals(store.getClass().getSimpleName())) {
+            Logger.info("No previous export recorded for this store in " + watermarkFile + "; exporting everything");
+            return 0;
+        }
+        try {
+            return Long.parseLong(lines.get(1).trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Corrupt watermark file: " + watermarkFile, e);
+        }
+    }
+
+    // Replaced atomically, so a crash leaves the previous watermark rather than a torn file
+    private void recordWatermark(long watermark) throws IOException {
+        if (watermarkFile == null) {
+            return;
+        }
+        Path temp = watermarkFile.resolveSibling(watermarkFile.getFileName() + ".tmp");
+        Files.write(temp, (store.getClass().getSimpleName() + "\n" + watermark + "\n").getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, watermarkFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Appends one name,description,price,quantity line, including the line break.
+     */
+    static void appendCsvRow(StringBuilder row, Product product) {
+        CsvCodec.appendField(row, product.getName());
+        row.append(',');
+        CsvCodec.appendField(row, product.getDescription());
+        row.append(',');
+        row.append(BigDecimal.valueOf(product.getPrice()).setScale(2, RoundingMode.HALF_UP).toPlainString());
+        row.append(',').append(product.getQuantity()).append('\n');
+    }
+
+    /**
+     * Encodes rows as UTF-8 into a single reusable buffer and writes it to the
+     * channel only when it fills up.
+     */
+    static class CsvChannelWriter implements AutoCloseable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        private long bytesWritten;
+
+        CsvChannelWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        static CsvChannelWriter create(Path path) throws IOException {
+            return new CsvChannelWriter(FileChannel.open(path,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+        }
+
+        void write(CharSequence text) throws IOException {
+            CharBuffer chars = CharBuffer.wrap(text);
+            while (true) {
+                CoderResult result = encoder.encode(chars, buffer, true);
+                if (result.isUnderflow()) {
+                    break;
+                }
+                if (result.isOverflow()) {
+                    drain();
+                } else {
+                    result.throwException();
+                }
+            }
+            encoder.reset();
+        }
+
+        void flush() throws IOException {
+            drain();
+            channel.force(false);
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                bytesWritten += channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                drain();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+}
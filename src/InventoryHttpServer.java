@@ -0,0 +1,720 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP/JSON front end for {@link InventoryService}, built on the JDK's
+ * com.sun.net.httpserver. Each request runs on its own virtual thread when
+ * the JVM supports them (Java 21+), otherwise on a bounded thread pool.
+ * <pre>
+ * GET    /health
+ * POST   /sessions                 {"username", "password"}
+ * DELETE /sessions
+ * GET    /products?prefix=&minPrice=&maxPrice=&lowStock=&after=&limit=&fields=summary
+ * GET    /products/{name}
+ * POST   /products                 {"name", "description", "price", "quantity"}
+ * PUT    /products/{name}          any of {"name", "description", "price", "quantity"}
+ * DELETE /products/{name}
+ * POST   /products/{name}/stock    {"delta": n}
+ * GET    /products/{name}/stock
+ * PUT    /products/{name}/reorder-level  {"reorderLevel": n}
+ * POST   /reservations             {"items": {"name": quantity, ...}}
+ * GET    /reorder?limit=
+ * GET    /search?q=&limit=
+ * GET    /warehouses
+ * POST   /warehouses/{id}/products {"name", "description", "price", "quantity"}
+ * GET    /warehouses/{id}/products/{name}
+ * POST   /warehouses/{id}/products/{name}/stock  {"delta": n}
+ * </pre>
+ * With http.requireSession=true, every other request must carry the token
+ * from POST /sessions as "Authorization: Bearer &lt;token&gt;". Without it
+ * the server only listens on a loopback address.
+ */
+public class InventoryHttpServer {
+    private static final int MAX_BODY_BYTES = 1 << 20;
+
+    private final InventoryService service;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final boolean requireSession;
+
+    /**
+     * @throws IOException if the address cannot be bound, or is not a loopback
+     *         address while http.requireSession is off
+     */
+    public InventoryHttpServer(InventoryService service, String host, int port, int maxThreads) throws IOException {
+        this.service = service;
+        this.requireSession = ConfigManager.isHttpSessionRequired();
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        if (!requireSession && (address.getAddress() == null || !address.getAddress().isLoopbackAddress())) {
+            throw new IOException("Refusing to listen on " + host + " without sessions; set http.requireSession=true"
+                    + " or use a loopback http.host");
+        }
+        this.server = HttpServer.create(address, 0);
+        this.executor = newRequestExecutor(maxThreads);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+    }
+
+    /**
+     * Uses a virtual-thread-per-task executor when available; the lookup is
+     * reflective so the class still compiles and runs on older JDKs.
+     */
+    static ExecutorService newRequestExecutor(int maxThreads) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), r -> {
+                        Thread thread = new Thread(r, "http-worker");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            return pool;
+        }
+    }
+
+    public void start() {
+        server.start();
+        Logger.info("HTTP server listening on " + server.getAddress());
+    }
+
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+        Logger.info("HTTP server stopped");
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            route(exchange);
+        } catch (IllegalArgumentException e) {
+            send(exchange, 400, error(e.getMessage()));
+        } catch (RuntimeException e) {
+            Logger.error("Unhandled error serving " + exchange.getRequestURI() + ": " + e);
+            send(exchange, 500, error("Internal server error"));
+        } finally {
+            Login.setCurrentUser(null);
+            exchange.close();
+        }
+    }
+
+    private void route(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getRawPath();
+
+        if (path.equals("/health")) {
+            send(exchange, 200, "{\"status\":\"ok\"}");
+            return;
+        }
+        if (path.equals("/sessions")) {
+            if (method.equals("POST")) {
+                createSession(exchange);
+            } else if (method.equals("DELETE")) {
+                Login.endSession(bearerToken(exchange));
+                send(exchange, 204, null);
+            } else {
+                send(exchange, 405, error("Method not allowed"));
+            }
+            return;
+        }
+        String user = Login.validateSession(bearerToken(exchange));
+        if (requireSession && user == null) {
+            exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+            send(exchange, 401, error("A valid session token is required"));
+            return;
+        }
+        // Attributes the changes this request makes to the session's user
+        Login.setCurrentUser(user);
+        if (path.equals("/products")) {
+            if (method.equals("POST")) {
+                createProduct(exchange, null);
+            } else if (method.equals("GET")) {
+                listProducts(exchange);
+            } else {
+                send(exchange, 405, error("Method not allowed"));
+            }
+            return;
+        }
+        if (path.equals("/reservations") && method.equals("POST")) {
+            reserve(exchange);
+            return;
+        }
+        if (path.equals("/reorder") && method.equals("GET")) {
+            listReorders(exchange);
+            return;
+        }
+        if (path.equals("/search") && method.equals("GET")) {
+            search(exchange);
+            return;
+        }
+        if (path.equals("/warehouses") && method.equals("GET")) {
+            listWarehouses(exchange);
+            return;
+        }
+        if (path.startsWith("/warehouses/")) {
+            routeWarehouse(exchange, method, path.substring("/warehouses/".length()));
+            return;
+        }
+        if (path.startsWith("/products/")) {
+            String rest = path.substring("/products/".length());
+            if (rest.endsWith("/stock")) {
+                String name = decode(rest.substring(0, rest.length() - "/stock".length()));
+                if (method.equals("POST")) {
+                    adjustStock(exchange, null, name);
+                } else if (method.equals("GET")) {
+                    sendStockByWarehouse(exchange, name);
+                } else {
+                    send(exchange, 405, error("Method not allowed"));
+                }
+                return;
+            }
+            if (rest.endsWith("/reorder-level")) {
+                if (method.equals("PUT")) {
+                    setReorderLevel(exchange, decode(rest.substring(0, rest.length() - "/reorder-level".length())));
+                } else {
+                    send(exchange, 405, error("Method not allowed"));
+                }
+                return;
+            }
+            String name = decode(rest);
+            switch (method) {
+                case "GET":
+                    Product product = service.getProduct(name);
+                    if (product == null) {
+                        send(exchange, 404, error("Product not found"));
+                    } else {
+                        send(exchange, 200, toJson(product));
+                    }
+                    return;
+                case "PUT":
+                    updateProduct(exchange, name);
+                    return;
+                case "DELETE":
+                    if (service.removeProduct(name)) {
+                        send(exchange, 204, null);
+                    } else {
+                        send(exchange, 404, error("Product not found"));
+                    }
+                    return;
+                default:
+                    send(exchange, 405, error("Method not allowed"));
+                    return;
+            }
+        }
+        send(exchange, 404, error("No such resource"));
+    }
+
+    private void createSession(HttpExchange exchange) throws IOException {
+        Map<String, Object> body = readBody(exchange);
+        String username = requireString(body, "username");
+        String password = requireString(body, "password");
+        if (Login.isLockedOut(username)) {
+            send(exchange, 429, error("Too many failed login attempts"));
+            return;
+        }
+        Login login = new Login(username, password);
+        if (login.verifyCredentials()) {
+            send(exchange, 201, "{\"token\":" + Json.quote(login.getSessionToken())
+                    + ",\"expiresInSeconds\":" + ConfigManager.getAuthSessionTtlMillis() / 1000 + "}");
+        } else {
+            send(exchange, 401, error("Invalid username or password"));
+        }
+    }
+
+    private static String bearerToken(HttpExchange exchange) {
+        String header = exchange.getRequestHeaders().getFirst("Authorization");
+        if (header == null || !header.regionMatches(true, 0, "Bearer ", 0, 7)) {
+            return null;
+        }
+        return header.substring(7).trim();
+    }
+
+    private void routeWarehouse(HttpExchange exchange, String method, String rest) throws IOException {
+        int slash = rest.indexOf('/');
+        String warehouse = decode(slash < 0 ? rest : rest.substring(0, slash));
+        String resource = slash < 0 ? "" : rest.substring(slash);
+        if (!service.getWarehouses().contains(warehouse)) {
+            send(exchange, 404, error("No such warehouse"));
+            return;
+        }
+        if (resource.equals("/products")) {
+            if (method.equals("POST")) {
+                createProduct(exchange, warehouse);
+            } else {
+                send(exchange, 405, error("Method not allowed"));
+            }
+            return;
+        }
+        if (resource.startsWith("/products/")) {
+            String product = resource.substring("/products/".length());
+            if (product.endsWith("/stock")) {
+                if (method.equals("POST")) {
+                    adjustStock(exchange, warehouse, decode(product.substring(0, product.length() - "/stock".length())));
+                } else {
+                    send(exchange, 405, error("Method not allowed"));
+                }
+            } else if (method.equals("GET")) {
+                Product found = service.getWarehouseProduct(warehouse, decode(product));
+                if (found == null) {
+                    send(exchange, 404, error("Product not found"));
+                } else {
+                    send(exchange, 200, toJson(found));
+                }
+            } else {
+                send(exchange, 405, error("Method not allowed"));
+            }
+            return;
+        }
+        send(exchange, 404, error("No such resource"));
+    }
+
+    /**
+     * @param warehouse the warehouse to add to, or null for the default one
+     */
+    private void createProduct(HttpExchange exchange, String warehouse) throws IOException {
+        Map<String, Object> body = readBody(exchange);
+        String name = requireString(body, "name");
+        String description = optionalString(body, "description");
+        double price = requireNumber(body, "price");
+        int quantity = toInt(requireNumber(body, "quantity"), "quantity");
+        if (price <= 0 || quantity < 0) {
+            send(exchange, 400, error("Price must be positive and quantity must not be negative"));
+        } else if (warehouse == null ? service.addProduct(name, description, price, quantity)
+                : service.addWarehouseProduct(warehouse, name, description, price, quantity)) {
+            send(exchange, 201, toJson(new Product(name, description, price, quantity)));
+        } else {
+            send(exchange, 409, error("Product could not be added"));
+        }
+    }
+
+    private void listProducts(HttpExchange exchange) throws IOException {
+        Map<String, String> params = queryParameters(exchange.getRequestURI().getRawQuery());
+        int limit = params.containsKey("limit")
+                ? parseInt(params.get("limit"), "limit") : ConfigManager.getQueryPageSize();
+        ProductQuery query = new ProductQuery()
+                .namePrefix(params.get("prefix"))
+                .minPrice(params.containsKey("minPrice") ? parseDouble(params.get("minPrice"), "minPrice") : null)
+                .maxPrice(params.containsKey("maxPrice") ? parseDouble(params.get("maxPrice"), "maxPrice") : null)
+                .lowStock(params.containsKey("lowStock") ? parseInt(params.get("lowStock"), "lowStock") : null)
+                .includeDescription(!"summary".equals(params.get("fields")))
+                .after(params.containsKey("after") ? parseLong(params.get("after"), "after") : 0)
+                .limit(Math.min(limit, ConfigManager.getQueryMaxPageSize()));
+
+        ProductQuery.Page page = service.queryProducts(query);
+        if (page == null) {
+            send(exchange, 503, error("Products could not be read"));
+            return;
+        }
+        StringBuilder json = new StringBuilder(64 + page.getProducts().size() * 96);
+        json.append("{\"products\":[");
+        for (int i = 0; i < page.getProducts().size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(toJson(page.getProducts().get(i)));
+        }
+        json.append("],\"next\":").append(page.hasMore() ? Long.toString(page.getNextCursor()) : "null").append('}');
+        send(exchange, 200, json.toString());
+    }
+
+    private void updateProduct(HttpExchange exchange, String name) throws IOException {
+        Map<String, Object> body = readBody(exchange);
+        Double price = body.get("price") == null ? null : requireNumber(body, "price");
+        Integer quantity = body.get("quantity") == null ? null : toInt(requireNumber(body, "quantity"), "quantity");
+        if (service.getProduct(name) == null) {
+            send(exchange, 404, error("Product not found"));
+        } else if (service.updateProduct(name, optionalString(body, "name"), optionalString(body, "description"),
+                price, quantity)) {
+            String newName = optionalString(body, "name");
+            send(exchange, 200, toJson(service.getProduct(newName != null ? newName : name)));
+        } else {
+            send(exchange, 409, error("Product could not be updated"));
+        }
+    }
+
+    /**
+     * @param warehouse the warehouse whose stock changes, or null for the default one
+     */
+    private void adjustStock(HttpExchange exchange, String warehouse, String name) throws IOException {
+        int delta = toInt(requireNumber(readBody(exchange), "delta"), "delta");
+        boolean applied;
+        if (warehouse != null) {
+            applied = service.adjustWarehouseStock(warehouse, name, delta);
+        } else {
+            applied = delta >= 0 ? service.incrementStock(name, delta) : service.decrementStock(name, -delta);
+        }
+        Product product = applied ? (warehouse != null ? service.getWarehouseProduct(warehouse, name)
+                : service.getProduct(name)) : null;
+        if (product != null) {
+            send(exchange, 200, toJson(product));
+        } else {
+            send(exchange, 409, error("Product not found or insufficient stock"));
+        }
+    }
+
+    private void setReorderLevel(HttpExchange exchange, String name) throws IOException {
+        int reorderLevel = toInt(requireNumber(readBody(exchange), "reorderLevel"), "reorderLevel");
+        if (reorderLevel < 0) {
+            send(exchange, 400, error("reorderLevel must not be negative"));
+        } else if (service.setReorderLevel(name, reorderLevel)) {
+            send(exchange, 200, "{\"name\":" + Json.quote(name) + ",\"reorderLevel\":" + reorderLevel + "}");
+        } else {
+            send(exchange, 404, error("Product not found"));
+        }
+    }
+
+    private void listReorders(HttpExchange exchange) throws IOException {
+        Map<String, String> params = queryParameters(exchange.getRequestURI().getRawQuery());
+        int limit = params.containsKey("limit")
+                ? parseInt(params.get("limit"), "limit") : ConfigManager.getQueryPageSize();
+        List<ReorderIndex.Item> items = service.getProductsToReorder(Math.min(limit, ConfigManager.getQueryMaxPageSize()));
+        if (items == null) {
+            send(exchange, 503, error("Reorder tracking is disabled"));
+            return;
+        }
+        StringBuilder json = new StringBuilder(32 + items.size() * 64);
+        json.append("{\"products\":[");
+        for (int i = 0; i < items.size(); i++) {
+            ReorderIndex.Item item = items.get(i);
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"name\":").append(Json.quote(item.getName()))
+                    .append(",\"quantity\":").append(item.getQuantity())
+                    .append(",\"reorderLevel\":").append(item.getReorderLevel()).append('}');
+        }
+        json.append("]}");
+        send(exchange, 200, json.toString());
+    }
+
+    private void search(HttpExchange exchange) throws IOException {
+        Map<String, String> params = queryParameters(exchange.getRequestURI().getRawQuery());
+        String query = params.get("q");
+        if (query == null || query.isBlank()) {
+            send(exchange, 400, error("q is required"));
+            return;
+        }
+        int limit = params.containsKey("limit")
+                ? parseInt(params.get("limit"), "limit") : ConfigManager.getQueryPageSize();
+        List<ProductSearchIndex.Hit> hits = service.searchProducts(query, Math.min(limit, ConfigManager.getQueryMaxPageSize()));
+        if (hits == null) {
+            send(exchange, 503, error("Product search is disabled"));
+            return;
+        }
+        StringBuilder json = new StringBuilder(32 + hits.size() * 48);
+        json.append("{\"results\":[");
+        for (int i = 0; i < hits.size(); i++) {
+            ProductSearchIndex.Hit hit = hits.get(i);
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"name\":").append(Json.quote(hit.getName()))
+                    .append(",\"score\":").append(hit.getScore()).append('}');
+        }
+        json.append("]}");
+        send(exchange, 200, json.toString());
+    }
+
+    private void sendStockByWarehouse(HttpExchange exchange, String name) throws IOException {
+        Map<String, Integer> stock = service.getStockByWarehouse(name);
+        if (stock == null) {
+            send(exchange, 503, error("Warehouses are not configured or a shard could not be read"));
+            return;
+        }
+        if (stock.isEmpty()) {
+            send(exchange, 404, error("Product not found"));
+            return;
+        }
+        long total = 0;
+        StringBuilder warehouses = new StringBuilder(16 + stock.size() * 24);
+        warehouses.append('{');
+        for (Map.Entry<String, Integer> entry : stock.entrySet()) {
+            if (warehouses.length() > 1) {
+                warehouses.append(',');
+            }
+            warehouses.append(Json.quote(entry.getKey())).append(':').append(entry.getValue());
+            total += entry.getValue();
+        }
+        warehouses.append('}');
+        send(exchange, 200, "{\"name\":" + Json.quote(name) + ",\"total\":" + total
+                + ",\"warehouses\":" + warehouses + "}");
+    }
+
+    private void listWarehouses(HttpExchange exchange) throws IOException {
+        StringBuilder json = new StringBuilder("{\"warehouses\":[");
+        List<String> warehouses = service.getWarehouses();
+        for (int i = 0; i < warehouses.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(Json.quote(warehouses.get(i)));
+        }
+        json.append("]}");
+        send(exchange, 200, json.toString());
+    }
+
+    private void reserve(HttpExchange exchange) throws IOException {
+        Object items = readBody(exchange).get("items");
+        if (!(items instanceof Map) || ((Map<?, ?>) items).isEmpty()) {
+            throw new IllegalArgumentException("items must be a non-empty object of name to quantity");
+        }
+        Map<String, Integer> quantities = new LinkedHashMap<>();
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) items).entrySet()) {
+            if (!(entry.getValue() instanceof Double)) {
+                throw new IllegalArgumentException("Quantity for " + entry.getKey() + " must be a number");
+            }
+            quantities.put((String) entry.getKey(), toInt((Double) entry.getValue(), "quantity"));
+        }
+        if (service.reserveStock(quantities)) {
+            send(exchange, 200, "{\"reserved\":true}");
+        } else {
+            send(exchange, 409, "{\"reserved\":false}");
+        }
+    }
+
+    private static Map<String, Object> readBody(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] chunk = new byte[8192];
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                out.write(chunk, 0, read);
+                if (out.size() > MAX_BODY_BYTES) {
+                    throw new IllegalArgumentException("Request body too large");
+                }
+            }
+        }
+        return Json.parseObject(out.toString(StandardCharsets.UTF_8));
+    }
+
+    private static String requireString(Map<String, Object> body, String field) {
+        Object value = body.get(field);
+        if (!(value instanceof String) || ((String) value).isEmpty()) {
+            throw new IllegalArgumentException(field + " is required");
+        }
+        return (String) value;
+    }
+
+    private static String optionalString(Map<String, Object> body, String field) {
+        Object value = body.get(field);
+        if (value != null && !(value instanceof String)) {
+            throw new IllegalArgumentException(field + " must be a string");
+        }
+        return (String) value;
+    }
+
+    private static double requireNumber(Map<String, Object> body, String field) {
+        Object value = body.get(field);
+        if (!(value instanceof Double)) {
+            throw new IllegalArgumentException(field + " must be a number");
+        }
+        return (Double) value;
+    }
+
+    private static int toInt(double value, String field) {
+        if (value != Math.rint(value) || value > Integer.MAX_VALUE || value < Integer.MIN_VALUE) {
+            throw new IllegalArgumentException(field + " must be a whole number");
+        }
+        return (int) value;
+    }
+
+    private static Map<String, String> queryParameters(String rawQuery) {
+        Map<String, String> params = new LinkedHashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return params;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+            String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+            if (!value.isEmpty()) {
+                params.put(key, value);
+            }
+        }
+        return params;
+    }
+
+    private static int parseInt(String value, String field) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(field + " must be a whole number");
+        }
+    }
+
+    private static long parseLong(String value, String field) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(field + " must be a whole number");
+        }
+    }
+
+    private static double parseDouble(String value, String field) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(field + " must be a number");
+        }
+    }
+
+    // URLDecoder is meant for form data, so keep a literal '+' in a path from turning into a space
+    private static String decode(String raw) {
+        return URLDecoder.decode(raw.replace("+", "%2B"), StandardCharsets.UTF_8);
+    }
+
+    static String toJson(Product product) {
+        return "{\"name\":" + Json.quote(product.getName())
+                + ",\"description\":" + Json.quote(product.getDescription())
+                + ",\"price\":" + product.getPrice()
+                + ",\"quantity\":" + product.getQuantity() + "}";
+    }
+
+    private static String error(String message) {
+        return "{\"error\":" + Json.quote(message) + "}";
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        if (body == null) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Starts the server with the settings from config.properties.
+     * With --smoke-test, starts it on a free local port instead, runs a short
+     * create/read/adjust/delete sequence plus a burst of concurrent reads
+     * against the configured database, and exits with 1 if any check failed.
+     */
+    public static void main(String[] args) throws Exception {
+        InventoryManagementSystem ims = new InventoryManagementSystem();
+        if (args.length > 0 && args[0].equals("--smoke-test")) {
+            InventoryHttpServer server = new InventoryHttpServer(ims, "127.0.0.1", 0, ConfigManager.getHttpMaxThreads());
+            server.start();
+            boolean passed;
+            try {
+                WarehouseShards warehouses = WarehouseShards.shared();
+                passed = smokeTest("http://127.0.0.1:" + server.getPort(),
+                        warehouses != null ? warehouses.getDefaultWarehouse() : null);
+                System.out.println(passed ? "HTTP smoke test passed." : "HTTP smoke test FAILED.");
+            } finally {
+                server.stop();
+                DatabaseConnector.shutdown();
+            }
+            if (!passed) {
+                System.exit(1);
+            }
+            return;
+        }
+
+        ConfigManager.startWatching();
+        InventoryHttpServer server = new InventoryHttpServer(ims, ConfigManager.getHttpHost(),
+                ConfigManager.getHttpPort(), ConfigManager.getHttpMaxThreads());
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "http-shutdown"));
+        server.start();
+    }
+
+    /**
+     * @param warehouse the default warehouse, whose routes are checked too, or null
+     */
+    private static boolean smokeTest(String baseUrl, String warehouse) throws Exception {
+        HttpClient client = HttpClient.newHttpClient();
+        String name = "http-smoke-" + System.currentTimeMillis();
+        String productUrl = baseUrl + "/products/" + URLEncoder.encode(name, StandardCharsets.UTF_8);
+        boolean passed = true;
+
+        passed &= expect(client, "POST", baseUrl + "/sessions",
+                "{\"username\":" + Json.quote(name) + ",\"password\":\"wrong\"}", 401);
+        passed &= expect(client, "POST", baseUrl + "/products",
+                "{\"name\":" + Json.quote(name) + ",\"description\":\"smoke test\",\"price\":2.5,\"quantity\":10}", 201);
+        passed &= expect(client, "GET", productUrl, null, 200);
+        passed &= expect(client, "POST", productUrl + "/stock", "{\"delta\":-4}", 200);
+        passed &= expect(client, "POST", productUrl + "/stock", "{\"delta\":-100}", 409);
+        passed &= expect(client, "PUT", productUrl, "{\"description\":\"updated\"}", 200);
+        passed &= expect(client, "GET", baseUrl + "/products?prefix=" + URLEncoder.encode(name, StandardCharsets.UTF_8)
+                + "&lowStock=6&fields=summary", null, 200);
+        passed &= expect(client, "GET", baseUrl + "/products?limit=zero", null, 400);
+        passed &= expect(client, "PUT", productUrl + "/reorder-level", "{\"reorderLevel\":8}", 200);
+        passed &= expect(client, "GET", baseUrl + "/reorder?limit=10", null, 200);
+        passed &= expect(client, "GET", baseUrl + "/search?q=updated&limit=10", null, 200);
+        passed &= expect(client, "GET", baseUrl + "/search", null, 400);
+        passed &= expect(client, "GET", baseUrl + "/warehouses", null, 200);
+        passed &= expect(client, "GET", productUrl + "/stock", null, warehouse == null ? 503 : 200);
+        if (warehouse != null) {
+            String warehouseUrl = baseUrl + "/warehouses/" + URLEncoder.encode(warehouse, StandardCharsets.UTF_8);
+            passed &= expect(client, "POST", warehouseUrl + "/products",
+                    "{\"name\":" + Json.quote(name + "-w") + ",\"price\":1,\"quantity\":1}", 201);
+            passed &= expect(client, "POST", warehouseUrl + "/products/"
+                    + URLEncoder.encode(name + "-w", StandardCharsets.UTF_8) + "/stock", "{\"delta\":2}", 200);
+            passed &= expect(client, "GET", warehouseUrl + "/products/"
+                    + URLEncoder.encode(name + "-w", StandardCharsets.UTF_8), null, 200);
+            passed &= expect(client, "DELETE", baseUrl + "/products/"
+                    + URLEncoder.encode(name + "-w", StandardCharsets.UTF_8), null, 204);
+        }
+        passed &= expect(client, "GET", baseUrl + "/warehouses/no-such-warehouse/products/x", null, 404);
+
+        int concurrent = 200;
+        List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>(concurrent);
+        for (int i = 0; i < concurrent; i++) {
+            responses.add(client.sendAsync(HttpRequest.newBuilder(URI.create(productUrl)).GET().build(),
+                    HttpResponse.BodyHandlers.ofString()));
+        }
+        for (CompletableFuture<HttpResponse<String>> response : responses) {
+            if (response.get().statusCode() != 200) {
+                System.out.println("Concurrent GET returned " + response.get().statusCode());
+                passed = false;
+            }
+        }
+
+        passed &= expect(client, "DELETE", productUrl, null, 204);
+        passed &= expect(client, "GET", productUrl, null, 404);
+        return passed;
+    }
+
+    private static boolean expect(HttpClient client, String method, String url, String body, int expectedStatus)
+            throws Exception {
+        HttpRequest.BodyPublisher publisher = body == null
+                ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofString(body);
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url)).method(method, publisher).build();
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        boolean ok = response.statusCode() == expectedStatus;
+        System.out.println((ok ? "OK   " : "FAIL ") + method + " " + url + " -> " + response.statusCode()
+                + " " + response.body());
+        return ok;
+    }
+}
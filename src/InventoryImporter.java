@@ -0,0 +1,666 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams a name,description,price,quantity CSV file, or a {@link BinarySnapshot},
+ * into a {@link ProductStore}.
+ * Rows are handed to the store in batches (for the database, one JDBC batch
+ * and one transaction each). Rows that cannot be parsed or stored are written
+ * to a reject file (the input filename with a .rejects suffix) and the import
+ * carries on.
+ *
+ * <p>A CSV file can also be imported in parallel: it is cut into chunks of
+ * whole records, the chunks are parsed on a fork-join pool, and the rows are
+ * routed by a hash of the product name to writer threads, each sending its
+ * own batches to the store. Parsed chunks are handed on in file order and
+ * every name always goes to the same writer, so duplicate names are resolved
+ * exactly as in a sequential import.
+ */
+public class InventoryImporter {
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+    private static final OperationTimer PARSE_TIMER = Metrics.timer("import.parse");
+    private static final OperationTimer WRITE_TIMER = Metrics.timer("import.write");
+    // Marks the end of a writer's queue; compared by identity
+    private static final List<Row> END_OF_ROWS = new ArrayList<>(0);
+    private static final AtomicInteger WRITER_THREADS = new AtomicInteger();
+
+    private final ProductStore store;
+    private final int batchSize;
+    private final boolean upsert;
+
+    public InventoryImporter(ProductStore store, int batchSize, boolean upsert) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        }
+        this.store = store;
+        this.batchSize = batchSize;
+        this.upsert = upsert;
+    }
+
+    /**
+     * Result counters for a single import run.
+     */
+    public static class Result {
+        private long imported;
+        private long rejected;
+        private long deleted;
+        private long batches;
+        private long parsedRows;
+        private long writtenRows;
+        private long parseNanos;
+        private long writeNanos;
+        private long splitNanos;
+        private long stallNanos;
+        private long elapsedNanos;
+
+        public long getImported() {
+            return imported;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+
+        /**
+         * @return products removed by the deletions in a delta
+         */
+        public long getDeleted() {
+            return deleted;
+        }
+
+        public long getBatches() {
+            return batches;
+        }
+
+        /**
+         * @return products imported per second of wall-clock time
+         */
+        public double getRowsPerSecond() {
+            return perSecond(imported, elapsedNanos);
+        }
+
+        /**
+         * @return rows parsed per second of parsing time, for one parser thread
+         */
+        public double getParseRowsPerSecond() {
+            return perSecond(parsedRows, parseNanos);
+        }
+
+        /**
+         * @return rows sent to the store per second of store time, for one writer
+         */
+        public double getWriteRowsPerSecond() {
+            return perSecond(writtenRows, writeNanos);
+        }
+
+        /**
+         * @return time spent finding chunk boundaries before parsing started
+         */
+        public long getSplitMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(splitNanos);
+        }
+
+        /**
+         * @return time parsed rows waited for a writer queue with room, i.e. how long the writers held up the parsers
+         */
+        public long getStallMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(stallNanos);
+        }
+
+        private void add(Result other) {
+            imported += other.imported;
+            rejected += other.rejected;
+            deleted += other.deleted;
+            batches += other.batches;
+            parsedRows += other.parsedRows;
+            writtenRows += other.writtenRows;
+            parseNanos += other.parseNanos;
+            writeNanos += other.writeNanos;
+        }
+
+        private static double perSecond(long rows, long nanos) {
+            return nanos == 0 ? 0.0 : rows * 1_000_000_000.0 / nanos;
+        }
+    }
+
+    /**
+     * A parsed row waiting in the current batch, kept so a rejected product can
+     * be traced to its position in the file. Snapshot rows have no source text;
+     * a CSV line is rendered for them only if they are rejected.
+     */
+    private static class Row {
+        final long lineNumber;
+        final String line;
+        final Product product;
+
+        Row(long lineNumber, String line, Product product) {
+            this.lineNumber = lineNumber;
+            this.line = line;
+            this.product = product;
+        }
+
+        String text() {
+            if (line != null) {
+                return line;
+            }
+            StringBuilder row = new StringBuilder(128);
+            InventoryExporter.appendCsvRow(row, product);
+            row.setLength(row.length() - 1);
+            return row.toString();
+        }
+    }
+
+    public Result importFile(String filename) throws IOException, SQLException {
+        long start = System.nanoTime();
+        Result result = new Result();
+        Path path = Paths.get(filename);
+        Path rejectPath = Paths.get(filename + ".rejects");
+        Files.deleteIfExists(rejectPath);
+
+        try (CsvRecordReader reader = new CsvRecordReader(path);
+             RejectWriter rejects = new RejectWriter(rejectPath, "line")) {
+            List<Row> pending = new ArrayList<>(batchSize);
+            while (reader.next()) {
+                Product product;
+                try {
+                    product = parseProduct(reader.getFields());
+                } catch (IllegalArgumentException e) {
+                    reject(rejects, result, reader.getLineNumber(), reader.getLine(), e.getMessage());
+                    continue;
+                }
+                result.parsedRows++;
+                pending.add(new Row(reader.getLineNumber(), reader.getLine(), product));
+                if (pending.size() >= batchSize) {
+                    flush(pending, rejects, result);
+                }
+            }
+            flush(pending, rejects, result);
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        result.parseNanos = result.elapsedNanos - result.writeNanos;
+        return result;
+    }
+
+    /**
+     * Imports a CSV file with the given number of parser threads and the
+     * same number of writers; 1 or less runs {@link #importFile(String)}.
+     * With the database store each writer holds a pooled connection while it
+     * sends a batch, so the writers are capped at one less than
+     * db.pool.maxSize to leave a connection for everyone else.
+     * Memory use is bounded by the chunk size: at most two chunks per parser
+     * are parsed ahead, and each writer queue holds a few chunks' worth of rows.
+     * @param chunkBytes Approximate size of the byte range each parse task reads
+     */
+    public Result importFile(String filename, int parallelism, long chunkBytes) throws IOException, SQLException {
+        if (parallelism <= 1) {
+            return importFile(filename);
+        }
+        long start = System.nanoTime();
+        Result result = new Result();
+        Path path = Paths.get(filename);
+        Path rejectPath = Paths.get(filename + ".rejects");
+        Files.deleteIfExists(rejectPath);
+        int writerCount = writerCount(parallelism);
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+             RejectWriter rejects = new RejectWriter(rejectPath, "line")) {
+            ForkJoinPool parsers = new ForkJoinPool(parallelism);
+            ExecutorService writers = Executors.newFixedThreadPool(writerCount, r -> {
+                Thread thread = new Thread(r, "import-writer-" + WRITER_THREADS.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            try {
+                long splitStart = System.nanoTime();
+                List<CsvChunkSplitter.Chunk> chunks = CsvChunkSplitter.split(channel, chunkBytes);
+                result.splitNanos = System.nanoTime() - splitStart;
+
+                List<BlockingQueue<List<Row>>> queues = new ArrayList<>(writerCount);
+                List<Future<Result>> writerResults = new ArrayList<>(writerCount);
+                for (int i = 0; i < writerCount; i++) {
+                    BlockingQueue<List<Row>> queue = new ArrayBlockingQueue<>(4);
+                    queues.add(queue);
+                    writerResults.add(writers.submit(() -> drain(queue, rejects)));
+                }
+
+                ArrayDeque<Future<ParsedChunk>> inFlight = new ArrayDeque<>();
+                int next = 0;
+                while (next < chunks.size() || !inFlight.isEmpty()) {
+                    while (next < chunks.size() && inFlight.size() < parallelism * 2) {
+                        CsvChunkSplitter.Chunk chunk = chunks.get(next++);
+                        inFlight.add(parsers.submit(() -> parseChunk(channel, chunk, writerCount)));
+                    }
+                    ParsedChunk parsed = await(inFlight.removeFirst());
+                    result.parsedRows += parsed.rows;
+                    result.parseNanos += parsed.nanos;
+                    for (Rejected rejected : parsed.rejects) {
+                        reject(rejects, result, rejected.lineNumber, rejected.line, rejected.reason);
+                    }
+                    for (int i = 0; i < writerCount; i++) {
+                        if (!parsed.partitions.get(i).isEmpty()) {
+                            result.stallNanos += handOff(queues.get(i), parsed.partitions.get(i),
+                                    writerResults.get(i));
+                        }
+                    }
+                }
+                for (int i = 0; i < writerCount; i++) {
+                    handOff(queues.get(i), END_OF_ROWS, writerResults.get(i));
+                }
+                for (Future<Result> writerResult : writerResults) {
+                    result.add(await(writerResult));
+                }
+            } finally {
+                // Stop the parsers and writers before the file and the reject writer they use are closed
+                stop(parsers);
+                stop(writers);
+            }
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    /**
+     * @return the number of writers to use, below the database pool size if the store uses the pool
+     */
+    private int writerCount(int parallelism) {
+        if (!(store instanceof JdbcProductStore)) {
+            return parallelism;
+        }
+        int poolSize = ConfigManager.getPoolMaxSize();
+        int limit = Math.max(1, poolSize - 1);
+        if (parallelism <= limit) {
+            return parallelism;
+        }
+        Logger.info("Import uses " + limit + " writers instead of " + parallelism
+                + " to stay within db.pool.maxSize=" + poolSize);
+        return limit;
+    }
+
+    /**
+     * A line that could not be parsed, held until its chunk's turn to write rejects.
+     */
+    private static class Rejected {
+        final long lineNumber;
+        final String line;
+        final String reason;
+
+        Rejected(long lineNumber, String line, String reason) {
+            this.lineNumber = lineNumber;
+            this.line = line;
+            this.reason = reason;
+        }
+    }
+
+    /**
+     * The rows of one chunk, already split by writer.
+     */
+    private static class ParsedChunk {
+        final List<List<Row>> partitions;
+        final List<Rejected> rejects = new ArrayList<>();
+        long rows;
+        long nanos;
+
+        ParsedChunk(int writers) {
+            partitions = new ArrayList<>(writers);
+            for (int i = 0; i < writers; i++) {
+                partitions.add(new ArrayList<>());
+            }
+        }
+    }
+
+    private static ParsedChunk parseChunk(FileChannel channel, CsvChunkSplitter.Chunk chunk, int writers)
+            throws IOException {
+        long start = Metrics.start();
+        ParsedChunk parsed = new ParsedChunk(writers);
+        try (CsvRecordReader reader = new CsvRecordReader(new BufferedReader(
+                new InputStreamReader(chunk.open(channel), StandardCharsets.UTF_8), READ_BUFFER_SIZE),
+                chunk.getFirstLine())) {
+            while (reader.next()) {
+                Product product;
+                try {
+                    product = parseProduct(reader.getFields());
+                } catch (IllegalArgumentException e) {
+                    parsed.rejects.add(new Rejected(reader.getLineNumber(), reader.getLine(), e.getMessage()));
+                    continue;
+                }
+                parsed.rows++;
+                int writer = Math.floorMod(product.getName().hashCode(), writers);
+                parsed.partitions.get(writer).add(new Row(reader.getLineNumber(), reader.getLine(), product));
+            }
+        } catch (IOException | RuntimeException e) {
+            PARSE_TIMER.error();
+            throw e;
+        } finally {
+            PARSE_TIMER.rows(parsed.rows);
+            PARSE_TIMER.stop(start);
+            parsed.nanos = System.nanoTime() - start;
+        }
+        return parsed;
+    }
+
+    /**
+     * Sends one writer's rows to the store until it receives the end marker.
+     */
+    private Result drain(BlockingQueue<List<Row>> queue, RejectWriter rejects)
+            throws InterruptedException, IOException, SQLException {
+        Result result = new Result();
+        List<Row> pending = new ArrayList<>(batchSize);
+        List<Row> rows;
+        while ((rows = queue.take()) != END_OF_ROWS) {
+            for (Row row : rows) {
+                pending.add(row);
+                if (pending.size() >= batchSize) {
+                    flush(pending, rejects, result);
+                }
+            }
+        }
+        flush(pending, rejects, result);
+        return result;
+    }
+
+    /**
+     * Waits for room in a writer's queue. This is the backpressure that keeps
+     * parsing from running ahead of the store. A writer that has already
+     * stopped can only have failed, so its error is raised instead of waiting forever.
+     * @return the time spent waiting
+     */
+    private static long handOff(BlockingQueue<List<Row>> queue, List<Row> rows, Future<Result> writer)
+            throws IOException, SQLException {
+        long start = System.nanoTime();
+        try {
+            while (!queue.offer(rows, 100, TimeUnit.MILLISECONDS)) {
+                if (writer.isDone()) {
+                    await(writer);
+                    throw new IllegalStateException("Import writer stopped before the end of the file");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while importing", e);
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Cancels whatever the pool is still running and waits for it to finish.
+     * A writer in the middle of a batch cannot be interrupted, so this waits
+     * for the batch to complete.
+     */
+    private static void stop(ExecutorService pool) {
+        pool.shutdownNow();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (pool.awaitTermination(1, TimeUnit.SECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits for a parse or write task and rethrows its failure as thrown by the task.
+     */
+    private static <T> T await(Future<T> task) throws IOException, SQLException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while importing", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException("Import task failed", cause);
+        }
+    }
+
+    /**
+     * Imports a {@link BinarySnapshot} file. Rows are checked block by block, so
+     * a damaged file stops the import at the first bad block; the batches before
+     * it stay stored, as with a CSV import that fails part way.
+     * A delta is always applied with upsert, and its deletions are applied in
+     * file order with the products.
+     */
+    public Result importSnapshot(String filename) throws IOException, SQLException {
+        long start = System.nanoTime();
+        Result result = new Result();
+        Path rejectPath = Paths.get(filename + ".rejects");
+        Files.deleteIfExists(rejectPath);
+
+        try (BinarySnapshot.Reader reader = new BinarySnapshot.Reader(Paths.get(filename));
+             RejectWriter rejects = new RejectWriter(rejectPath, "row")) {
+            boolean upsertRows = upsert || reader.isDelta();
+            List<Row> pending = new ArrayList<>(batchSize);
+            Product product;
+            long rowNumber = 0;
+            while ((product = reader.next()) != null) {
+                rowNumber++;
+                if (reader.getDeletedName() != null) {
+                    flush(pending, rejects, result, upsertRows);
+                    if (store.delete(reader.getDeletedName()) != null) {
+                        result.deleted++;
+                    }
+                    continue;
+                }
+                if (product.getName() == null || product.getName().isEmpty()) {
+                    reject(rejects, result, rowNumber, new Row(rowNumber, null, product).text(), "empty product name");
+                    continue;
+                }
+                result.parsedRows++;
+                pending.add(new Row(rowNumber, null, product));
+                if (pending.size() >= batchSize) {
+                    flush(pending, rejects, result, upsertRows);
+                }
+            }
+            flush(pending, rejects, result, upsertRows);
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        result.parseNanos = result.elapsedNanos - result.writeNanos;
+        return result;
+    }
+
+    /**
+     * Builds a product from the four fields of a CSV record.
+     * @throws IllegalArgumentException naming the problem if the fields are not a valid product
+     */
+    static Product parseProduct(String[] parts) {
+        if (parts == null) {
+            throw new IllegalArgumentException("unterminated quoted field");
+        }
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("expected 4 fields but found " + parts.length);
+        }
+        if (parts[0].isEmpty()) {
+            throw new IllegalArgumentException("empty product name");
+        }
+        try {
+            return new Product(parts[0], parts[1],
+                    Double.parseDouble(parts[2].trim()), Integer.parseInt(parts[3].trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid number: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads CSV records, joining the physical lines of a quoted description
+     * that spans several of them.
+     */
+    static class CsvRecordReader implements AutoCloseable {
+        private final BufferedReader reader;
+        private long lineNumber;
+        private long recordLineNumber;
+        private String record;
+        private String[] fields;
+
+        CsvRecordReader(Path path) throws IOException {
+            this(new BufferedReader(Files.newBufferedReader(path, StandardCharsets.UTF_8), READ_BUFFER_SIZE), 1);
+        }
+
+        /**
+         * @param firstLine Line number of the reader's first line within the whole file
+         */
+        CsvRecordReader(BufferedReader reader, long firstLine) {
+            this.reader = reader;
+            this.lineNumber = firstLine - 1;
+        }
+
+        /**
+         * Advances to the next non-empty record.
+         * @return false at the end of the file
+         */
+        boolean next() throws IOException {
+            String line;
+            do {
+                line = reader.readLine();
+                if (line == null) {
+                    return false;
+                }
+                lineNumber++;
+            } while (line.isEmpty());
+            recordLineNumber = lineNumber;
+            String[] parsed = CsvCodec.parseLine(line);
+            String next;
+            while (parsed == null && (next = reader.readLine()) != null) {
+                lineNumber++;
+                line = line + "\n" + next;
+                parsed = CsvCodec.parseLine(line);
+            }
+            record = line;
+            fields = parsed;
+            return true;
+        }
+
+        /**
+         * @return the fields of the current record, or null if its quote is never closed
+         */
+        String[] getFields() {
+            return fields;
+        }
+
+        long getLineNumber() {
+            return recordLineNumber;
+        }
+
+        /**
+         * @return the source text of the current record
+         */
+        String getLine() {
+            return record;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    private void flush(List<Row> pending, RejectWriter rejects, Result result) throws SQLException, IOException {
+        flush(pending, rejects, result, upsert);
+    }
+
+    private void flush(List<Row> pending, RejectWriter rejects, Result result, boolean upsert)
+            throws SQLException, IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<Product> products = new ArrayList<>(pending.size());
+        for (Row row : pending) {
+            products.add(row.product);
+        }
+        long start = Metrics.start();
+        String[] reasons;
+        try {
+            reasons = store.importBatch(products, upsert);
+        } catch (SQLException | RuntimeException e) {
+            WRITE_TIMER.error();
+            throw e;
+        } finally {
+            WRITE_TIMER.rows(products.size());
+            WRITE_TIMER.stop(start);
+            result.writeNanos += System.nanoTime() - start;
+        }
+        result.writtenRows += products.size();
+        for (int i = 0; i < reasons.length; i++) {
+            if (reasons[i] == null) {
+                result.imported++;
+            } else {
+                Row row = pending.get(i);
+                reject(rejects, result, row.lineNumber, row.text(), reasons[i]);
+            }
+        }
+        result.batches++;
+        pending.clear();
+    }
+
+    private static void reject(RejectWriter rejects, Result result, long lineNumber, String line, String reason)
+            throws IOException {
+        result.rejected++;
+        rejects.write(lineNumber, line, reason);
+    }
+
+    /**
+     * Opens the reject file on the first rejected row so clean imports leave no file behind.
+     * Parallel writers share one instance, so writes are synchronized.
+     */
+    private static class RejectWriter implements AutoCloseable {
+        private final Path path;
+        private final String unit;
+        private BufferedWriter writer;
+
+        RejectWriter(Path path, String unit) {
+            this.path = path;
+            this.unit = unit;
+        }
+
+        synchronized void write(long lineNumber, String line, String reason) throws IOException {
+            if (writer == null) {
+                writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8);
+            }
+            writer.write("# " + unit + " " + lineNumber + ": " + reason);
+            writer.newLine();
+            writer.write(line);
+            writer.newLine();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+}
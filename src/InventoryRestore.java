@@ -0,0 +1,102 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rebuilds the inventory from a base export (CSV or full binary snapshot)
+ * followed by a chain of delta exports, applied in the order given. Every
+ * file is checked before anything is changed: each delta must start at the
+ * watermark the previous file ended at, so a missing or reordered delta is
+ * reported instead of silently leaving the inventory out of date.
+ * Products not in the base are left alone, so restore into an empty store.
+ */
+public class InventoryRestore {
+    private final ProductStore store;
+    private final int batchSize;
+
+    public InventoryRestore(ProductStore store, int batchSize) {
+        this.store = store;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return the number of products written, over the base and all deltas
+     * @throws IOException if a file is unreadable or the chain has a gap
+     */
+    public long restore(Path base, List<Path> deltas) throws IOException, SQLException {
+        checkChain(base, deltas);
+        InventoryImporter importer = new InventoryImporter(store, batchSize, true);
+        InventoryImporter.Result result = BinarySnapshot.isSnapshot(base)
+                ? importer.importSnapshot(base.toString()) : importer.importFile(base.toString());
+        report(base, result);
+        long written = result.getImported();
+        for (Path delta : deltas) {
+            result = importer.importSnapshot(delta.toString());
+            report(delta, result);
+            written += result.getImported();
+        }
+        return written;
+    }
+
+    private static void checkChain(Path base, List<Path> deltas) throws IOException {
+        // 0 when the base does not record where it ends (CSV or a version 1 snapshot)
+        long watermark = 0;
+        if (BinarySnapshot.isSnapshot(base)) {
+            try (BinarySnapshot.Reader reader = new BinarySnapshot.Reader(base)) {
+                if (reader.isDelta()) {
+                    throw new IOException("The base must be a full export, not a delta: " + base);
+                }
+                watermark = reader.getWatermark();
+            }
+        }
+        Path previous = base;
+        for (Path delta : deltas) {
+            if (!BinarySnapshot.isSnapshot(delta)) {
+                throw new IOException("Not a delta export: " + delta);
+            }
+            try (BinarySnapshot.Reader reader = new BinarySnapshot.Reader(delta)) {
+                if (!reader.isDelta()) {
+                    throw new IOException("Not a delta export: " + delta);
+                }
+                // A delta from 0 holds everything and can follow anything
+                if (watermark != 0 && reader.getFromWatermark() != 0 && reader.getFromWatermark() != watermark) {
+                    throw new IOException("Delta " + delta + " does not follow " + previous
+                            + ": it starts at watermark " + reader.getFromWatermark() + " but " + previous
+                            + " ends at " + watermark);
+                }
+                if (watermark == 0 && previous == base && reader.getFromWatermark() != 0) {
+                    Logger.info("Base " + base + " records no watermark; assuming " + delta + " follows it");
+                }
+                watermark = reader.getWatermark();
+            }
+            previous = delta;
+        }
+    }
+
+    private static void report(Path file, InventoryImporter.Result result) {
+        Logger.info("Restored " + file + " (" + result.getImported() + " written, " + result.getDeleted()
+                + " deleted, " + result.getRejected() + " rejected)");
+        if (result.getRejected() > 0) {
+            Logger.error("Rejected rows written to: " + file + ".rejects");
+        }
+    }
+
+    public static void main(String[] args) throws IOException, SQLException {
+        if (args.length < 1) {
+            System.out.println("Usage: java InventoryRestore <base export> [delta export ...]");
+            return;
+        }
+        List<Path> deltas = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            deltas.add(Paths.get(args[i]));
+        }
+        try (ProductStore store = ProductStore.fromConfig()) {
+            long written = new InventoryRestore(store, ConfigManager.getImportBatchSize())
+                    .restore(Paths.get(args[0]), deltas);
+            System.out.println("Restored " + written + " products from " + args.length + " files");
+        }
+    }
+}
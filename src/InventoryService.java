@@ -0,0 +1,107 @@
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Inventory operations without any console interaction, for use by the
+ * HTTP front end and other services. Implementations must be safe to call
+ * from many threads at once.
+ */
+public interface InventoryService {
+
+    /**
+     * @return the product, or null if it does not exist
+     */
+    Product getProduct(String name);
+
+    /**
+     * Reads one page of products matching the query, in id order.
+     * @return the page, or null if the database could not be read
+     */
+    ProductQuery.Page queryProducts(ProductQuery query);
+
+    /**
+     * @return true if the product was added, false if it is invalid or already exists
+     */
+    boolean addProduct(String name, String description, double price, int quantity);
+
+    /**
+     * @return true if the product existed and was removed
+     */
+    boolean removeProduct(String name);
+
+    /**
+     * Changes the non-null fields of a product.
+     * @return true if the product was updated
+     */
+    boolean updateProduct(String currentName, String newName, String newDescription,
+                          Double newPrice, Integer newQuantity);
+
+    /**
+     * @return true if the product exists and the stock was added
+     */
+    boolean incrementStock(String name, int amount);
+
+    /**
+     * @return true if the product had enough stock and it was removed
+     */
+    boolean decrementStock(String name, int amount);
+
+    /**
+     * Takes stock for several products at once, all or nothing.
+     * @return true if every product had enough stock, false if it did not or
+     *         a name or quantity was missing or a quantity was not positive
+     */
+    boolean reserveStock(Map<String, Integer> quantities);
+
+    /**
+     * Sets the quantity at or below which the product is due for reorder; 0 removes it.
+     * @return true if the product exists and the level was stored
+     */
+    boolean setReorderLevel(String name, int reorderLevel);
+
+    /**
+     * @return up to limit products at or below their reorder level, most urgent
+     *         first, or null if reorder tracking is disabled
+     */
+    List<ReorderIndex.Item> getProductsToReorder(int limit);
+
+    /**
+     * Finds products by the words of their name and description, allowing
+     * prefixes and typos.
+     * @return up to limit matches, best first, or null if search is disabled
+     */
+    List<ProductSearchIndex.Hit> searchProducts(String query, int limit);
+
+    /**
+     * @return the warehouse ids in the order they are listed, or an empty list
+     *         if warehouses are not configured
+     */
+    List<String> getWarehouses();
+
+    /**
+     * Reads the product's stock from every warehouse shard in parallel.
+     * @return quantity by warehouse for the warehouses that have the product,
+     *         or null if warehouses are not configured or a shard could not be read
+     */
+    Map<String, Integer> getStockByWarehouse(String name);
+
+    /**
+     * The warehouse methods touch only that warehouse's shard. Changes in
+     * every warehouse are published as events carrying the warehouse id; only
+     * the cache and the reorder and search indexes cover just the default.
+     * @return the product in that warehouse, or null if it or the warehouse does not exist
+     */
+    Product getWarehouseProduct(String warehouse, String name);
+
+    /**
+     * @return true if the product was added to the warehouse, false if it is
+     *         invalid, already there, or the warehouse does not exist
+     */
+    boolean addWarehouseProduct(String warehouse, String name, String description, double price, int quantity);
+
+    /**
+     * Adds delta to the product's quantity in one warehouse unless that would make it negative.
+     * @return true if the product exists in the warehouse and the stock was changed
+     */
+    boolean adjustWarehouseStock(String warehouse, String name, int delta);
+}
@@ -0,0 +1,427 @@
+import java.io.IOException;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps products in the products table of the configured database, using
+ * connections from {@link DatabaseConnector}, or from a shard's own pool.
+ * Stock changes go through a {@link StockAdjuster} so concurrent
+ * adjustments are combined.
+ * <p>
+ * A store for one warehouse of a shard reads and writes only that
+ * warehouse's rows. The shard's products and product_tombstones tables then
+ * have a warehouse column, and a name is unique per warehouse.
+ * <p>
+ * Changes are tracked by the database: products.last_modified is set on
+ * every insert and update, and deleting or renaming a product records its
+ * old name in product_tombstones. Watermarks are database times in epoch
+ * milliseconds. A change is stamped when its statement starts but becomes
+ * visible only at commit, so {@link #scanChanges} looks back deltaOverlapMillis
+ * before the watermark it is given.
+ */
+public class JdbcProductStore implements ProductStore {
+    private static final String SELECT_ALL_SQL = "SELECT name, description, price, quantity FROM products";
+    static final String FIND_SQL = SELECT_ALL_SQL + " WHERE name = ?";
+    private static final String UPSERT_SUFFIX =
+            " ON DUPLICATE KEY UPDATE description = VALUES(description), price = VALUES(price), quantity = VALUES(quantity)";
+
+    private final ConnectionPool pool;
+    // Appended to each WHERE clause to keep statements to this store's warehouse; empty when unsharded
+    private final String scope;
+    private final String findSql;
+    private final String scanSql;
+    private final String insertSql;
+    private final String tombstoneSql;
+    private final int fetchSize;
+    private final StockAdjuster stockAdjuster;
+    private final long deltaOverlapMillis;
+    private final long tombstoneRetentionMillis;
+
+    public JdbcProductStore(int fetchSize, int lockStripes) {
+        this(fetchSize, lockStripes, 60_000, 30L * 24 * 60 * 60 * 1000);
+    }
+
+    /**
+     * @param deltaOverlapMillis how far before the given watermark {@link #scanChanges} starts looking
+     * @param tombstoneRetentionMillis age after which tombstones are purged; a
+     *                                 delta chain with a longer gap can miss deletions
+     */
+    public JdbcProductStore(int fetchSize, int lockStripes, long deltaOverlapMillis, long tombstoneRetentionMillis) {
+        this(null, null, fetchSize, lockStripes, deltaOverlapMillis, tombstoneRetentionMillis);
+    }
+
+    /**
+     * @param pool where connections come from, or null for {@link DatabaseConnector}'s shared pool
+     * @param warehouse the warehouse whose rows this store keeps, or null if the table has no warehouse column
+     */
+    public JdbcProductStore(ConnectionPool pool, String warehouse, int fetchSize, int lockStripes,
+                            long deltaOverlapMillis, long tombstoneRetentionMillis) {
+        if (fetchSize <= 0) {
+            throw new IllegalArgumentException("Fetch size must be positive: " + fetchSize);
+        }
+        if (deltaOverlapMillis < 0 || tombstoneRetentionMillis <= deltaOverlapMillis) {
+            throw new IllegalArgumentException("Tombstone retention must be longer than the delta overlap");
+        }
+        this.pool = pool;
+        this.scope = warehouseCondition(warehouse);
+        this.findSql = FIND_SQL + scope;
+        this.scanSql = warehouse == null ? SELECT_ALL_SQL : SELECT_ALL_SQL + " WHERE warehouse = '" + warehouse + "'";
+        String column = warehouse == null ? "" : "warehouse, ";
+        String value = warehouse == null ? "" : "'" + warehouse + "', ";
+        this.insertSql = "INSERT INTO products (" + column + "name, description, price, quantity) VALUES ("
+                + value + "?, ?, ?, ?)";
+        this.tombstoneSql = "INSERT INTO product_tombstones (" + column + "name, deleted_at) VALUES ("
+                + value + "?, CURRENT_TIMESTAMP(3)) ON DUPLICATE KEY UPDATE deleted_at = CURRENT_TIMESTAMP(3)";
+        this.fetchSize = fetchSize;
+        this.stockAdjuster = new StockAdjuster(lockStripes, pool, warehouse);
+        this.deltaOverlapMillis = deltaOverlapMillis;
+        this.tombstoneRetentionMillis = tombstoneRetentionMillis;
+    }
+
+    @Override
+    public Product find(String name) throws SQLException {
+        try (Connection connection = connect()) {
+            return find(connection, findSql, name);
+        }
+    }
+
+    static Product find(Connection connection, String sql, String name) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setString(1, name);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return null;
+                }
+                return new Product(
+                        resultSet.getString(1),
+                        resultSet.getString(2),
+                        resultSet.getDouble(3),
+                        resultSet.getInt(4)
+                );
+            }
+        }
+    }
+
+    @Override
+    public boolean insert(Product product) throws SQLException {
+        try (Connection connection = connect();
+             PreparedStatement statement = connection.prepareStatement(insertSql)) {
+            bind(statement, product);
+            statement.executeUpdate();
+            return true;
+        } catch (SQLIntegrityConstraintViolationException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public Product delete(String name) throws SQLException {
+        try (Connection connection = connect()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement("DELETE FROM products WHERE name = ?" + scope)) {
+                // Locking the row first means the product returned is exactly the one deleted
+                Product deleted = find(connection, findSql + " FOR UPDATE", name);
+                if (deleted != null) {
+                    statement.setString(1, name);
+                    statement.executeUpdate();
+                    recordTombstone(connection, name);
+                }
+                connection.commit();
+                return deleted;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    @Override
+    public boolean update(String currentName, Product updated, int expectedQuantity) throws SQLException {
+        boolean renamed = !updated.getName().equals(currentName);
+        try (Connection connection = connect()) {
+            // A rename needs its tombstone in the same transaction; a plain update is a single statement
+            connection.setAutoCommit(!renamed);
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "UPDATE products SET name = ?, description = ?, price = ?, quantity = ? WHERE name = ? AND quantity = ?"
+                            + scope)) {
+                bind(statement, updated);
+                statement.setString(5, currentName);
+                statement.setInt(6, expectedQuantity);
+                boolean changed = statement.executeUpdate() > 0;
+                if (renamed) {
+                    if (changed) {
+                        recordTombstone(connection, currentName);
+                    }
+                    connection.commit();
+                }
+                return changed;
+            } catch (SQLException e) {
+                if (renamed) {
+                    connection.rollback();
+                }
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    @Override
+    public Product adjustQuantity(String name, int delta) throws SQLException {
+        return stockAdjuster.adjust(name, delta);
+    }
+
+    @Override
+    public List<Product> reserve(Map<String, Integer> quantities) throws SQLException {
+        return stockAdjuster.reserve(quantities);
+    }
+
+    @Override
+    public int setReorderLevel(String name, int reorderLevel) throws SQLException {
+        try (Connection connection = connect();
+             PreparedStatement statement = connection.prepareStatement(
+                     "UPDATE products SET reorder_level = ? WHERE name = ?" + scope)) {
+            statement.setInt(1, reorderLevel);
+            statement.setString(2, name);
+            if (statement.executeUpdate() == 0) {
+                return -1;
+            }
+            Product product = find(connection, findSql, name);
+            return product == null ? -1 : product.getQuantity();
+        }
+    }
+
+    @Override
+    public long scanReorderLevels(StockLevelVisitor visitor) throws SQLException {
+        long rows = 0;
+        try (Connection connection = connect();
+             PreparedStatement statement = openCursor(connection,
+                     "SELECT name, quantity, reorder_level FROM products WHERE reorder_level > 0" + scope, fetchSize);
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                visitor.visit(resultSet.getString(1), resultSet.getInt(2), resultSet.getInt(3));
+                rows++;
+            }
+        }
+        return rows;
+    }
+
+    @Override
+    public ProductQuery.Page query(ProductQuery query) throws SQLException {
+        try (Connection connection = connect()) {
+            return query.execute(connection, scope);
+        }
+    }
+
+    @Override
+    public long scan(Visitor visitor) throws SQLException, IOException {
+        long rows = 0;
+        try (Connection connection = connect();
+             PreparedStatement statement = openCursor(connection, scanSql, fetchSize);
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                visitor.visit(new Product(resultSet.getString(1), resultSet.getString(2),
+                        resultSet.getDouble(3), resultSet.getInt(4)));
+                rows++;
+            }
+        }
+        return rows;
+    }
+
+    @Override
+    public long currentWatermark() throws SQLException {
+        try (Connection connection = connect()) {
+            return databaseTime(connection);
+        }
+    }
+
+    /**
+     * Also purges tombstones older than the retention period.
+     */
+    @Override
+    public long scanChanges(long since, ChangeVisitor visitor) throws SQLException, IOException {
+        try (Connection connection = connect()) {
+            long watermark = databaseTime(connection);
+            Timestamp from = new Timestamp(Math.max(0, since - deltaOverlapMillis));
+            try (PreparedStatement purge = connection.prepareStatement(
+                    "DELETE FROM product_tombstones WHERE deleted_at < ?")) {
+                purge.setTimestamp(1, new Timestamp(watermark - tombstoneRetentionMillis));
+                purge.executeUpdate();
+            }
+            try (PreparedStatement statement = openCursor(connection,
+                    "SELECT name FROM product_tombstones WHERE deleted_at >= ?" + scope, fetchSize)) {
+                statement.setTimestamp(1, from);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        visitor.deleted(resultSet.getString(1));
+                    }
+                }
+            }
+            try (PreparedStatement statement = openCursor(connection,
+                    SELECT_ALL_SQL + " WHERE last_modified >= ?" + scope, fetchSize)) {
+                statement.setTimestamp(1, from);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        visitor.visit(new Product(resultSet.getString(1), resultSet.getString(2),
+                                resultSet.getDouble(3), resultSet.getInt(4)));
+                    }
+                }
+            }
+            return watermark;
+        }
+    }
+
+    /**
+     * Sends the batch in one round trip and commits it. If any row fails, the
+     * batch is rolled back and replayed row by row so only the bad rows are rejected.
+     */
+    @Override
+    public String[] importBatch(List<Product> products, boolean upsert) throws SQLException {
+        String[] rejected = new String[products.size()];
+        if (products.isEmpty()) {
+            return rejected;
+        }
+        try (Connection connection = connect()) {
+            // Left in manual-commit mode on purpose: the pool rolls back an unfinished batch on return
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement(upsert ? insertSql + UPSERT_SUFFIX : insertSql)) {
+                for (Product product : products) {
+                    bind(statement, product);
+                    statement.addBatch();
+                }
+                try {
+                    statement.executeBatch();
+                    connection.commit();
+                } catch (BatchUpdateException e) {
+                    connection.rollback();
+                    statement.clearBatch();
+                    for (int i = 0; i < products.size(); i++) {
+                        try {
+                            bind(statement, products.get(i));
+                            statement.executeUpdate();
+                        } catch (SQLException rowError) {
+                            rejected[i] = rowError.getMessage();
+                        }
+                    }
+                    connection.commit();
+                }
+            }
+        }
+        return rejected;
+    }
+
+    @Override
+    public void close() {
+        // Connections belong to the shared pool, which DatabaseConnector closes, or to the shard's pool
+    }
+
+    /**
+     * Reads the product's quantity in several warehouses kept in one shard's
+     * database, with a single query.
+     * @return quantity by warehouse, for the warehouses that have the product
+     */
+    static Map<String, Integer> stockByWarehouse(ConnectionPool pool, Collection<String> warehouses, String name)
+            throws SQLException {
+        StringBuilder sql = new StringBuilder("SELECT warehouse, quantity FROM products WHERE name = ? AND warehouse IN (");
+        for (int i = 0; i < warehouses.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(')');
+        Map<String, Integer> quantities = new LinkedHashMap<>();
+        try (Connection connection = connect(pool);
+             PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+            int index = 1;
+            statement.setString(index++, name);
+            for (String warehouse : warehouses) {
+                statement.setString(index++, warehouse);
+            }
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    quantities.put(resultSet.getString(1), resultSet.getInt(2));
+                }
+            }
+        }
+        return quantities;
+    }
+
+    /**
+     * The condition that keeps a statement to one warehouse's rows. The id
+     * is written into the SQL rather than bound, so every statement takes the
+     * same parameters with or without sharding; it is checked to be a plain
+     * identifier first.
+     * @return the condition, or "" for a table without a warehouse column
+     */
+    static String warehouseCondition(String warehouse) {
+        if (warehouse == null) {
+            return "";
+        }
+        if (!WarehouseShards.isValidId(warehouse)) {
+            throw new IllegalArgumentException("Invalid warehouse id: " + warehouse);
+        }
+        return " AND warehouse = '" + warehouse + "'";
+    }
+
+    /**
+     * Prepares a forward-only, read-only query that streams rows in chunks of
+     * fetchSize instead of buffering the full result in the driver.
+     * MySQL needs useCursorFetch on the connection for this to use a server-side cursor.
+     */
+    static PreparedStatement openCursor(Connection connection, String sql, int fetchSize) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(sql,
+                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        statement.setFetchSize(fetchSize);
+        return statement;
+    }
+
+    private void recordTombstone(Connection connection, String name) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(tombstoneSql)) {
+            statement.setString(1, name);
+            statement.executeUpdate();
+        }
+    }
+
+    // The database clock, so watermarks compare with last_modified even if the application's clock differs
+    private static long databaseTime(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT CURRENT_TIMESTAMP(3)");
+             ResultSet resultSet = statement.executeQuery()) {
+            resultSet.next();
+            return resultSet.getTimestamp(1).getTime();
+        }
+    }
+
+    private Connection connect() throws SQLException {
+        return connect(pool);
+    }
+
+    /**
+     * @param pool the pool to borrow from, or null for {@link DatabaseConnector}'s shared pool
+     */
+    static Connection connect(ConnectionPool pool) throws SQLException {
+        if (pool != null) {
+            return pool.getConnection();
+        }
+        Connection connection = DatabaseConnector.connect();
+        if (connection == null) {
+            throw new SQLException("No database connection available");
+        }
+        return connection;
+    }
+
+    private static void bind(PreparedStatement statement, Product product) throws SQLException {
+        statement.setString(1, product.getName());
+        statement.setString(2, product.getDescription());
+        statement.setDouble(3, product.getPrice());
+        statement.setInt(4, product.getQuantity());
+    }
+}
@@ -1,37 +1,319 @@
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
 
+/**
+ * Application logger. In async mode (log.async=true) callers only enqueue
+ * events into a bounded ring buffer; a single background thread formats them
+ * and appends them in batches to one long-lived FileChannel. Console echo
+ * stays on the calling thread so interactive output keeps its order.
+ */
 public class Logger {
-    private static final String LOG_FILE = "application.log";
+    public enum Level { DEBUG, INFO, ERROR }
+
+    /**
+     * What a caller does when the ring buffer is full: wait for space, drop the
+     * event, or keep one in every log.sampleRate events (errors are always kept).
+     */
+    public enum OverflowPolicy { BLOCK, DROP, SAMPLE }
+
     private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final DateTimeFormatter rotationFormatter = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+    private static final int MAX_BATCH = 512;
+    private static final long IDLE_PARK_NANOS = 1_000_000L;
+
+    // Reloaded when the configuration changes; the file, async mode and queue need a restart
+    private static volatile Level threshold = parseLevel(ConfigManager.getLogLevel());
+    private static volatile boolean consoleEnabled = ConfigManager.isLogConsoleEnabled();
+    private static volatile OverflowPolicy overflowPolicy = parsePolicy(ConfigManager.getLogOverflowPolicy());
+    private static volatile int sampleRate = ConfigManager.getLogSampleRate();
+    private static final LogFile logFile = new LogFile(Paths.get(ConfigManager.getLogFile()),
+            ConfigManager.getLogMaxFileBytes(), ConfigManager.getLogRotateMinutes() * 60_000L);
+
+    private static final LogRingBuffer<Event> buffer;
+    private static final Thread writer;
+    private static volatile boolean running;
+    private static final AtomicLong overflowed = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static volatile TimestampCache timestampCache = new TimestampCache(-1, "");
+
+    static {
+        if (ConfigManager.isLogAsync()) {
+            buffer = new LogRingBuffer<>(ConfigManager.getLogQueueCapacity());
+            running = true;
+            writer = new Thread(Logger::drainLoop, "log-writer");
+            writer.setDaemon(true);
+            writer.start();
+        } else {
+            buffer = null;
+            writer = null;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(Logger::shutdown, "log-shutdown"));
+        ConfigManager.addListener(changed -> {
+            threshold = parseLevel(ConfigManager.getLogLevel());
+            consoleEnabled = ConfigManager.isLogConsoleEnabled();
+            overflowPolicy = parsePolicy(ConfigManager.getLogOverflowPolicy());
+            sampleRate = ConfigManager.getLogSampleRate();
+        });
+    }
+
+    private static class Event {
+        final long timestamp;
+        final Level level;
+        final String message;
+
+        Event(long timestamp, Level level, String message) {
+            this.timestamp = timestamp;
+            this.level = level;
+            this.message = message;
+        }
+    }
 
     public static void info(String message) {
-        log("INFO", message);
+        log(Level.INFO, message);
     }
 
     public static void error(String message) {
-        log("ERROR", message);
+        log(Level.ERROR, message);
     }
 
     public static void debug(String message) {
-        log("DEBUG", message);
+        log(Level.DEBUG, message);
+    }
+
+    /**
+     * Builds the message only if debug logging is enabled.
+     */
+    public static void debug(Supplier<String> message) {
+        if (isEnabled(Level.DEBUG)) {
+            log(Level.DEBUG, message.get());
+        }
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(threshold) >= 0;
     }
 
-    private static void log(String level, String message) {
-        String timestamp = LocalDateTime.now().format(formatter);
-        String logMessage = String.format("[%s] [%s] %s", timestamp, level, message);
-        
+    public static long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private static void log(Level level, String message) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+
         // Print to console
-        System.out.println(logMessage);
-        
-        // Write to file
-        try (PrintWriter writer = new PrintWriter(new FileWriter(LOG_FILE, true))) {
-            writer.println(logMessage);
-        } catch (IOException e) {
-            System.err.println("Error writing to log file: " + e.getMessage());
+        if (consoleEnabled) {
+            System.out.println(format(new StringBuilder(64 + message.length()), now, level, message));
+        }
+
+        if (buffer == null || !running) {
+            logFile.write(format(new StringBuilder(64 + message.length()), now, level, message).append('\n'));
+            return;
+        }
+        Event event = new Event(now, level, message);
+        if (buffer.offer(event)) {
+            return;
+        }
+        switch (overflowPolicy) {
+            case DROP:
+                dropped.incrementAndGet();
+                break;
+            case SAMPLE:
+                if (level != Level.ERROR && overflowed.incrementAndGet() % sampleRate != 0) {
+                    dropped.incrementAndGet();
+                    break;
+                }
+                enqueueBlocking(event);
+                break;
+            default:
+                enqueueBlocking(event);
+        }
+    }
+
+    private static void enqueueBlocking(Event event) {
+        while (!buffer.offer(event)) {
+            if (!running) {
+                logFile.write(format(new StringBuilder(), event.timestamp, event.level, event.message).append('\n'));
+                return;
+            }
+            LockSupport.parkNanos(IDLE_PARK_NANOS / 10);
+        }
+    }
+
+    private static StringBuilder format(StringBuilder out, long timestamp, Level level, String message) {
+        return out.append('[').append(timestamp(timestamp)).append("] [").append(level.name()).append("] ")
+                .append(message);
+    }
+
+    // Formatting the date dominates the cost of a log line, so reuse it for every event in the same second
+    private static String timestamp(long millis) {
+        long second = millis / 1000;
+        TimestampCache cache = timestampCache;
+        if (cache.second != second) {
+            String text = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault()).format(formatter);
+            cache = new TimestampCache(second, text);
+            timestampCache = cache;
+        }
+        return cache.text;
+    }
+
+    private static class TimestampCache {
+        final long second;
+        final String text;
+
+        TimestampCache(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+
+    private static void drainLoop() {
+        StringBuilder batch = new StringBuilder(MAX_BATCH * 96);
+        long reportedDrops = 0;
+        while (true) {
+            batch.setLength(0);
+            int count = 0;
+            Event event;
+            while (count < MAX_BATCH && (event = buffer.poll()) != null) {
+                format(batch, event.timestamp, event.level, event.message).append('\n');
+                count++;
+            }
+            long drops = dropped.get();
+            if (drops != reportedDrops) {
+                format(batch, System.currentTimeMillis(), Level.ERROR,
+                        "Log buffer full, dropped " + (drops - reportedDrops) + " messages").append('\n');
+                reportedDrops = drops;
+            }
+            if (batch.length() > 0) {
+                logFile.write(batch);
+            } else if (!running) {
+                break;
+            } else {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Stops the background writer after it has written everything queued so far.
+     * Later calls to the logger write to the file directly.
+     */
+    public static void shutdown() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        logFile.close();
+    }
+
+    private static Level parseLevel(String value) {
+        try {
+            return value == null ? Level.INFO : Level.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown log level: " + value + ", using INFO");
+            return Level.INFO;
+        }
+    }
+
+    private static OverflowPolicy parsePolicy(String value) {
+        try {
+            return value == null ? OverflowPolicy.BLOCK : OverflowPolicy.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown log overflow policy: " + value + ", using BLOCK");
+            return OverflowPolicy.BLOCK;
+        }
+    }
+
+    /**
+     * The log file, kept open between writes and rotated by size or age.
+     */
+    private static class LogFile {
+        private final Path path;
+        private final long maxBytes;
+        private final long maxAgeMillis;
+        private FileChannel channel;
+        private long size;
+        private long openedAt;
+        private ByteBuffer bytes = ByteBuffer.allocate(1 << 16);
+
+        LogFile(Path path, long maxBytes, long maxAgeMillis) {
+            this.path = path;
+            this.maxBytes = maxBytes;
+            this.maxAgeMillis = maxAgeMillis;
+        }
+
+        synchronized void write(CharSequence text) {
+            try {
+                if (channel == null) {
+                    open();
+                } else if ((maxBytes > 0 && size >= maxBytes)
+                        || (maxAgeMillis > 0 && System.currentTimeMillis() - openedAt >= maxAgeMillis)) {
+                    rotate();
+                }
+                byte[] encoded = text.toString().getBytes(StandardCharsets.UTF_8);
+                if (encoded.length > bytes.capacity()) {
+                    bytes = ByteBuffer.allocate(encoded.length);
+                }
+                bytes.clear();
+                bytes.put(encoded).flip();
+                while (bytes.hasRemaining()) {
+                    size += channel.write(bytes);
+                }
+            } catch (IOException e) {
+                System.err.println("Error writing to log file: " + e.getMessage());
+            }
+        }
+
+        private void open() throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            size = channel.size();
+            openedAt = System.currentTimeMillis();
+        }
+
+        private void rotate() throws IOException {
+            channel.close();
+            channel = null;
+            String base = path.getFileName() + "." + LocalDateTime.now().format(rotationFormatter);
+            Path target = path.resolveSibling(base);
+            for (int i = 1; Files.exists(target); i++) {
+                target = path.resolveSibling(base + "." + i);
+            }
+            Files.move(path, target);
+            open();
+        }
+
+        synchronized void close() {
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing log file: " + e.getMessage());
+            }
+            channel = null;
         }
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,28 @@
+import java.util.function.DoubleSupplier;
+
+/**
+ * A value read on demand from another component, such as the pool's active
+ * connection count or the product cache hit rate.
+ */
+public class MetricGauge implements MetricGaugeMBean {
+    private final String name;
+    private volatile DoubleSupplier source;
+
+    MetricGauge(String name, DoubleSupplier source) {
+        this.name = name;
+        this.source = source;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    void setSource(DoubleSupplier source) {
+        this.source = source;
+    }
+
+    @Override
+    public double getValue() {
+        return source.getAsDouble();
+    }
+}
@@ -0,0 +1,6 @@
+/**
+ * JMX view of a {@link MetricGauge}.
+ */
+public interface MetricGaugeMBean {
+    double getValue();
+}
@@ -0,0 +1,124 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registry of operation timers and gauges. Every metric is published as a
+ * JMX MBean under the "ims" domain, and a text snapshot of all of them can be
+ * written to metrics.dumpFile every metrics.dumpIntervalSeconds.
+ * With metrics.enabled=false, timing calls reduce to a constant check.
+ */
+public class Metrics {
+    static final boolean ENABLED = ConfigManager.isMetricsEnabled();
+
+    private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final ConcurrentHashMap<String, OperationTimer> timers = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, MetricGauge> gauges = new ConcurrentHashMap<>();
+
+    static {
+        long interval = ConfigManager.getMetricsDumpIntervalSeconds();
+        if (ENABLED && interval > 0) {
+            Path dumpFile = Paths.get(ConfigManager.getMetricsDumpFile());
+            ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "metrics-dump");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleAtFixedRate(() -> dump(dumpFile), interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * @return a start time for {@link OperationTimer#stop(long)}, or 0 when metrics are disabled
+     */
+    public static long start() {
+        return ENABLED ? System.nanoTime() : 0L;
+    }
+
+    public static OperationTimer timer(String name) {
+        return timers.computeIfAbsent(name, key -> {
+            OperationTimer timer = new OperationTimer(key);
+            register("Operation", key, timer);
+            return timer;
+        });
+    }
+
+    /**
+     * Publishes a value read from source on demand. Registering the same name
+     * again replaces the source, so a re-created component takes over its gauge.
+     */
+    public static void gauge(String name, DoubleSupplier source) {
+        if (!ENABLED) {
+            return;
+        }
+        gauges.compute(name, (key, existing) -> {
+            if (existing != null) {
+                existing.setSource(source);
+                return existing;
+            }
+            MetricGauge gauge = new MetricGauge(key, source);
+            register("Gauge", key, gauge);
+            return gauge;
+        });
+    }
+
+    private static void register(String type, String name, Object mbean) {
+        if (!ENABLED) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName("ims:type=" + type + ",name=" + ObjectName.quote(name));
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(mbean, objectName);
+            }
+        } catch (JMException e) {
+            System.err.println("Could not register metric " + name + ": " + e.getMessage());
+        }
+    }
+
+    public static String snapshot() {
+        StringBuilder out = new StringBuilder();
+        out.append("# Metrics snapshot ").append(LocalDateTime.now().format(formatter)).append('\n');
+        for (Map.Entry<String, OperationTimer> entry : new TreeMap<>(timers).entrySet()) {
+            OperationTimer timer = entry.getValue();
+            out.append(String.format("%-32s count=%d errors=%d rows=%d mean=%.1fus p50=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus%n",
+                    entry.getKey(), timer.getCount(), timer.getErrors(), timer.getRows(), timer.getMeanMicros(),
+                    timer.getP50Micros(), timer.getP99Micros(), timer.getP999Micros(), timer.getMaxMicros()));
+        }
+        for (Map.Entry<String, MetricGauge> entry : new TreeMap<>(gauges).entrySet()) {
+            out.append(String.format("%-32s value=%.3f%n", entry.getKey(), entry.getValue().getValue()));
+        }
+        return out.toString();
+    }
+
+    /**
+     * Replaces the file with the current snapshot, going through a temporary
+     * file so readers never see a partial dump.
+     */
+    public static void dump(Path file) {
+        try {
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(temp, snapshot().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Logger.error("Error writing metrics snapshot: " + e.getMessage());
+        }
+    }
+}
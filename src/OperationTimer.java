@@ -0,0 +1,82 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram plus error and row counters for one named operation.
+ * Obtain instances from {@link Metrics#timer(String)} and keep them in a
+ * static final field so recording never looks anything up.
+ */
+public class OperationTimer implements OperationTimerMBean {
+    private final String name;
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder rows = new LongAdder();
+
+    OperationTimer(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Records the time since startNanos, as returned by {@link Metrics#start()}.
+     */
+    public void stop(long startNanos) {
+        if (Metrics.ENABLED) {
+            histogram.record(System.nanoTime() - startNanos);
+        }
+    }
+
+    public void error() {
+        if (Metrics.ENABLED) {
+            errors.increment();
+        }
+    }
+
+    public void rows(long count) {
+        if (Metrics.ENABLED) {
+            rows.add(count);
+        }
+    }
+
+    @Override
+    public long getCount() {
+        return histogram.getCount();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getRows() {
+        return rows.sum();
+    }
+
+    @Override
+    public double getMeanMicros() {
+        return histogram.getMeanNanos() / 1000.0;
+    }
+
+    @Override
+    public double getP50Micros() {
+        return histogram.getPercentileNanos(50) / 1000.0;
+    }
+
+    @Override
+    public double getP99Micros() {
+        return histogram.getPercentileNanos(99) / 1000.0;
+    }
+
+    @Override
+    public double getP999Micros() {
+        return histogram.getPercentileNanos(99.9) / 1000.0;
+    }
+
+    @Override
+    public double getMaxMicros() {
+        return histogram.getMaxNanos() / 1000.0;
+    }
+}
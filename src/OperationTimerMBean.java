@@ -0,0 +1,20 @@
+/**
+ * JMX view of an {@link OperationTimer}. Latencies are in microseconds.
+ */
+public interface OperationTimerMBean {
+    long getCount();
+
+    long getErrors();
+
+    long getRows();
+
+    double getMeanMicros();
+
+    double getP50Micros();
+
+    double getP99Micros();
+
+    double getP999Micros();
+
+    double getMaxMicros();
+}
@@ -0,0 +1,124 @@
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Salted PBKDF2-HMAC-SHA256 password hashes, stored as
+ * {@code pbkdf2-sha256$<iterations>$<salt>$<hash>} (Base64 salt and hash).
+ * The iteration count is read from auth.pbkdf2Iterations when a hash is
+ * created and stored with it, so raising the setting only affects new hashes.
+ */
+public class PasswordHasher {
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final String PREFIX = "pbkdf2-sha256$";
+    private static final int SALT_BYTES = 16;
+    private static final int KEY_BITS = 256;
+    private static final SecureRandom random = new SecureRandom();
+
+    // Checked against when the user does not exist, so a miss costs as much as a wrong password
+    private static volatile String dummyHash;
+
+    public static String hash(String password) {
+        return hash(password, ConfigManager.getAuthPbkdf2Iterations());
+    }
+
+    static String hash(String password, int iterations) {
+        if (iterations <= 0) {
+            throw new IllegalArgumentException("Iteration count must be positive: " + iterations);
+        }
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        Base64.Encoder encoder = Base64.getEncoder().withoutPadding();
+        return PREFIX + iterations + "$" + encoder.encodeToString(salt)
+                + "$" + encoder.encodeToString(derive(password, salt, iterations, KEY_BITS));
+    }
+
+    /**
+     * Checks a password against a stored value. Values that are not in the
+     * hash format are treated as plain text written before hashing was
+     * introduced; {@link #needsRehash(String)} reports those for upgrade.
+     * @param stored the stored value, or null if the user does not exist
+     */
+    public static boolean verify(String password, String stored) {
+        if (stored == null) {
+            verify(password, dummyHash());
+            return false;
+        }
+        if (!isHashed(stored)) {
+            return MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8),
+                    stored.getBytes(StandardCharsets.UTF_8));
+        }
+        String[] parts = stored.substring(PREFIX.length()).split("\\$");
+        if (parts.length != 3) {
+            return false;
+        }
+        try {
+            int iterations = Integer.parseInt(parts[0]);
+            byte[] salt = Base64.getDecoder().decode(parts[1]);
+            byte[] expected = Base64.getDecoder().decode(parts[2]);
+            if (iterations <= 0 || expected.length == 0) {
+                return false;
+            }
+            return MessageDigest.isEqual(expected, derive(password, salt, iterations, expected.length * 8));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    public static boolean isHashed(String stored) {
+        return stored != null && stored.startsWith(PREFIX);
+    }
+
+    /**
+     * @return true if the stored value is plain text or was hashed with fewer
+     *         iterations than currently configured
+     */
+    public static boolean needsRehash(String stored) {
+        if (!isHashed(stored)) {
+            return true;
+        }
+        int end = stored.indexOf('$', PREFIX.length());
+        try {
+            return end < 0 || Integer.parseInt(stored.substring(PREFIX.length(), end))
+                    < ConfigManager.getAuthPbkdf2Iterations();
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    private static String dummyHash() {
+        String current = dummyHash;
+        if (current == null) {
+            current = hash("dummy-password");
+            dummyHash = current;
+        }
+        return current;
+    }
+
+    private static byte[] derive(String password, byte[] salt, int iterations, int keyBits) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, keyBits);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * Prints the hash of a password, for creating users:
+     * {@code java -cp src PasswordHasher <password>}
+     */
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.out.println("Usage: java PasswordHasher <password>");
+            return;
+        }
+        System.out.println(hash(args[0]));
+    }
+}
@@ -0,0 +1,158 @@
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read-through cache of products keyed by name.
+ * Lookups that miss call the supplied loader and remember the result; writers
+ * call {@link #invalidate(String)} after changing a row. Reads only touch a
+ * ConcurrentHashMap and a timestamp; when the cache fills up, the least
+ * recently read entries are evicted in bulk (approximate LRU).
+ */
+public class ProductCache {
+    private static final int EVICTION_FRACTION = 10;
+
+    /**
+     * Loads a product from the backing store, returning null if it does not exist.
+     */
+    public interface Loader {
+        Product load(String name) throws SQLException;
+    }
+
+    private static class Entry {
+        final Product product;
+        final long loadedAt;
+        volatile long lastAccess;
+
+        Entry(Product product, long now) {
+            this.product = product;
+            this.loadedAt = now;
+            this.lastAccess = now;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final int maxSize;
+    private final long ttlNanos;
+    // Bumped on every write so a load that raced with an invalidation is not cached
+    private final AtomicLong writeVersion = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxSize Maximum number of cached products; 0 disables caching
+     * @param ttlMillis Time after which an entry is reloaded; 0 keeps entries until evicted
+     */
+    public ProductCache(int maxSize, long ttlMillis) {
+        this.maxSize = Math.max(0, maxSize);
+        this.ttlNanos = ttlMillis * 1_000_000L;
+    }
+
+    /**
+     * Returns a copy of the cached product, loading it on a miss.
+     * @return the product, or null if the loader did not find it
+     */
+    public Product get(String name, Loader loader) throws SQLException {
+        long now = System.nanoTime();
+        Entry entry = entries.get(name);
+        if (entry != null) {
+            if (ttlNanos > 0 && now - entry.loadedAt > ttlNanos) {
+                entries.remove(name, entry);
+            } else {
+                entry.lastAccess = now;
+                hits.increment();
+                return copy(entry.product);
+            }
+        }
+        misses.increment();
+
+        long version = writeVersion.get();
+        Product product = loader.load(name);
+        if (product != null && maxSize > 0) {
+            if (entries.size() >= maxSize) {
+                evict();
+            }
+            entries.put(name, new Entry(copy(product), now));
+            // A write landed while we were loading; drop what we may have just cached
+            if (writeVersion.get() != version) {
+                entries.remove(name);
+            }
+        }
+        return product;
+    }
+
+    public void invalidate(String name) {
+        writeVersion.incrementAndGet();
+        entries.remove(name);
+    }
+
+    public void clear() {
+        writeVersion.incrementAndGet();
+        entries.clear();
+    }
+
+    // Evicts the least recently read tenth of the cache in one pass, so the scan is amortized over many inserts
+    private synchronized void evict() {
+        int size = entries.size();
+        if (size < maxSize) {
+            return;
+        }
+        long[] accessTimes = new long[size];
+        int n = 0;
+        for (Entry entry : entries.values()) {
+            if (n == accessTimes.length) {
+                break;
+            }
+            accessTimes[n++] = entry.lastAccess;
+        }
+        if (n == 0) {
+            return;
+        }
+        Arrays.sort(accessTimes, 0, n);
+        int toEvict = Math.max(1, n / EVICTION_FRACTION);
+        long cutoff = accessTimes[Math.min(toEvict, n) - 1];
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().lastAccess <= cutoff) {
+                it.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    private static Product copy(Product product) {
+        return new Product(product.getName(), product.getDescription(), product.getPrice(), product.getQuantity());
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    public String getStats() {
+        return String.format("size=%d max=%d hits=%d misses=%d evictions=%d hitRate=%.2f",
+                size(), maxSize, getHitCount(), getMissCount(), getEvictionCount(), getHitRate());
+    }
+}
@@ -0,0 +1,205 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A filtered, paginated read of the products. Pages are fetched by
+ * keyset (WHERE id > ? ORDER BY id LIMIT ?), so reading page 1000 costs the
+ * same as reading page 1. Pass {@link Page#getNextCursor()} to
+ * {@link #after(long)} to fetch the following page.
+ */
+public class ProductQuery {
+    private String namePrefix;
+    private Double minPrice;
+    private Double maxPrice;
+    private Integer maxQuantity;
+    private boolean includeDescription = true;
+    private long afterId;
+    private int limit = 50;
+
+    /**
+     * One page of results.
+     */
+    public static class Page {
+        private final List<Product> products;
+        private final long nextCursor;
+
+        Page(List<Product> products, long nextCursor) {
+            this.products = products;
+            this.nextCursor = nextCursor;
+        }
+
+        public List<Product> getProducts() {
+            return products;
+        }
+
+        /**
+         * @return the cursor for the next page, or 0 if this is the last page
+         */
+        public long getNextCursor() {
+            return nextCursor;
+        }
+
+        public boolean hasMore() {
+            return nextCursor > 0;
+        }
+    }
+
+    /**
+     * Only products whose name starts with prefix (case as stored).
+     */
+    public ProductQuery namePrefix(String prefix) {
+        this.namePrefix = prefix == null || prefix.isEmpty() ? null : prefix;
+        return this;
+    }
+
+    public ProductQuery minPrice(Double price) {
+        this.minPrice = price;
+        return this;
+    }
+
+    public ProductQuery maxPrice(Double price) {
+        this.maxPrice = price;
+        return this;
+    }
+
+    /**
+     * Only products with at most this many units in stock.
+     */
+    public ProductQuery lowStock(Integer threshold) {
+        this.maxQuantity = threshold;
+        return this;
+    }
+
+    /**
+     * Leaves the description column out of the query; the returned
+     * products have a null description.
+     */
+    public ProductQuery includeDescription(boolean include) {
+        this.includeDescription = include;
+        return this;
+    }
+
+    /**
+     * Starts after the given cursor; 0 starts from the beginning.
+     */
+    public ProductQuery after(long cursor) {
+        if (cursor < 0) {
+            throw new IllegalArgumentException("Cursor must not be negative: " + cursor);
+        }
+        this.afterId = cursor;
+        return this;
+    }
+
+    public ProductQuery limit(int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Page size must be positive: " + limit);
+        }
+        this.limit = limit;
+        return this;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    long getAfter() {
+        return afterId;
+    }
+
+    boolean isDescriptionIncluded() {
+        return includeDescription;
+    }
+
+    /**
+     * Applies the filters to one product, for stores that do not run SQL.
+     */
+    boolean matches(String name, double price, int quantity) {
+        return (namePrefix == null || name.startsWith(namePrefix))
+                && (minPrice == null || price >= minPrice)
+                && (maxPrice == null || price <= maxPrice)
+                && (maxQuantity == null || quantity <= maxQuantity);
+    }
+
+    /**
+     * Runs the query on the given database connection. One extra row is
+     * requested to learn whether another page follows without a separate COUNT.
+     * @param condition extra SQL appended to the WHERE clause, such as a warehouse filter, or ""
+     */
+    Page execute(Connection connection, String condition) throws SQLException {
+        StringBuilder sql = new StringBuilder(160);
+        sql.append(includeDescription
+                ? "SELECT id, name, description, price, quantity FROM products WHERE id > ?"
+                : "SELECT id, name, price, quantity FROM products WHERE id > ?");
+        sql.append(condition);
+        if (namePrefix != null) {
+            sql.append(" AND name LIKE ? ESCAPE '!'");
+        }
+        if (minPrice != null) {
+            sql.append(" AND price >= ?");
+        }
+        if (maxPrice != null) {
+            sql.append(" AND price <= ?");
+        }
+        if (maxQuantity != null) {
+            sql.append(" AND quantity <= ?");
+        }
+        sql.append(" ORDER BY id LIMIT ?");
+
+        try (PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+            int index = 1;
+            statement.setLong(index++, afterId);
+            if (namePrefix != null) {
+                statement.setString(index++, escapeLike(namePrefix) + "%");
+            }
+            if (minPrice != null) {
+                statement.setDouble(index++, minPrice);
+            }
+            if (maxPrice != null) {
+                statement.setDouble(index++, maxPrice);
+            }
+            if (maxQuantity != null) {
+                statement.setInt(index++, maxQuantity);
+            }
+            statement.setInt(index, limit + 1);
+
+            List<Product> products = new ArrayList<>(Math.min(limit, 1024));
+            long lastId = 0;
+            boolean more = false;
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    if (products.size() == limit) {
+                        more = true;
+                        break;
+                    }
+                    lastId = resultSet.getLong(1);
+                    if (includeDescription) {
+                        products.add(new Product(resultSet.getString(2), resultSet.getString(3),
+                                resultSet.getDouble(4), resultSet.getInt(5)));
+                    } else {
+                        products.add(new Product(resultSet.getString(2), null,
+                                resultSet.getDouble(3), resultSet.getInt(4)));
+                    }
+                }
+            }
+            return new Page(Collections.unmodifiableList(products), more ? lastId : 0);
+        }
+    }
+
+    // '!' rather than backslash as the escape, since MySQL also treats backslash specially in string literals
+    private static String escapeLike(String value) {
+        StringBuilder escaped = new StringBuilder(value.length() + 4);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '!' || c == '%' || c == '_') {
+                escaped.append('!');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+}
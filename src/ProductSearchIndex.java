@@ -0,0 +1,1089 @@
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory full-text index over product names and descriptions, for finding
+ * products without knowing their exact name.
+ * <p>
+ * Text is split into lower-case words of letters and digits. A product
+ * matches a query when every query word matches one of its words: exactly,
+ * as the start of a longer word, or, for words of four or more characters
+ * that contain a letter, with one typo (two from eight characters), where a
+ * typo is a character added, left out, changed, or swapped with the next one.
+ * Results are ranked by how closely and how rare the matched words are, and
+ * words in the name count double; equal scores come in the order the
+ * products were indexed.
+ * <p>
+ * Words are kept in a sorted dictionary, so prefixes are a range lookup.
+ * Each word lists the products with it in their name and, separately, in
+ * their description, in ascending product order. A one-word query reads
+ * those lists best score first and stops once it has enough products, so
+ * common words cost no more than rare ones. Longer queries start from the
+ * word with the fewest products and check the other words against those
+ * candidates. Typo candidates come from an index of two-character pieces of
+ * each word, grouped by word length, and are confirmed with a bounded edit
+ * distance.
+ * <p>
+ * The index is built by streaming the store and then kept up to date by
+ * {@link InventoryManagementSystem}; as with the {@link ReorderIndex}, changes
+ * made by other processes appear only after {@link #rebuild}. Removed and
+ * changed products leave stale entries that searches skip, and which are
+ * compacted away once they outnumber the live ones. Searches share a read
+ * lock; changes take the write lock.
+ */
+public class ProductSearchIndex {
+
+    /**
+     * One matching product and its relevance; higher is better.
+     */
+    public static final class Hit {
+        private final String name;
+        private final float score;
+
+        Hit(String name, float score) {
+            this.name = name;
+            this.score = score;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public float getScore() {
+            return score;
+        }
+    }
+
+    private static final int MIN_PREFIX_LENGTH = 2;
+    private static final int MIN_TYPO_LENGTH = 4;
+    private static final int TWO_TYPO_LENGTH = 8;
+    // A query word expands to at most this many dictionary words, the closest and most common first
+    private static final int MAX_EXPANSIONS = 64;
+    private static final float EXACT_WEIGHT = 1.0f;
+    private static final float PREFIX_WEIGHT = 0.6f;
+    private static final float ONE_TYPO_WEIGHT = 0.5f;
+    private static final float TWO_TYPO_WEIGHT = 0.3f;
+    private static final float NAME_WEIGHT = 2.0f;
+    // Beyond this many combinations of per-word scores a query scores every candidate instead
+    private static final int MAX_COMBINATIONS = 64;
+    // Queries whose rarest word matches at most this many products score every candidate
+    private static final int SCORE_ALL_MAX_CANDIDATES = 20_000;
+    // A list also gets a bitmap once it holds at least this many products and 1 in BITMAP_SHARE of all
+    private static final int BITMAP_MIN_SIZE = 4096;
+    private static final int BITMAP_SHARE = 32;
+    private static final int COMPACT_MIN_STALE = 10_000;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Working arrays sized by product count, reused across searches instead of allocated per query
+    private final ConcurrentLinkedQueue<Scratch> scratchPool = new ConcurrentLinkedQueue<>();
+    private Data data = new Data();
+
+    /**
+     * Replaces the contents with every product in the store. Changes made
+     * while the store is being read may be missing until the next rebuild.
+     * @return the number of products indexed
+     */
+    public long rebuild(ProductStore store) throws SQLException, IOException {
+        Data rebuilt = new Data();
+        long rows = store.scan(product -> rebuilt.add(product.getName(), product.getDescription()));
+        lock.writeLock().lock();
+        try {
+            data = rebuilt;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return rows;
+    }
+
+    /**
+     * Indexes a product, replacing any earlier entry under the same name.
+     */
+    public void add(String name, String description) {
+        lock.writeLock().lock();
+        try {
+            data.add(name, description);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Re-indexes a product whose name or description changed.
+     */
+    public void update(String oldName, String newName, String newDescription) {
+        lock.writeLock().lock();
+        try {
+            data.remove(oldName);
+            data.add(newName, newDescription);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(String name) {
+        lock.writeLock().lock();
+        try {
+            data.remove(name);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of products indexed
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return data.docByName.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return up to limit products matching every word of the query, best first
+     */
+    public List<Hit> search(String query, int limit) {
+        Set<String> words = new LinkedHashSet<>(tokenize(query));
+        if (words.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+        Scratch scratch = scratchPool.poll();
+        lock.readLock().lock();
+        try {
+            if (scratch == null || scratch.scores.length < data.docCount) {
+                scratch = new Scratch(data.docCount + data.docCount / 4 + 16);
+            }
+            return data.search(words, limit, scratch);
+        } finally {
+            lock.readLock().unlock();
+            scratchPool.offer(scratch);
+        }
+    }
+
+    /**
+     * Splits text into lower-case runs of letters and digits.
+     */
+    static List<String> tokenize(String text) {
+        List<String> words = new ArrayList<>();
+        if (text == null) {
+            return words;
+        }
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                word.append(Character.toLowerCase(c));
+            } else if (word.length() > 0) {
+                words.add(word.toString());
+                word.setLength(0);
+            }
+        }
+        if (word.length() > 0) {
+            words.add(word.toString());
+        }
+        return words;
+    }
+
+    /**
+     * Edit distance counting an adjacent swap as one edit. Only the cells
+     * within max of the diagonal are filled, as no others can be in range.
+     * @return the distance, or max + 1 if it is more than max
+     */
+    static int editDistance(String a, String b, int max) {
+        int n = a.length();
+        int m = b.length();
+        int over = max + 1;
+        if (Math.abs(n - m) > max) {
+            return over;
+        }
+        int[] twoBack = new int[m + 2];
+        int[] previous = new int[m + 2];
+        int[] current = new int[m + 2];
+        for (int j = 0; j <= m + 1; j++) {
+            previous[j] = Math.min(j, over);
+        }
+        for (int i = 1; i <= n; i++) {
+            int from = Math.max(1, i - max);
+            int to = Math.min(m, i + max);
+            current[from - 1] = from == 1 ? Math.min(i, over) : over;
+            int rowMin = current[from - 1];
+            char ca = a.charAt(i - 1);
+            for (int j = from; j <= to; j++) {
+                char cb = b.charAt(j - 1);
+                int value = Math.min(Math.min(previous[j], current[j - 1]) + 1, previous[j - 1] + (ca == cb ? 0 : 1));
+                if (i > 1 && j > 1 && ca == b.charAt(j - 2) && a.charAt(i - 2) == cb) {
+                    value = Math.min(value, twoBack[j - 2] + 1);
+                }
+                current[j] = Math.min(value, over);
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            current[to + 1] = over;
+            if (rowMin > max) {
+                return over;
+            }
+            int[] recycled = twoBack;
+            twoBack = previous;
+            previous = current;
+            current = recycled;
+        }
+        return previous[m];
+    }
+
+    private static int maxTypos(String word) {
+        if (word.length() < MIN_TYPO_LENGTH || !hasLetter(word)) {
+            return 0;
+        }
+        return word.length() >= TWO_TYPO_LENGTH ? 2 : 1;
+    }
+
+    private static boolean hasLetter(String word) {
+        for (int i = 0; i < word.length(); i++) {
+            if (Character.isLetter(word.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The distinct two-character pieces of "$word$", each packed with the
+     * word's length so that only words of a similar length are compared.
+     */
+    private static long[] bigrams(String word, int length) {
+        String padded = "$" + word + "$";
+        long[] keys = new long[padded.length() - 1];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = ((long) length << 32) | ((long) padded.charAt(i) << 16) | padded.charAt(i + 1);
+        }
+        return Arrays.stream(keys).distinct().toArray();
+    }
+
+    /**
+     * Products in ascending order.
+     */
+    private static final class Postings {
+        private static final int[] NONE = new int[0];
+
+        int[] docs = NONE;
+        int size;
+        // Also kept as a bitmap once the list holds a large share of all products,
+        // so that the lists of common words are intersected 64 products at a time
+        long[] bits;
+
+        void add(int doc) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, Math.max(2, size * 2));
+            }
+            docs[size++] = doc;
+            if (bits != null) {
+                setBit(doc);
+            }
+        }
+
+        void makeBitmap() {
+            bits = new long[(docs[size - 1] >>> 6) + 1];
+            for (int i = 0; i < size; i++) {
+                setBit(docs[i]);
+            }
+        }
+
+        long chunk(int i) {
+            return i < bits.length ? bits[i] : 0;
+        }
+
+        /**
+         * @return the first product at or after doc, found in the bitmap, or Integer.MAX_VALUE
+         */
+        int nextInBitmap(int doc) {
+            int i = doc >>> 6;
+            if (i >= bits.length) {
+                return Integer.MAX_VALUE;
+            }
+            long word = bits[i] & (-1L << doc);
+            while (word == 0) {
+                if (++i == bits.length) {
+                    return Integer.MAX_VALUE;
+                }
+                word = bits[i];
+            }
+            return i << 6 | Long.numberOfTrailingZeros(word);
+        }
+
+        private void setBit(int doc) {
+            int word = doc >>> 6;
+            if (word >= bits.length) {
+                bits = Arrays.copyOf(bits, Math.max(word + 1, bits.length * 2));
+            }
+            bits[word] |= 1L << doc;
+        }
+
+        /**
+         * Gallops forward from a position, so checking candidates in
+         * ascending order costs little more than a merge.
+         * @return the position of the first product at or after doc
+         */
+        int seek(int doc, int from) {
+            int low = from;
+            int high = from;
+            int step = 1;
+            while (high < size && docs[high] < doc) {
+                low = high + 1;
+                high += step;
+                step <<= 1;
+            }
+            high = Math.min(high, size);
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (docs[mid] < doc) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        void renumber(int[] renumbered) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                int doc = renumbered[docs[i]];
+                if (doc >= 0) {
+                    docs[kept++] = doc;
+                }
+            }
+            size = kept;
+            if (bits != null) {
+                if (size == 0) {
+                    bits = null;
+                } else {
+                    makeBitmap();
+                }
+            }
+        }
+    }
+
+    /**
+     * A dictionary word and the products with it in their name, and those
+     * with it only in their description.
+     */
+    private static final class Term {
+        final String text;
+        // Position in Data.termList, for counting per word in an array
+        int id;
+        final Postings inName = new Postings();
+        final Postings inDescription = new Postings();
+
+        Term(String text) {
+            this.text = text;
+        }
+
+        int size() {
+            return inName.size + inDescription.size;
+        }
+    }
+
+    private static final class Expansion {
+        final Term term;
+        final float weight;
+
+        Expansion(Term term, float weight) {
+            this.term = term;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Per-search working space: a score per product, zero when untouched,
+     * the lists of products touched, and a count of shared pieces per word
+     * for typo candidates. Left all zero after each search.
+     */
+    private static final class Scratch {
+        final float[] scores;
+        final float[] wordScores;
+        final int[] candidates;
+        final int[] touched;
+        int[] shared = new int[0];
+        int[] sharedTerms = new int[0];
+
+        Scratch(int size) {
+            scores = new float[size];
+            wordScores = new float[size];
+            candidates = new int[size];
+            touched = new int[size];
+        }
+    }
+
+    /**
+     * The best hits seen so far, as a heap of products with the worst at the
+     * top. Higher scores win; equal scores favour the product indexed first.
+     */
+    private static final class TopHits {
+        private final int[] docs;
+        private final float[] scores;
+        private int size;
+
+        TopHits(int limit) {
+            this.docs = new int[limit];
+            this.scores = new float[limit];
+        }
+
+        void offer(int doc, float score) {
+            if (size < docs.length) {
+                docs[size] = doc;
+                scores[size] = score;
+                siftUp(size++);
+            } else if (better(doc, score, docs[0], scores[0])) {
+                docs[0] = doc;
+                scores[0] = score;
+                siftDown(0);
+            }
+        }
+
+        List<Hit> toList(String[] docNames) {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (x, y) -> better(docs[x], scores[x], docs[y], scores[y]) ? -1 : 1);
+            List<Hit> hits = new ArrayList<>(size);
+            for (int i : order) {
+                hits.add(new Hit(docNames[docs[i]], scores[i]));
+            }
+            return hits;
+        }
+
+        private static boolean better(int doc, float score, int otherDoc, float otherScore) {
+            return score != otherScore ? score > otherScore : doc < otherDoc;
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!better(docs[parent], scores[parent], docs[i], scores[i])) {
+                    return;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int worst = i;
+                for (int child = 2 * i + 1; child <= 2 * i + 2 && child < size; child++) {
+                    if (better(docs[worst], scores[worst], docs[child], scores[child])) {
+                        worst = child;
+                    }
+                }
+                if (worst == i) {
+                    return;
+                }
+                swap(i, worst);
+                i = worst;
+            }
+        }
+
+        private void swap(int i, int j) {
+            int doc = docs[i];
+            docs[i] = docs[j];
+            docs[j] = doc;
+            float score = scores[i];
+            scores[i] = scores[j];
+            scores[j] = score;
+        }
+    }
+
+    /**
+     * Everything the index holds, so a rebuild can fill a new one without
+     * holding the lock and swap it in at once.
+     */
+    private static final class Data {
+        final HashMap<String, Term> terms = new HashMap<>();
+        // The same words in order, for prefixes; looked up only when a query has one
+        final TreeMap<String, Term> sortedTerms = new TreeMap<>();
+        final List<Term> termList = new ArrayList<>();
+        final HashMap<Long, List<Term>> bigramIndex = new HashMap<>();
+        final HashMap<String, Integer> docByName = new HashMap<>();
+        String[] docNames = new String[1024];
+        int docCount;
+        int stale;
+
+        void add(String name, String description) {
+            remove(name);
+            int doc = docCount++;
+            if (doc == docNames.length) {
+                docNames = Arrays.copyOf(docNames, doc * 2);
+            }
+            docNames[doc] = name;
+            docByName.put(name, doc);
+
+            Map<String, Boolean> words = new LinkedHashMap<>();
+            for (String word : tokenize(name)) {
+                words.put(word, Boolean.TRUE);
+            }
+            for (String word : tokenize(description)) {
+                words.putIfAbsent(word, Boolean.FALSE);
+            }
+            for (Map.Entry<String, Boolean> word : words.entrySet()) {
+                Term term = terms.get(word.getKey());
+                if (term == null) {
+                    term = new Term(word.getKey());
+                    term.id = termList.size();
+                    termList.add(term);
+                    terms.put(term.text, term);
+                    sortedTerms.put(term.text, term);
+                    if (maxTypos(term.text) > 0) {
+                        for (long key : bigrams(term.text, term.text.length())) {
+                            bigramIndex.computeIfAbsent(key, k -> new ArrayList<>(2)).add(term);
+                        }
+                    }
+                }
+                Postings list = word.getValue() ? term.inName : term.inDescription;
+                list.add(doc);
+                if (list.bits == null && list.size >= BITMAP_MIN_SIZE && list.size >= docCount / BITMAP_SHARE) {
+                    list.makeBitmap();
+                }
+            }
+        }
+
+        void remove(String name) {
+            Integer doc = docByName.remove(name);
+            if (doc == null) {
+                return;
+            }
+            docNames[doc] = null;
+            if (++stale > COMPACT_MIN_STALE && stale > docByName.size()) {
+                compact();
+            }
+        }
+
+        /**
+         * Renumbers the live products from 0 and drops the stale entries and
+         * any words left with no products.
+         */
+        private void compact() {
+            int[] renumbered = new int[docCount];
+            int live = 0;
+            for (int doc = 0; doc < docCount; doc++) {
+                if (docNames[doc] != null) {
+                    renumbered[doc] = live;
+                    docNames[live++] = docNames[doc];
+                } else {
+                    renumbered[doc] = -1;
+                }
+            }
+            Arrays.fill(docNames, live, docCount, null);
+            List<Term> kept = new ArrayList<>(termList.size());
+            for (Term term : termList) {
+                term.inName.renumber(renumbered);
+                term.inDescription.renumber(renumbered);
+                if (term.size() > 0) {
+                    term.id = kept.size();
+                    kept.add(term);
+                } else {
+                    terms.remove(term.text);
+                    sortedTerms.remove(term.text);
+                }
+            }
+            termList.clear();
+            termList.addAll(kept);
+            bigramIndex.values().removeIf(list -> {
+                list.removeIf(term -> term.size() == 0);
+                return list.isEmpty();
+            });
+            for (Map.Entry<String, Integer> entry : docByName.entrySet()) {
+                entry.setValue(renumbered[entry.getValue()]);
+            }
+            docCount = live;
+            stale = 0;
+        }
+
+        List<Hit> search(Set<String> words, int limit, Scratch scratch) {
+            List<Expansion[]> expanded = new ArrayList<>(words.size());
+            for (String word : words) {
+                Expansion[] expansions = expand(word, scratch);
+                if (expansions.length == 0) {
+                    return Collections.emptyList();
+                }
+                expanded.add(expansions);
+            }
+            expanded.sort(Comparator.comparingLong(Data::postingCount));
+            if (expanded.size() == 1 || postingCount(expanded.get(0)) > SCORE_ALL_MAX_CANDIDATES) {
+                List<Hit> hits = searchByTiers(expanded, limit);
+                if (hits != null) {
+                    return hits;
+                }
+            }
+
+            // Products matching the rarest word, then narrowed by each of the others
+            float[] scores = scratch.scores;
+            int[] candidates = scratch.candidates;
+            int count = collect(expanded.get(0), scores, candidates);
+            boolean sorted = false;
+            for (int w = 1; w < expanded.size() && count > 0; w++) {
+                Expansion[] expansions = expanded.get(w);
+                if (probeCost(expansions, count) <= postingCount(expansions)) {
+                    if (!sorted) {
+                        Arrays.sort(candidates, 0, count);
+                        sorted = true;
+                    }
+                    count = narrowByProbing(expansions, scratch, count);
+                } else {
+                    count = narrowByCollecting(expansions, scratch, count);
+                }
+            }
+
+            TopHits best = new TopHits(limit);
+            for (int i = 0; i < count; i++) {
+                int doc = candidates[i];
+                best.offer(doc, scores[doc]);
+                scores[doc] = 0;
+            }
+            return best.toList(docNames);
+        }
+
+        /**
+         * A product's score for a query word is fixed by the best of the word's
+         * lists it is in, so its total is fixed by one combination of lists.
+         * Combinations are visited best total first, and each gives its lowest
+         * products not already counted in a better one, so the search stops as
+         * soon as it has enough products however common the words are.
+         * @return the hits, or null if there are too many combinations to visit
+         */
+        private List<Hit> searchByTiers(List<Expansion[]> expanded, int limit) {
+            int words = expanded.size();
+            float[][] tierScores = new float[words][];
+            Postings[][][] tierLists = new Postings[words][][];
+            long combinations = 1;
+            for (int w = 0; w < words; w++) {
+                tiers(expanded.get(w), w, tierScores, tierLists);
+                combinations *= tierScores[w].length;
+                if (combinations > MAX_COMBINATIONS) {
+                    return null;
+                }
+            }
+            int[][] combos = new int[(int) combinations][words];
+            float[] totals = new float[combos.length];
+            Integer[] order = new Integer[combos.length];
+            for (int c = 0; c < combos.length; c++) {
+                int rest = c;
+                for (int w = 0; w < words; w++) {
+                    combos[c][w] = rest % tierScores[w].length;
+                    rest /= tierScores[w].length;
+                    totals[c] += tierScores[w][combos[c][w]];
+                }
+                order[c] = c;
+            }
+            Arrays.sort(order, (x, y) -> Float.compare(totals[y], totals[x]));
+
+            List<Hit> hits = new ArrayList<>(Math.min(limit, 64));
+            int start = 0;
+            while (start < order.length && hits.size() < limit) {
+                float total = totals[order[start]];
+                int end = start;
+                while (end < order.length && totals[order[end]] == total) {
+                    end++;
+                }
+                // Equal totals from different combinations are merged so ties stay in product order
+                int needed = limit - hits.size();
+                int[] picked = new int[needed * (end - start)];
+                int count = 0;
+                for (int i = start; i < end; i++) {
+                    count = intersect(combos[order[i]], tierLists, needed, picked, count);
+                }
+                Arrays.sort(picked, 0, count);
+                for (int i = 0; i < count && i < needed; i++) {
+                    hits.add(new Hit(docNames[picked[i]], total));
+                }
+                start = end;
+            }
+            return hits;
+        }
+
+        /**
+         * Groups a query word's non-empty lists by the score they give, best first.
+         */
+        private static void tiers(Expansion[] expansions, int w, float[][] tierScores, Postings[][][] tierLists) {
+            TreeMap<Float, List<Postings>> byScore = new TreeMap<>(Collections.reverseOrder());
+            for (Expansion expansion : expansions) {
+                if (expansion.term.inName.size > 0) {
+                    byScore.computeIfAbsent(expansion.weight * NAME_WEIGHT, k -> new ArrayList<>()).add(expansion.term.inName);
+                }
+                if (expansion.term.inDescription.size > 0) {
+                    byScore.computeIfAbsent(expansion.weight, k -> new ArrayList<>()).add(expansion.term.inDescription);
+                }
+            }
+            tierScores[w] = new float[byScore.size()];
+            tierLists[w] = new Postings[byScore.size()][];
+            int t = 0;
+            for (Map.Entry<Float, List<Postings>> tier : byScore.entrySet()) {
+                tierScores[w][t] = tier.getKey();
+                tierLists[w][t++] = tier.getValue().toArray(new Postings[0]);
+            }
+        }
+
+        /**
+         * Adds to picked, from position count, up to needed of the lowest
+         * products in every list of the combination and in no better list of
+         * any word. The words take turns to seek to the highest product seen
+         * until they all agree, so the work follows the sparsest word.
+         * @return the new count
+         */
+        private int intersect(int[] combo, Postings[][][] tierLists, int needed, int[] picked, int count) {
+            int words = combo.length;
+            Postings[][] lists = new Postings[words][];
+            int[][] positions = new int[words][];
+            int[][][] betterPositions = new int[words][][];
+            boolean bitmaps = true;
+            for (int w = 0; w < words; w++) {
+                lists[w] = tierLists[w][combo[w]];
+                positions[w] = new int[lists[w].length];
+                betterPositions[w] = new int[combo[w]][];
+                for (int t = 0; t < combo[w]; t++) {
+                    betterPositions[w][t] = new int[tierLists[w][t].length];
+                }
+                for (Postings list : lists[w]) {
+                    bitmaps &= list.bits != null;
+                }
+            }
+            if (bitmaps) {
+                return intersectBitmaps(combo, tierLists, lists, betterPositions, needed, picked, count);
+            }
+            int taken = 0;
+            int target = 0;
+            while (taken < needed) {
+                int candidate = seekAny(lists[0], positions[0], target);
+                int agreed = 1;
+                for (int w = 1 % words; agreed < words && candidate != Integer.MAX_VALUE; w = (w + 1) % words) {
+                    int doc = seekAny(lists[w], positions[w], candidate);
+                    if (doc == candidate) {
+                        agreed++;
+                    } else {
+                        candidate = doc;
+                        agreed = 1;
+                    }
+                }
+                if (candidate == Integer.MAX_VALUE) {
+                    break;
+                }
+                if (docNames[candidate] != null && !inBetterTier(candidate, combo, tierLists, betterPositions)) {
+                    picked[count++] = candidate;
+                    taken++;
+                }
+                target = candidate + 1;
+            }
+            return count;
+        }
+
+        /**
+         * {@link #intersect} for combinations whose lists all have bitmaps.
+         */
+        private int intersectBitmaps(int[] combo, Postings[][][] tierLists, Postings[][] lists,
+                                     int[][][] betterPositions, int needed, int[] picked, int count) {
+            int chunks = Integer.MAX_VALUE;
+            for (Postings[] wordLists : lists) {
+                int wordChunks = 0;
+                for (Postings list : wordLists) {
+                    wordChunks = Math.max(wordChunks, list.bits.length);
+                }
+                chunks = Math.min(chunks, wordChunks);
+            }
+            boolean betterAllBitmaps = true;
+            for (int w = 0; w < combo.length; w++) {
+                for (int t = 0; t < combo[w]; t++) {
+                    for (Postings list : tierLists[w][t]) {
+                        betterAllBitmaps &= list.bits != null;
+                    }
+                }
+            }
+            int taken = 0;
+            for (int i = 0; i < chunks && taken < needed; i++) {
+                long match = -1L;
+                for (int w = 0; w < lists.length && match != 0; w++) {
+                    long any = 0;
+                    for (Postings list : lists[w]) {
+                        any |= list.chunk(i);
+                    }
+                    match &= any;
+                }
+                for (int w = 0; w < combo.length && match != 0; w++) {
+                    for (int t = 0; t < combo[w]; t++) {
+                        for (Postings list : tierLists[w][t]) {
+                            if (list.bits != null) {
+                                match &= ~list.chunk(i);
+                            }
+                        }
+                    }
+                }
+                while (match != 0 && taken < needed) {
+                    int doc = i << 6 | Long.numberOfTrailingZeros(match);
+                    match &= match - 1;
+                    if (docNames[doc] != null
+                            && (betterAllBitmaps || !inBetterTier(doc, combo, tierLists, betterPositions))) {
+                        picked[count++] = doc;
+                        taken++;
+                    }
+                }
+            }
+            return count;
+        }
+
+        /**
+         * @return the lowest product at or after doc in any of the lists, or Integer.MAX_VALUE
+         */
+        private static int seekAny(Postings[] lists, int[] positions, int doc) {
+            int lowest = Integer.MAX_VALUE;
+            for (int l = 0; l < lists.length; l++) {
+                Postings list = lists[l];
+                if (list.bits != null) {
+                    lowest = Math.min(lowest, list.nextInBitmap(doc));
+                    continue;
+                }
+                int p = positions[l] = list.seek(doc, positions[l]);
+                if (p < list.size) {
+                    lowest = Math.min(lowest, list.docs[p]);
+                }
+            }
+            return lowest;
+        }
+
+        private static boolean inBetterTier(int doc, int[] combo, Postings[][][] tierLists, int[][][] positions) {
+            for (int w = 0; w < combo.length; w++) {
+                for (int t = 0; t < combo[w]; t++) {
+                    Postings[] lists = tierLists[w][t];
+                    for (int l = 0; l < lists.length; l++) {
+                        if (lists[l].bits != null) {
+                            if ((lists[l].chunk(doc >>> 6) & 1L << doc) != 0) {
+                                return true;
+                            }
+                            continue;
+                        }
+                        int p = positions[w][t][l] = lists[l].seek(doc, positions[w][t][l]);
+                        if (p < lists[l].size && lists[l].docs[p] == doc) {
+                            return true;
+                        }
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Adds each product matching any of the expansions to docs, with its best score.
+         * @return the number of products added
+         */
+        private int collect(Expansion[] expansions, float[] scores, int[] docs) {
+            int count = 0;
+            for (Expansion expansion : expansions) {
+                for (int field = 0; field < 2; field++) {
+                    Postings list = field == 0 ? expansion.term.inName : expansion.term.inDescription;
+                    float score = field == 0 ? expansion.weight * NAME_WEIGHT : expansion.weight;
+                    for (int i = 0; i < list.size; i++) {
+                        int doc = list.docs[i];
+                        if (docNames[doc] == null) {
+                            continue;
+                        }
+                        if (scores[doc] == 0) {
+                            docs[count++] = doc;
+                            scores[doc] = score;
+                        } else if (score > scores[doc]) {
+                            scores[doc] = score;
+                        }
+                    }
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Keeps the candidates, in ascending order, that also match this word
+         * and adds its score. Each list is checked for all the candidates in
+         * turn, seeking forward through it or testing its bitmap, so that one
+         * list is read at a time.
+         * @return the number of candidates left, moved to the front of the list
+         */
+        private int narrowByProbing(Expansion[] expansions, Scratch scratch, int count) {
+            float[] scores = scratch.scores;
+            float[] wordScores = scratch.wordScores;
+            int[] candidates = scratch.candidates;
+            for (Expansion expansion : expansions) {
+                for (int field = 0; field < 2; field++) {
+                    Postings list = field == 0 ? expansion.term.inName : expansion.term.inDescription;
+                    float score = field == 0 ? expansion.weight * NAME_WEIGHT : expansion.weight;
+                    int p = 0;
+                    for (int i = 0; i < count && p < list.size; i++) {
+                        int doc = candidates[i];
+                        boolean found;
+                        if (list.bits != null) {
+                            found = (list.chunk(doc >>> 6) & 1L << doc) != 0;
+                        } else {
+                            p = list.seek(doc, p);
+                            found = p < list.size && list.docs[p] == doc;
+                        }
+                        if (found && score > wordScores[doc]) {
+                            wordScores[doc] = score;
+                        }
+                    }
+                }
+            }
+            int kept = 0;
+            for (int i = 0; i < count; i++) {
+                int doc = candidates[i];
+                if (wordScores[doc] > 0) {
+                    candidates[kept++] = doc;
+                    scores[doc] += wordScores[doc];
+                    wordScores[doc] = 0;
+                } else {
+                    scores[doc] = 0;
+                }
+            }
+            return kept;
+        }
+
+        /**
+         * Keeps the candidates that also match this word and adds its score,
+         * reading all of the word's products.
+         * @return the number of candidates left, moved to the front of the list
+         */
+        private int narrowByCollecting(Expansion[] expansions, Scratch scratch, int count) {
+            float[] scores = scratch.scores;
+            float[] wordScores = scratch.wordScores;
+            int[] candidates = scratch.candidates;
+            int touched = collect(expansions, wordScores, scratch.touched);
+            int kept = 0;
+            for (int i = 0; i < count; i++) {
+                int doc = candidates[i];
+                if (wordScores[doc] > 0) {
+                    candidates[kept++] = doc;
+                    scores[doc] += wordScores[doc];
+                } else {
+                    scores[doc] = 0;
+                }
+            }
+            for (int i = 0; i < touched; i++) {
+                wordScores[scratch.touched[i]] = 0;
+            }
+            return kept;
+        }
+
+        // Roughly the steps needed to seek each candidate in each list
+        private static long probeCost(Expansion[] expansions, int count) {
+            long cost = 0;
+            for (Expansion expansion : expansions) {
+                long gap = Math.max(1, expansion.term.size() / count);
+                cost += 2L * count * (1 + 64 - Long.numberOfLeadingZeros(gap));
+            }
+            return cost;
+        }
+
+        private static long postingCount(Expansion[] expansions) {
+            long count = 0;
+            for (Expansion expansion : expansions) {
+                count += expansion.term.size();
+            }
+            return count;
+        }
+
+        /**
+         * The dictionary words a query word matches, weighted by closeness and rarity.
+         */
+        private Expansion[] expand(String word, Scratch scratch) {
+            Map<Term, Float> matches = new HashMap<>();
+            Term exact = terms.get(word);
+            if (exact != null) {
+                matches.put(exact, EXACT_WEIGHT);
+            }
+            if (word.length() >= MIN_PREFIX_LENGTH) {
+                List<Term> longer = new ArrayList<>(sortedTerms.subMap(word, false, word + Character.MAX_VALUE, false).values());
+                if (longer.size() > MAX_EXPANSIONS) {
+                    longer.sort(Comparator.comparingInt((Term term) -> -term.size()));
+                    longer = longer.subList(0, MAX_EXPANSIONS);
+                }
+                for (Term term : longer) {
+                    matches.put(term, PREFIX_WEIGHT);
+                }
+            }
+            int typos = maxTypos(word);
+            if (typos > 0) {
+                addTypoMatches(word, typos, matches, scratch);
+            }
+
+            // Rarity is judged per query word, by its most common match, so a typo
+            // that happens to match a rare word does not outrank the word meant
+            int mostCommon = 1;
+            for (Term term : matches.keySet()) {
+                mostCommon = Math.max(mostCommon, term.size());
+            }
+            float idf = (float) Math.log(1 + (double) Math.max(1, docByName.size()) / mostCommon);
+            Expansion[] expansions = new Expansion[matches.size()];
+            int i = 0;
+            for (Map.Entry<Term, Float> match : matches.entrySet()) {
+                expansions[i++] = new Expansion(match.getKey(), match.getValue() * idf);
+            }
+            if (expansions.length > MAX_EXPANSIONS) {
+                Arrays.sort(expansions, Comparator.comparingDouble((Expansion e) -> -e.weight * e.term.size()));
+                expansions = Arrays.copyOf(expansions, MAX_EXPANSIONS);
+            }
+            return expansions;
+        }
+
+        /**
+         * One edit changes at most three of a word's pieces (a swap is the
+         * worst case), so a word within the given number of edits shares all
+         * but 3 * typos of the query word's pieces, and only words sharing at
+         * least that many are compared in full.
+         */
+        private void addTypoMatches(String word, int typos, Map<Term, Float> matches, Scratch scratch) {
+            if (scratch.shared.length < termList.size()) {
+                scratch.shared = new int[termList.size() + termList.size() / 4 + 16];
+                scratch.sharedTerms = new int[scratch.shared.length];
+            }
+            int[] shared = scratch.shared;
+            int[] sharedTerms = scratch.sharedTerms;
+            int count = 0;
+            int pieces = 0;
+            for (int length = word.length() - typos; length <= word.length() + typos; length++) {
+                long[] keys = bigrams(word, length);
+                pieces = keys.length;
+                for (long key : keys) {
+                    List<Term> candidates = bigramIndex.get(key);
+                    if (candidates == null) {
+                        continue;
+                    }
+                    for (Term term : candidates) {
+                        if (shared[term.id]++ == 0) {
+                            sharedTerms[count++] = term.id;
+                        }
+                    }
+                }
+            }
+            int needed = Math.max(1, pieces - 3 * typos);
+            for (int i = 0; i < count; i++) {
+                int id = sharedTerms[i];
+                Term term = termList.get(id);
+                if (shared[id] >= needed && !matches.containsKey(term)) {
+                    int distance = editDistance(word, term.text, typos);
+                    if (distance <= typos) {
+                        matches.put(term, distance == 1 ? ONE_TYPO_WEIGHT : TWO_TYPO_WEIGHT);
+                    }
+                }
+                shared[id] = 0;
+            }
+        }
+    }
+}
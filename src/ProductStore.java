@@ -0,0 +1,146 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where the inventory keeps its products. {@link JdbcProductStore} uses the
+ * products table of the configured database; {@link EmbeddedProductStore}
+ * keeps them in local files for sites without a database server.
+ * Implementations must be safe to call from many threads at once.
+ */
+public interface ProductStore extends AutoCloseable {
+
+    interface Visitor {
+        void visit(Product product) throws IOException;
+    }
+
+    /**
+     * Receives the products changed since a watermark, and the names of
+     * products deleted (or renamed away) since then.
+     */
+    interface ChangeVisitor extends Visitor {
+        void deleted(String name) throws IOException;
+    }
+
+    /**
+     * Receives a product's quantity and the level at which it should be reordered.
+     */
+    interface StockLevelVisitor {
+        void visit(String name, int quantity, int reorderLevel);
+    }
+
+    /**
+     * @return the product, or null if no product has this name
+     */
+    Product find(String name) throws SQLException;
+
+    /**
+     * @return true if the product was stored, false if the name is already taken
+     */
+    boolean insert(Product product) throws SQLException;
+
+    /**
+     * @return the product as it was before removal, or null if no product has this name
+     */
+    Product delete(String name) throws SQLException;
+
+    /**
+     * Replaces the product with the given values, provided its quantity is
+     * still expectedQuantity.
+     * @return true if the product was replaced, false if it is gone or its quantity changed
+     * @throws java.sql.SQLIntegrityConstraintViolationException if it is renamed to a name already taken
+     */
+    boolean update(String currentName, Product updated, int expectedQuantity) throws SQLException;
+
+    /**
+     * Adds delta to the product's quantity unless that would make it negative.
+     * @return the product with its new quantity, or null if it does not exist or the change was refused
+     */
+    Product adjustQuantity(String name, int delta) throws SQLException;
+
+    /**
+     * Takes stock for several products, all or nothing. A quantity that is
+     * null or not positive refuses the whole reservation.
+     * @return the products with their new quantities, one per entry in the
+     *         map's iteration order, or null if any product lacked stock
+     */
+    List<Product> reserve(Map<String, Integer> quantities) throws SQLException;
+
+    /**
+     * Sets the quantity at or below which the product should be reordered;
+     * 0 means it is never reordered. Later changes to the product keep it.
+     * @return the product's current quantity, or -1 if no product has this name
+     */
+    int setReorderLevel(String name, int reorderLevel) throws SQLException;
+
+    /**
+     * Visits every product with a reorder level above 0.
+     * @return the number of products visited
+     */
+    long scanReorderLevels(StockLevelVisitor visitor) throws SQLException;
+
+    ProductQuery.Page query(ProductQuery query) throws SQLException;
+
+    /**
+     * Visits every product once, in no particular order.
+     * @return the number of products visited
+     */
+    long scan(Visitor visitor) throws SQLException, IOException;
+
+    /**
+     * @return a watermark covering every change made so far; a full export
+     *         taken after reading it is a base for {@link #scanChanges}
+     */
+    long currentWatermark() throws SQLException;
+
+    /**
+     * Visits deleted names, then products changed after the since watermark
+     * (0 visits everything). A change may be visited again by the next call;
+     * one is never missed. Deletions are visited first, so applying them
+     * before the products gives the current state even when a name was
+     * deleted and added again.
+     * @return the watermark to pass next time; its meaning depends on the store
+     */
+    long scanChanges(long since, ChangeVisitor visitor) throws SQLException, IOException;
+
+    /**
+     * Stores a batch of imported products. With upsert, products that already
+     * exist are overwritten; otherwise they are rejected.
+     * @return one entry per product: null if it was stored, otherwise the reason it was rejected
+     */
+    String[] importBatch(List<Product> products, boolean upsert) throws SQLException;
+
+    @Override
+    void close();
+
+    /**
+     * Opens the store selected by storage.engine: "jdbc" (the default) or
+     * "embedded". With warehouses configured, this is the default warehouse's
+     * store on its shard.
+     * @throws IllegalStateException if the embedded store or the shards cannot be opened
+     */
+    static ProductStore fromConfig() {
+        WarehouseShards warehouses = WarehouseShards.shared();
+        if (warehouses != null) {
+            return warehouses.getDefaultStore();
+        }
+        String engine = ConfigManager.getStorageEngine();
+        if (engine.equalsIgnoreCase("embedded")) {
+            try {
+                ProductStore store = new EmbeddedProductStore(Paths.get(ConfigManager.getStorageDir()),
+                        ConfigManager.getStorageCompactBytes(), ConfigManager.isStorageForceOnWrite());
+                Runtime.getRuntime().addShutdownHook(new Thread(store::close, "product-store-shutdown"));
+                return store;
+            } catch (SQLException e) {
+                throw new IllegalStateException("Could not open embedded storage: " + e.getMessage(), e);
+            }
+        }
+        if (!engine.equalsIgnoreCase("jdbc")) {
+            throw new IllegalStateException("Unknown storage.engine: " + engine);
+        }
+        return new JdbcProductStore(ConfigManager.getExportFetchSize(), ConfigManager.getStockLockStripes(),
+                ConfigManager.getExportDeltaOverlapMillis(), ConfigManager.getExportTombstoneRetentionMillis());
+    }
+}
@@ -0,0 +1,223 @@
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * In-memory index of the products that have a reorder level, ordered by
+ * quantity relative to that level, most urgent first. A product is due for
+ * reorder when its quantity is at or below its level, so the due products
+ * are always a prefix of the order and the top N are found in O(log n + N)
+ * without reading the store.
+ * <p>
+ * The index is built from the store once and then kept up to date by
+ * {@link InventoryManagementSystem} as it changes products. Quantity changes
+ * are applied as differences, so two changes to the same product give the
+ * right result whichever reaches the index first. Changes made by other
+ * processes appear only after {@link #rebuild}. When a change takes a
+ * product to or below its level, the {@link ReorderNotifier} is told.
+ */
+public class ReorderIndex {
+
+    /**
+     * A product's stock against its reorder level. Never modified; a change replaces the item.
+     */
+    public static final class Item {
+        private final String name;
+        private final int quantity;
+        private final int reorderLevel;
+
+        Item(String name, int quantity, int reorderLevel) {
+            this.name = name;
+            this.quantity = quantity;
+            this.reorderLevel = reorderLevel;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getQuantity() {
+            return quantity;
+        }
+
+        public int getReorderLevel() {
+            return reorderLevel;
+        }
+
+        /**
+         * @return true if the quantity is at or below the reorder level
+         */
+        public boolean isDue() {
+            return quantity <= reorderLevel;
+        }
+    }
+
+    // Lowest quantity/reorderLevel first, compared exactly by cross-multiplying; then the larger shortfall
+    private static final Comparator<Item> URGENCY = (a, b) -> {
+        int byRatio = Long.compare((long) a.quantity * b.reorderLevel, (long) b.quantity * a.reorderLevel);
+        if (byRatio != 0) {
+            return byRatio;
+        }
+        int byShortfall = Long.compare((long) b.reorderLevel - b.quantity, (long) a.reorderLevel - a.quantity);
+        return byShortfall != 0 ? byShortfall : a.name.compareTo(b.name);
+    };
+
+    private final ReorderNotifier notifier;
+    private TreeSet<Item> ordered = new TreeSet<>(URGENCY);
+    private Map<String, Item> byName = new HashMap<>();
+    private int due;
+
+    /**
+     * @param notifier told when a product becomes due, or null
+     */
+    public ReorderIndex(ReorderNotifier notifier) {
+        this.notifier = notifier;
+    }
+
+    /**
+     * Replaces the contents with the reorder levels in the store. No alerts
+     * are sent for products that are already due. A change made while the
+     * store is being read may be missing until the next rebuild.
+     * @return the number of products indexed
+     */
+    public long rebuild(ProductStore store) throws SQLException {
+        TreeSet<Item> newOrdered = new TreeSet<>(URGENCY);
+        Map<String, Item> newByName = new HashMap<>();
+        int[] newDue = new int[1];
+        long rows = store.scanReorderLevels((name, quantity, reorderLevel) -> {
+            Item item = new Item(name, quantity, reorderLevel);
+            newOrdered.add(item);
+            newByName.put(name, item);
+            if (item.isDue()) {
+                newDue[0]++;
+            }
+        });
+        synchronized (this) {
+            ordered = newOrdered;
+            byName = newByName;
+            due = newDue[0];
+        }
+        return rows;
+    }
+
+    /**
+     * Records a new reorder level; 0 removes the product from the index.
+     */
+    public void setReorderLevel(String name, int quantity, int reorderLevel) {
+        Item added = null;
+        synchronized (this) {
+            Item old = remove(name);
+            if (reorderLevel > 0) {
+                added = new Item(name, quantity, reorderLevel);
+                add(added);
+                if (old != null && old.isDue()) {
+                    added = null;
+                }
+            }
+        }
+        notifyIfDue(added);
+    }
+
+    /**
+     * Applies a change of quantity; products without a reorder level are ignored.
+     */
+    public void quantityChanged(String name, int oldQuantity, int newQuantity) {
+        Item changed = null;
+        synchronized (this) {
+            Item old = remove(name);
+            if (old == null) {
+                return;
+            }
+            long quantity = (long) old.quantity + newQuantity - oldQuantity;
+            changed = new Item(name, (int) Math.max(0, Math.min(Integer.MAX_VALUE, quantity)), old.reorderLevel);
+            add(changed);
+            if (old.isDue()) {
+                changed = null;
+            }
+        }
+        notifyIfDue(changed);
+    }
+
+    /**
+     * Moves a product's entry to its new name; the store keeps the reorder level across a rename.
+     */
+    public synchronized void renamed(String oldName, String newName) {
+        Item old = remove(oldName);
+        if (old != null) {
+            add(new Item(newName, old.quantity, old.reorderLevel));
+        }
+    }
+
+    public synchronized void removed(String name) {
+        remove(name);
+    }
+
+    /**
+     * @return up to limit products at or below their reorder level, most urgent first
+     */
+    public synchronized List<Item> due(int limit) {
+        List<Item> items = new ArrayList<>(Math.min(limit, due));
+        Iterator<Item> iterator = ordered.iterator();
+        while (items.size() < limit && iterator.hasNext()) {
+            Item item = iterator.next();
+            if (!item.isDue()) {
+                break;
+            }
+            items.add(item);
+        }
+        return items;
+    }
+
+    /**
+     * @return the reorder level of the product, or 0 if it has none
+     */
+    public synchronized int getReorderLevel(String name) {
+        Item item = byName.get(name);
+        return item == null ? 0 : item.reorderLevel;
+    }
+
+    public synchronized int getDueCount() {
+        return due;
+    }
+
+    public synchronized int size() {
+        return byName.size();
+    }
+
+    private Item remove(String name) {
+        Item old = byName.remove(name);
+        if (old != null) {
+            ordered.remove(old);
+            if (old.isDue()) {
+                due--;
+            }
+        }
+        return old;
+    }
+
+    private void add(Item item) {
+        byName.put(item.name, item);
+        ordered.add(item);
+        if (item.isDue()) {
+            due++;
+        }
+    }
+
+    // Outside the lock, so a slow notifier never holds up other changes
+    private void notifyIfDue(Item item) {
+        if (item == null || !item.isDue() || notifier == null) {
+            return;
+        }
+        try {
+            notifier.belowReorderLevel(item.name, item.quantity, item.reorderLevel);
+        } catch (IOException | RuntimeException e) {
+            Logger.error("Could not send reorder alert for " + item.name + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,62 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Told when a product's stock falls to or below its reorder level, by the
+ * {@link ReorderIndex}. Called on the thread that made the change, after the
+ * change is stored, so implementations should be quick.
+ */
+public interface ReorderNotifier {
+
+    void belowReorderLevel(String name, int quantity, int reorderLevel) throws IOException;
+
+    /**
+     * The notifier selected by reorder.notifier: "console" (the default),
+     * "file" to append to reorder.alertFile, or "none".
+     */
+    static ReorderNotifier fromConfig() {
+        String sink = ConfigManager.getReorderNotifier();
+        if (sink.equalsIgnoreCase("none")) {
+            return null;
+        }
+        if (sink.equalsIgnoreCase("file")) {
+            return new FileNotifier(Paths.get(ConfigManager.getReorderAlertFile()));
+        }
+        return new ConsoleNotifier();
+    }
+
+    static String format(String name, int quantity, int reorderLevel) {
+        return "[" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"))
+                + "] Reorder " + name + ": " + quantity + " in stock, reorder level " + reorderLevel;
+    }
+
+    class ConsoleNotifier implements ReorderNotifier {
+        @Override
+        public void belowReorderLevel(String name, int quantity, int reorderLevel) {
+            System.out.println(format(name, quantity, reorderLevel));
+        }
+    }
+
+    /**
+     * Appends one line per alert to a file, for a job or a person to pick up.
+     */
+    class FileNotifier implements ReorderNotifier {
+        private final Path file;
+
+        public FileNotifier(Path file) {
+            this.file = file;
+        }
+
+        @Override
+        public synchronized void belowReorderLevel(String name, int quantity, int reorderLevel) throws IOException {
+            Files.write(file, (format(name, quantity, reorderLevel) + System.lineSeparator())
+                    .getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+    }
+}
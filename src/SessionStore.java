@@ -0,0 +1,149 @@
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory store for login sessions and failed login attempts.
+ * <p>
+ * A successful login gets a random token that stays valid for the session
+ * TTL, so later calls can be authenticated with one map lookup instead of a
+ * database round trip and a password hash. Users who fail to log in
+ * maxFailedAttempts times, each within the lockout period of the one before,
+ * are refused until it has passed since their last failure. Expired entries
+ * are swept once a minute, and failures also as soon as more than
+ * MAX_TRACKED_FAILURES usernames are tracked, dropping users who are not
+ * locked out first if that is not enough.
+ */
+public class SessionStore {
+    private static final int TOKEN_BYTES = 32;
+    private static final int MAX_TRACKED_FAILURES = 100_000;
+
+    private final long sessionTtlMillis;
+    private final int maxFailedAttempts;
+    private final long lockoutMillis;
+    private final SecureRandom random = new SecureRandom();
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, FailedAttempts> failures = new ConcurrentHashMap<>();
+
+    private static class Session {
+        final String username;
+        final long expiresAt;
+
+        Session(String username, long expiresAt) {
+            this.username = username;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static class FailedAttempts {
+        final int count;
+        final long lastFailureAt;
+
+        FailedAttempts(int count, long lastFailureAt) {
+            this.count = count;
+            this.lastFailureAt = lastFailureAt;
+        }
+    }
+
+    /**
+     * @param maxFailedAttempts failures allowed per user within the lockout period; 0 disables the limit
+     */
+    public SessionStore(long sessionTtlMillis, int maxFailedAttempts, long lockoutMillis) {
+        if (sessionTtlMillis <= 0) {
+            throw new IllegalArgumentException("Session TTL must be positive: " + sessionTtlMillis);
+        }
+        this.sessionTtlMillis = sessionTtlMillis;
+        this.maxFailedAttempts = maxFailedAttempts;
+        this.lockoutMillis = lockoutMillis;
+
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "session-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::purgeExpired, 1, 1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * @return a new session token for the user
+     */
+    public String createSession(String username) {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        sessions.put(token, new Session(username, System.currentTimeMillis() + sessionTtlMillis));
+        return token;
+    }
+
+    /**
+     * @return the user the token was issued to, or null if it is unknown or expired
+     */
+    public String validate(String token) {
+        if (token == null) {
+            return null;
+        }
+        Session session = sessions.get(token);
+        if (session == null) {
+            return null;
+        }
+        if (session.expiresAt <= System.currentTimeMillis()) {
+            sessions.remove(token, session);
+            return null;
+        }
+        return session.username;
+    }
+
+    public void invalidate(String token) {
+        if (token != null) {
+            sessions.remove(token);
+        }
+    }
+
+    public boolean isLockedOut(String username) {
+        if (maxFailedAttempts <= 0) {
+            return false;
+        }
+        FailedAttempts attempts = failures.get(username);
+        return attempts != null && attempts.count >= maxFailedAttempts
+                && System.currentTimeMillis() - attempts.lastFailureAt < lockoutMillis;
+    }
+
+    public void recordFailure(String username) {
+        if (maxFailedAttempts <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (failures.size() >= MAX_TRACKED_FAILURES && !failures.containsKey(username)) {
+            purgeFailures(now);
+        }
+        failures.compute(username, (key, attempts) ->
+                attempts == null || now - attempts.lastFailureAt >= lockoutMillis
+                        ? new FailedAttempts(1, now)
+                        : new FailedAttempts(attempts.count + 1, now));
+    }
+
+    public void recordSuccess(String username) {
+        failures.remove(username);
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    void purgeExpired() {
+        long now = System.currentTimeMillis();
+        sessions.values().removeIf(session -> session.expiresAt <= now);
+        purgeFailures(now);
+    }
+
+    private void purgeFailures(long now) {
+        failures.values().removeIf(attempts -> now - attempts.lastFailureAt >= lockoutMillis);
+        if (failures.size() >= MAX_TRACKED_FAILURES) {
+            // Someone is trying many usernames; keep the lockouts and forget the rest
+            failures.values().removeIf(attempts -> attempts.count < maxFailedAttempts);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Converts inventory files between the CSV format and the {@link BinarySnapshot}
+ * format without going through a store. The direction follows the input: a
+ * snapshot becomes CSV, anything else is read as CSV and becomes a snapshot.
+ */
+public class SnapshotConverter {
+
+    /**
+     * @return the number of rows written
+     */
+    public static long convert(Path input, Path output, boolean compress) throws IOException {
+        if (input.toAbsolutePath().normalize().equals(output.toAbsolutePath().normalize())) {
+            throw new IOException("Input and output must be different files");
+        }
+        if (!Files.exists(input)) {
+            throw new NoSuchFileException(input.toString());
+        }
+        return BinarySnapshot.isSnapshot(input) ? snapshotToCsv(input, output) : csvToSnapshot(input, output, compress);
+    }
+
+    /**
+     * Rows that are not valid products are logged and left out. If reading
+     * fails part way the output is deleted rather than left as a snapshot
+     * that looks complete.
+     */
+    static long csvToSnapshot(Path input, Path output, boolean compress) throws IOException {
+        try (InventoryImporter.CsvRecordReader reader = new InventoryImporter.CsvRecordReader(input);
+             BinarySnapshot.Writer writer = new BinarySnapshot.Writer(output, compress)) {
+            try {
+                while (reader.next()) {
+                    try {
+                        writer.write(InventoryImporter.parseProduct(reader.getFields()));
+                    } catch (IllegalArgumentException e) {
+                        Logger.error("Skipped line " + reader.getLineNumber() + " of " + input + ": " + e.getMessage());
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                writer.abort();
+                throw e;
+            }
+            return writer.getRowCount();
+        }
+    }
+
+    static long snapshotToCsv(Path input, Path output) throws IOException {
+        long rows = 0;
+        try (BinarySnapshot.Reader reader = new BinarySnapshot.Reader(input)) {
+            if (reader.isDelta()) {
+                throw new IOException("A delta has deletions, which CSV cannot hold; restore it instead");
+            }
+            try (InventoryExporter.CsvChannelWriter writer = InventoryExporter.CsvChannelWriter.create(output)) {
+                StringBuilder row = new StringBuilder(256);
+                Product product;
+                while ((product = reader.next()) != null) {
+                    row.setLength(0);
+                    InventoryExporter.appendCsvRow(row, product);
+                    writer.write(row);
+                    rows++;
+                }
+                writer.flush();
+            }
+        }
+        return rows;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 3 || (args.length == 3 && !args[2].equals("--compress"))) {
+            System.out.println("Usage: java SnapshotConverter <input> <output> [--compress]");
+            return;
+        }
+        Path input = Paths.get(args[0]);
+        boolean toCsv = BinarySnapshot.isSnapshot(input);
+        long rows = convert(input, Paths.get(args[1]), args.length == 3);
+        System.out.println("Wrote " + rows + " rows to " + args[1] + (toCsv ? " (CSV)" : " (binary snapshot)"));
+    }
+}
@@ -0,0 +1,309 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Applies quantity changes as single conditional UPDATE statements so
+ * concurrent writers can never lose an update or drive stock below zero.
+ * <p>
+ * Adjustments to the same product are combined: each caller queues its
+ * request and takes the product's lock stripe; whoever holds the lock
+ * applies every queued request for that product with one UPDATE of the net
+ * delta, and the other callers find their request already done.
+ */
+public class StockAdjuster {
+    private static final String ADJUST_SQL =
+            "UPDATE products SET quantity = quantity + ? WHERE name = ? AND quantity + ? >= 0";
+
+    private final ConnectionPool pool;
+    private final String adjustSql;
+    private final String findSql;
+    private final ReentrantLock[] stripes;
+    private final ConcurrentHashMap<String, ConcurrentLinkedQueue<Adjustment>> pending = new ConcurrentHashMap<>();
+
+    private static class Adjustment {
+        final int delta;
+        volatile boolean done;
+        volatile boolean applied;
+        volatile Product product;
+        volatile SQLException error;
+
+        Adjustment(int delta) {
+            this.delta = delta;
+        }
+    }
+
+    public StockAdjuster(int stripeCount) {
+        this(stripeCount, null, null);
+    }
+
+    /**
+     * @param pool where connections come from, or null for {@link DatabaseConnector}'s shared pool
+     * @param warehouse the only warehouse whose rows are changed, or null if the table has no warehouse column
+     */
+    public StockAdjuster(int stripeCount, ConnectionPool pool, String warehouse) {
+        if (stripeCount <= 0) {
+            throw new IllegalArgumentException("Stripe count must be positive: " + stripeCount);
+        }
+        this.pool = pool;
+        String condition = JdbcProductStore.warehouseCondition(warehouse);
+        this.adjustSql = ADJUST_SQL + condition;
+        this.findSql = JdbcProductStore.FIND_SQL + condition;
+        stripes = new ReentrantLock[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Adds delta to the product's quantity unless that would make it negative.
+     * The product is read back once per combined batch and each request gets
+     * the quantity its own change produced. That is exact unless a change that
+     * does not go through this adjuster (an update, a reservation or another
+     * process) lands between the UPDATE and the read.
+     * @return the product with its new quantity, or null if the product does
+     *         not exist, has too little stock, or was deleted before the read
+     * @throws SQLException if the change failed, or was made but could not be read back
+     */
+    public Product adjust(String name, int delta) throws SQLException {
+        Adjustment adjustment = new Adjustment(delta);
+        ConcurrentLinkedQueue<Adjustment> queue = pending.computeIfAbsent(name, k -> new ConcurrentLinkedQueue<>());
+        queue.add(adjustment);
+
+        ReentrantLock lock = stripes[(name.hashCode() & 0x7fffffff) % stripes.length];
+        lock.lock();
+        try {
+            if (!adjustment.done) {
+                List<Adjustment> batch = new ArrayList<>();
+                Adjustment next;
+                while ((next = queue.poll()) != null) {
+                    batch.add(next);
+                }
+                apply(name, batch);
+            }
+        } finally {
+            // Drop the drained queue so names that are no longer adjusted do not pile up. A caller that
+            // still holds it adds to it and then drains it itself under this lock, so nothing is stranded.
+            if (queue.isEmpty()) {
+                pending.remove(name, queue);
+            }
+            lock.unlock();
+        }
+        if (adjustment.error != null) {
+            throw adjustment.error;
+        }
+        return adjustment.applied ? adjustment.product : null;
+    }
+
+    private void apply(String name, List<Adjustment> batch) {
+        long net = 0;
+        for (Adjustment adjustment : batch) {
+            net += adjustment.delta;
+        }
+        boolean read = false;
+        try (Connection connection = JdbcProductStore.connect(pool);
+             PreparedStatement statement = connection.prepareStatement(adjustSql)) {
+            if (batch.size() > 1 && net >= Integer.MIN_VALUE && net <= Integer.MAX_VALUE
+                    && execute(statement, name, (int) net)) {
+                for (Adjustment adjustment : batch) {
+                    adjustment.applied = true;
+                    adjustment.done = true;
+                }
+            } else {
+                // The combined change did not fit (or there was only one): apply each request on its own
+                for (Adjustment adjustment : batch) {
+                    adjustment.applied = execute(statement, name, adjustment.delta);
+                    adjustment.done = true;
+                }
+            }
+            readBack(connection, name, batch);
+            read = true;
+        } catch (SQLException | RuntimeException e) {
+            fail(batch, name, e, read);
+        }
+    }
+
+    /**
+     * Gives each applied request the product with the quantity it left,
+     * replaying the batch forward from the quantity before the first change.
+     * The requests were concurrent, so any order is a valid one; increases go
+     * first so no request is shown leaving a negative quantity.
+     */
+    private void readBack(Connection connection, String name, List<Adjustment> batch) throws SQLException {
+        long applied = 0;
+        boolean any = false;
+        for (Adjustment adjustment : batch) {
+            if (adjustment.applied) {
+                applied += adjustment.delta;
+                any = true;
+            }
+        }
+        if (!any) {
+            return;
+        }
+        Product current = JdbcProductStore.find(connection, findSql, name);
+        if (current == null) {
+            return;
+        }
+        long quantity = current.getQuantity() - applied;
+        List<Adjustment> ordered = new ArrayList<>(batch);
+        ordered.sort((a, b) -> Integer.compare(b.delta, a.delta));
+        for (Adjustment adjustment : ordered) {
+            if (adjustment.applied) {
+                quantity += adjustment.delta;
+                adjustment.product = new Product(current.getName(), current.getDescription(), current.getPrice(),
+                        (int) quantity);
+            }
+        }
+    }
+
+    private static boolean execute(PreparedStatement statement, String name, int delta) throws SQLException {
+        statement.setInt(1, delta);
+        statement.setString(2, name);
+        statement.setInt(3, delta);
+        return statement.executeUpdate() > 0;
+    }
+
+    /**
+     * Gives each request the batch failure left undecided its own error. Each
+     * UPDATE commits on its own, so a request that was applied but not read
+     * back is reported as an error rather than as a refusal.
+     */
+    private static void fail(List<Adjustment> batch, String name, Exception cause, boolean read) {
+        for (Adjustment adjustment : batch) {
+            if (!adjustment.done) {
+                adjustment.error = new SQLException("Could not adjust stock of " + name, cause);
+                adjustment.done = true;
+            } else if (adjustment.applied && !read) {
+                adjustment.error = new SQLException("Stock of " + name + " was changed but could not be read back",
+                        cause);
+            }
+        }
+    }
+
+    /**
+     * Takes stock for several products in one transaction. Either every
+     * product has enough stock and all quantities are reduced, or nothing changes.
+     * @param quantities Amount to take per product name
+     * @return the products with their new quantities, read before the commit,
+     *         in the map's iteration order, or null if the reservation was refused
+     */
+    public List<Product> reserve(Map<String, Integer> quantities) throws SQLException {
+        for (Map.Entry<String, Integer> entry : quantities.entrySet()) {
+            if (entry.getKey() == null || entry.getValue() == null || entry.getValue() <= 0) {
+                return null;
+            }
+        }
+        // Lock rows in a fixed order so two overlapping reservations cannot deadlock
+        Map<String, Integer> ordered = new TreeMap<>(quantities);
+        try (Connection connection = JdbcProductStore.connect(pool)) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement(adjustSql)) {
+                for (Map.Entry<String, Integer> entry : ordered.entrySet()) {
+                    if (!execute(statement, entry.getKey(), -entry.getValue())) {
+                        connection.rollback();
+                        return null;
+                    }
+                }
+                // Read back by the requested names, which may differ in case from the stored ones
+                List<Product> reserved = new ArrayList<>(quantities.size());
+                for (String name : quantities.keySet()) {
+                    reserved.add(JdbcProductStore.find(connection, findSql, name));
+                }
+                connection.commit();
+                return reserved;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * Concurrency check against the configured database: many threads
+     * increment and decrement one product, then the final quantity is
+     * compared with the sum of the changes that reported success.
+     */
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int initial = 100;
+        String name = "stock-stress-" + System.currentTimeMillis();
+
+        try (Connection connection = DatabaseConnector.connect();
+             PreparedStatement statement = connection.prepareStatement(
+                     "INSERT INTO products (name, description, price, quantity) VALUES (?, 'stress test', 1, ?)")) {
+            statement.setString(1, name);
+            statement.setInt(2, initial);
+            statement.executeUpdate();
+        }
+
+        StockAdjuster adjuster = new StockAdjuster(64);
+        AtomicLong appliedNet = new AtomicLong();
+        AtomicLong rejected = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < operations; i++) {
+                    int delta = random.nextBoolean() ? random.nextInt(1, 5) : -random.nextInt(1, 8);
+                    try {
+                        if (adjuster.adjust(name, delta) != null) {
+                            appliedNet.addAndGet(delta);
+                        } else {
+                            rejected.incrementAndGet();
+                        }
+                    } catch (SQLException e) {
+                        failed.incrementAndGet();
+                        System.err.println("Adjustment failed: " + e.getMessage());
+                    }
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        boolean passed;
+        try (Connection connection = DatabaseConnector.connect()) {
+            int actual;
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT quantity FROM products WHERE name = ?")) {
+                statement.setString(1, name);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    resultSet.next();
+                    actual = resultSet.getInt(1);
+                }
+            }
+            try (PreparedStatement statement = connection.prepareStatement("DELETE FROM products WHERE name = ?")) {
+                statement.setString(1, name);
+                statement.executeUpdate();
+            }
+            long expected = initial + appliedNet.get();
+            System.out.println("Expected quantity: " + expected + ", actual: " + actual
+                    + ", rejected adjustments: " + rejected.get() + ", failed adjustments: " + failed.get());
+            passed = expected == actual && actual >= 0 && failed.get() == 0;
+            System.out.println(passed ? "Stock stress test passed." : "Stock stress test FAILED.");
+        } finally {
+            DatabaseConnector.shutdown();
+        }
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,429 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Routes each warehouse's products to the shard that holds them. A shard is
+ * one database, or with storage.engine=embedded one directory, so the
+ * warehouses' load is spread over several servers. Every warehouse has its
+ * own {@link ProductStore}, and an operation on one warehouse touches only
+ * its shard.
+ * <p>
+ * {@link #stockByWarehouse} asks all shards about a product at once and
+ * merges the answers, with one query per database however many warehouses
+ * it holds. If a shard fails or does not answer in time, the whole lookup
+ * fails rather than returning a total that is silently short.
+ */
+public class WarehouseShards implements AutoCloseable {
+    private static final Pattern ID = Pattern.compile("[A-Za-z0-9_-]{1,50}");
+    private static final OperationTimer GATHER_TIMER = Metrics.timer("stock.byWarehouse");
+
+    private static WarehouseShards shared;
+    private static boolean sharedOpened;
+
+    private final List<Shard> shards;
+    private final Map<String, ProductStore> stores = new LinkedHashMap<>();
+    private final List<String> warehouses;
+    private final String defaultWarehouse;
+    private final long queryTimeoutMillis;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * The warehouses kept in one database or directory.
+     */
+    static final class Shard {
+        final String name;
+        // Null when the warehouses keep local files
+        final ConnectionPool pool;
+        final Map<String, ProductStore> stores;
+
+        private Shard(String name, ConnectionPool pool, Map<String, ProductStore> stores) {
+            this.name = name;
+            this.pool = pool;
+            this.stores = stores;
+        }
+
+        Map<String, Integer> stock(String product) throws SQLException {
+            if (pool != null) {
+                return JdbcProductStore.stockByWarehouse(pool, stores.keySet(), product);
+            }
+            Map<String, Integer> quantities = new LinkedHashMap<>();
+            for (Map.Entry<String, ProductStore> entry : stores.entrySet()) {
+                Product found = entry.getValue().find(product);
+                if (found != null) {
+                    quantities.put(entry.getKey(), found.getQuantity());
+                }
+            }
+            return quantities;
+        }
+
+        void close() {
+            for (ProductStore store : stores.values()) {
+                store.close();
+            }
+            if (pool != null) {
+                pool.close();
+            }
+        }
+    }
+
+    /**
+     * @param shards the shards, each with at least one warehouse
+     * @param defaultWarehouse the warehouse of {@link #getDefaultStore()}
+     * @param queryTimeoutMillis how long {@link #stockByWarehouse} waits for the slowest shard
+     */
+    WarehouseShards(List<Shard> shards, String defaultWarehouse, long queryTimeoutMillis) {
+        for (Shard shard : shards) {
+            stores.putAll(shard.stores);
+        }
+        if (!stores.containsKey(defaultWarehouse)) {
+            throw new IllegalArgumentException("Default warehouse is not on any shard: " + defaultWarehouse);
+        }
+        this.shards = shards;
+        this.warehouses = Collections.unmodifiableList(new ArrayList<>(stores.keySet()));
+        this.defaultWarehouse = defaultWarehouse;
+        this.queryTimeoutMillis = queryTimeoutMillis;
+        // Up to one query per shard connection; beyond that the caller runs its shard query itself
+        executor = new ThreadPoolExecutor(0, Math.max(1, shards.size() * ConfigManager.getPoolMaxSize()),
+                60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+                    Thread thread = new Thread(r, "shard-query");
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Opens the shards described by the warehouses, shards and shard.*
+     * settings the first time it is called.
+     * @return the shared instance, or null if no warehouses are configured
+     * @throws IllegalStateException if the settings are inconsistent or a shard cannot be opened
+     */
+    public static synchronized WarehouseShards shared() {
+        if (!sharedOpened) {
+            shared = fromConfig();
+            sharedOpened = true;
+            if (shared != null) {
+                Runtime.getRuntime().addShutdownHook(new Thread(shared::close, "warehouse-shards-shutdown"));
+            }
+        }
+        return shared;
+    }
+
+    private static WarehouseShards fromConfig() {
+        List<String> warehouses = ConfigManager.getWarehouses();
+        if (warehouses.isEmpty()) {
+            return null;
+        }
+        Map<String, List<String>> warehousesByShard = new LinkedHashMap<>();
+        for (String shard : ConfigManager.getShards()) {
+            if (!isValidId(shard) || warehousesByShard.put(shard, new ArrayList<>()) != null) {
+                throw new IllegalStateException("Invalid or repeated shard name: " + shard);
+            }
+        }
+        if (warehousesByShard.isEmpty()) {
+            throw new IllegalStateException("warehouses is set but shards is empty");
+        }
+        Map<String, String> shardByWarehouse = new HashMap<>();
+        for (String warehouse : warehouses) {
+            if (!isValidId(warehouse) || shardByWarehouse.containsKey(warehouse)) {
+                throw new IllegalStateException("Invalid or repeated warehouse id: " + warehouse);
+            }
+            String shard = ConfigManager.getWarehouseShard(warehouse);
+            if (!warehousesByShard.containsKey(shard)) {
+                throw new IllegalStateException("Warehouse " + warehouse + " is mapped to unknown shard " + shard);
+            }
+            warehousesByShard.get(shard).add(warehouse);
+            shardByWarehouse.put(warehouse, shard);
+        }
+        String defaultWarehouse = ConfigManager.getDefaultWarehouse();
+        if (defaultWarehouse == null || defaultWarehouse.trim().isEmpty()) {
+            defaultWarehouse = warehouses.get(0);
+        } else if (!shardByWarehouse.containsKey(defaultWarehouse.trim())) {
+            throw new IllegalStateException("warehouse.default is not a listed warehouse: " + defaultWarehouse);
+        }
+        String engine = ConfigManager.getStorageEngine();
+        boolean embedded = engine.equalsIgnoreCase("embedded");
+        if (!embedded && !engine.equalsIgnoreCase("jdbc")) {
+            throw new IllegalStateException("Unknown storage.engine: " + engine);
+        }
+
+        List<Shard> shards = new ArrayList<>();
+        try {
+            for (Map.Entry<String, List<String>> entry : warehousesByShard.entrySet()) {
+                String name = entry.getKey();
+                if (entry.getValue().isEmpty()) {
+                    continue;
+                }
+                if (embedded) {
+                    shards.add(fileShard(name, Paths.get(ConfigManager.getShardStorageDir(name)), entry.getValue(),
+                            ConfigManager.getStorageCompactBytes(), ConfigManager.isStorageForceOnWrite()));
+                } else {
+                    shards.add(databaseShard(name, entry.getValue()));
+                }
+                Logger.info("Shard " + name + " holds warehouses " + entry.getValue());
+            }
+            return new WarehouseShards(shards, defaultWarehouse.trim(), ConfigManager.getShardQueryTimeoutMillis());
+        } catch (SQLException | ClassNotFoundException | RuntimeException e) {
+            for (Shard shard : shards) {
+                shard.close();
+            }
+            throw new IllegalStateException("Could not open the warehouse shards: " + e.getMessage(), e);
+        }
+    }
+
+    private static Shard databaseShard(String name, List<String> warehouses) throws ClassNotFoundException {
+        String url = ConfigManager.getShardDatabaseUrl(name);
+        if (url == null || url.trim().isEmpty()) {
+            throw new IllegalStateException("shard." + name + ".db.url is not set");
+        }
+        ConnectionPool pool = DatabaseConnector.newPool(url, ConfigManager.getShardDatabaseUsername(name),
+                ConfigManager.getShardDatabasePassword(name));
+        Metrics.gauge("shard." + name + ".pool.active", pool::getActiveCount);
+        Metrics.gauge("shard." + name + ".pool.total", pool::getTotalCount);
+        Map<String, ProductStore> stores = new LinkedHashMap<>();
+        for (String warehouse : warehouses) {
+            stores.put(warehouse, new JdbcProductStore(pool, warehouse, ConfigManager.getExportFetchSize(),
+                    ConfigManager.getStockLockStripes(), ConfigManager.getExportDeltaOverlapMillis(),
+                    ConfigManager.getExportTombstoneRetentionMillis()));
+        }
+        return new Shard(name, pool, stores);
+    }
+
+    /**
+     * Opens a shard of local files, each warehouse in its own subdirectory of directory.
+     */
+    static Shard fileShard(String name, Path directory, List<String> warehouses, long compactBytes,
+                           boolean forceOnWrite) throws SQLException {
+        Map<String, ProductStore> stores = new LinkedHashMap<>();
+        try {
+            for (String warehouse : warehouses) {
+                stores.put(warehouse, new EmbeddedProductStore(directory.resolve(warehouse), compactBytes, forceOnWrite));
+            }
+        } catch (SQLException e) {
+            for (ProductStore store : stores.values()) {
+                store.close();
+            }
+            throw e;
+        }
+        return new Shard(name, null, stores);
+    }
+
+    /**
+     * @return true if id can name a warehouse or shard: 1 to 50 letters, digits, '-' or '_'
+     */
+    public static boolean isValidId(String id) {
+        return id != null && ID.matcher(id).matches();
+    }
+
+    /**
+     * @return the warehouse ids, in the order they are listed
+     */
+    public List<String> getWarehouses() {
+        return warehouses;
+    }
+
+    public String getDefaultWarehouse() {
+        return defaultWarehouse;
+    }
+
+    /**
+     * @return the store of the default warehouse, which operations that name no warehouse use
+     */
+    public ProductStore getDefaultStore() {
+        return stores.get(defaultWarehouse);
+    }
+
+    /**
+     * @return the warehouse's store on its shard, or null if there is no such warehouse
+     */
+    public ProductStore store(String warehouse) {
+        return stores.get(warehouse);
+    }
+
+    /**
+     * Asks every shard about the product in parallel and merges the answers.
+     * @return the product's quantity in each warehouse that has it, in the order warehouses are listed
+     * @throws SQLException if a shard fails or does not answer within the query timeout
+     */
+    public Map<String, Integer> stockByWarehouse(String name) throws SQLException {
+        long start = Metrics.start();
+        try {
+            // The other shards are queried on the executor while this thread queries the first one
+            List<Future<Map<String, Integer>>> answers = new ArrayList<>(shards.size() - 1);
+            for (Shard shard : shards.subList(1, shards.size())) {
+                answers.add(executor.submit(() -> shard.stock(name)));
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(queryTimeoutMillis);
+            Map<String, Integer> gathered = new HashMap<>(shards.get(0).stock(name));
+            for (int i = 1; i < shards.size(); i++) {
+                gathered.putAll(await(shards.get(i), answers.get(i - 1), deadline));
+            }
+            Map<String, Integer> quantities = new LinkedHashMap<>();
+            for (String warehouse : warehouses) {
+                Integer quantity = gathered.get(warehouse);
+                if (quantity != null) {
+                    quantities.put(warehouse, quantity);
+                }
+            }
+            GATHER_TIMER.rows(quantities.size());
+            return quantities;
+        } catch (SQLException | RuntimeException e) {
+            GATHER_TIMER.error();
+            throw e;
+        } finally {
+            GATHER_TIMER.stop(start);
+        }
+    }
+
+    private static Map<String, Integer> await(Shard shard, Future<Map<String, Integer>> answer, long deadline)
+            throws SQLException {
+        try {
+            return answer.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            throw new SQLException("Shard " + shard.name + " did not answer in time");
+        } catch (ExecutionException e) {
+            throw new SQLException("Shard " + shard.name + " failed: " + e.getCause().getMessage(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for shard " + shard.name, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        for (Shard shard : shards) {
+            shard.close();
+        }
+    }
+
+    /**
+     * Self-check on temporary local shards: each warehouse is filled and
+     * adjusted by its own thread through its own store, then every product's
+     * gathered stock is compared with what was written, and every
+     * warehouse's files must be on its own shard only.
+     * Arguments: shard count, warehouse count, products.
+     */
+    public static void main(String[] args) throws Exception {
+        int shardCount = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int warehouseCount = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int products = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+        List<String> shardNames = new ArrayList<>();
+        Map<String, List<String>> warehousesByShard = new LinkedHashMap<>();
+        for (int i = 0; i < shardCount; i++) {
+            shardNames.add("shard-" + i);
+            warehousesByShard.put("shard-" + i, new ArrayList<>());
+        }
+        List<String> warehouses = new ArrayList<>();
+        for (int i = 0; i < warehouseCount; i++) {
+            warehouses.add("warehouse-" + i);
+            warehousesByShard.get(ConfigManager.hashShard("warehouse-" + i, shardNames)).add("warehouse-" + i);
+        }
+
+        Path root = Files.createTempDirectory("ims-shards");
+        List<Shard> shards = new ArrayList<>();
+        for (Map.Entry<String, List<String>> entry : warehousesByShard.entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                shards.add(fileShard(entry.getKey(), root.resolve(entry.getKey()), entry.getValue(), 64L << 20, false));
+            }
+        }
+        // -1 marks a product the warehouse does not stock
+        int[][] expected = new int[warehouseCount][products];
+        AtomicInteger failures = new AtomicInteger();
+        int mismatches = 0;
+        long gatherNanos;
+        try (WarehouseShards sharded = new WarehouseShards(shards, warehouses.get(0), 5000)) {
+            List<Thread> workers = new ArrayList<>();
+            for (int w = 0; w < warehouseCount; w++) {
+                int index = w;
+                Thread worker = new Thread(() -> {
+                    ProductStore store = sharded.store(warehouses.get(index));
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    try {
+                        for (int p = 0; p < products; p++) {
+                            expected[index][p] = -1;
+                            if (random.nextInt(4) > 0) {
+                                int quantity = random.nextInt(100);
+                                store.insert(new Product("product-" + p, "shard self-check", 1, quantity));
+                                expected[index][p] = quantity;
+                            }
+                        }
+                        for (int i = 0; i < products; i++) {
+                            int p = random.nextInt(products);
+                            int delta = random.nextInt(-20, 21);
+                            if (store.adjustQuantity("product-" + p, delta) != null) {
+                                expected[index][p] += delta;
+                            }
+                        }
+                    } catch (SQLException e) {
+                        failures.incrementAndGet();
+                        System.err.println("Warehouse " + warehouses.get(index) + " failed: " + e.getMessage());
+                    }
+                });
+                workers.add(worker);
+                worker.start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+
+            long start = System.nanoTime();
+            for (int p = 0; p < products; p++) {
+                Map<String, Integer> stock = sharded.stockByWarehouse("product-" + p);
+                for (int w = 0; w < warehouseCount; w++) {
+                    Integer wanted = expected[w][p] < 0 ? null : expected[w][p];
+                    if (!Objects.equals(stock.get(warehouses.get(w)), wanted)) {
+                        mismatches++;
+                    }
+                }
+            }
+            gatherNanos = System.nanoTime() - start;
+
+            for (Map.Entry<String, List<String>> entry : warehousesByShard.entrySet()) {
+                for (String warehouse : warehouses) {
+                    if (Files.exists(root.resolve(entry.getKey()).resolve(warehouse))
+                            != entry.getValue().contains(warehouse)) {
+                        mismatches++;
+                    }
+                }
+            }
+        } finally {
+            deleteTree(root);
+        }
+
+        System.out.println(warehouseCount + " warehouses on " + shards.size() + " shards, " + products
+                + " products; gathered stock in " + gatherNanos / 1000 / Math.max(1, products) + " us per product");
+        System.out.println("Mismatches: " + mismatches + ", failed warehouses: " + failures.get());
+        System.out.println(mismatches == 0 && failures.get() == 0
+                ? "Warehouse shard check passed." : "Warehouse shard check FAILED.");
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}